@@ -36,7 +36,6 @@ import java.nio.ByteOrder;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -63,8 +62,8 @@ class AdvertiseManager {
     // Handles advertise operations.
     private ClientHandler mHandler;
 
-    // CountDownLatch for blocking advertise operations.
-    private CountDownLatch mLatch;
+    // Advertising commands waiting for their completion callback.
+    private final ControllerCommandQueue mCommandQueue = new ControllerCommandQueue(TAG);
 
     /**
      * Constructor of {@link AdvertiseManager}.
@@ -123,18 +122,26 @@ class AdvertiseManager {
      * Signals the callback is received.
      *
      * @param clientIf Identifier for the client.
+     * @param opcode Type of the callback, see {@link ControllerCommandQueue}.
      * @param status Status of the callback.
      */
-    void callbackDone(int clientIf, int status) {
-        if (status == AdvertiseCallback.ADVERTISE_SUCCESS) {
-            mLatch.countDown();
-        } else {
-            // Note in failure case we'll wait for the latch to timeout(which takes 100ms) and
-            // the mClientHandler thread will be blocked till timeout.
+    void callbackDone(int clientIf, int opcode, int status) {
+        // A tracked command that failed is reported by the handler thread once it is done
+        // waiting, only report failures nobody is waiting for here.
+        if (!mCommandQueue.complete(opcode, clientIf, status)
+                && status != AdvertiseCallback.ADVERTISE_SUCCESS) {
             postCallback(clientIf, AdvertiseCallback.ADVERTISE_FAILED_INTERNAL_ERROR);
         }
     }
 
+    /**
+     * Logs debug information.
+     */
+    void dump(StringBuilder sb) {
+        sb.append("  Advertise clients: " + mAdvertiseClients.size() + "\n");
+        mCommandQueue.dump(sb);
+    }
+
     // Post callback status to app process.
     private void postCallback(int clientIf, int status) {
         try {
@@ -278,31 +285,32 @@ class AdvertiseManager {
 
         boolean startMultiAdvertising(AdvertiseClient client) {
             logd("starting multi advertising");
-            resetCountDownLatch();
+            // The stack assigns the advertising instance when enabling it, the data can only
+            // be set once onAdvertiseInstanceEnabled arrived. Data and scan response don't
+            // depend on each other and are issued back to back.
+            mCommandQueue.submit("enable advertising",
+                    ControllerCommandQueue.OP_ADVERTISE_ENABLE, client.clientIf);
             enableAdvertising(client);
-            if (!waitForCallback()) {
+            if (!mCommandQueue.awaitAll(OPERATION_TIME_OUT_MILLIS)) {
                 return false;
             }
-            resetCountDownLatch();
+            mCommandQueue.submit("set advertising data",
+                    ControllerCommandQueue.OP_ADVERTISE_DATA, client.clientIf);
             setAdvertisingData(client, client.advertiseData, false);
-            if (!waitForCallback()) {
-                return false;
-            }
             if (client.scanResponse != null) {
-                resetCountDownLatch();
+                mCommandQueue.submit("set scan response",
+                        ControllerCommandQueue.OP_ADVERTISE_DATA, client.clientIf);
                 setAdvertisingData(client, client.scanResponse, true);
-                if (!waitForCallback()) {
-                    return false;
-                }
             }
-            return true;
+            return mCommandQueue.awaitAll(OPERATION_TIME_OUT_MILLIS);
         }
 
         boolean startSingleAdvertising(AdvertiseClient client) {
             logd("starting single advertising");
-            resetCountDownLatch();
+            mCommandQueue.submit("enable advertising", ControllerCommandQueue.OP_ADVERTISE,
+                    client.clientIf);
             enableAdvertising(client);
-            if (!waitForCallback()) {
+            if (!mCommandQueue.awaitAll(OPERATION_TIME_OUT_MILLIS)) {
                 return false;
             }
             setAdvertisingData(client, client.advertiseData, false);
@@ -323,19 +331,6 @@ class AdvertiseManager {
             }
         }
 
-        private void resetCountDownLatch() {
-            mLatch = new CountDownLatch(1);
-        }
-
-        // Returns true if mLatch reaches 0, false if timeout or interrupted.
-        private boolean waitForCallback() {
-            try {
-                return mLatch.await(OPERATION_TIME_OUT_MILLIS, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-                return false;
-            }
-        }
-
         private void enableAdvertising(AdvertiseClient client) {
             int clientIf = client.clientIf;
             int minAdvertiseUnit = (int) getAdvertisingIntervalUnit(client.settings);
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanRecord;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Reusable parser for advertising data (AD) structures.
+ *
+ * A single instance is reset once per received advertisement and then shared by
+ * all scan clients. Service UUIDs are kept in primitive arrays so that matching
+ * does not allocate, and the full {@link ScanRecord} is only built when a client
+ * actually needs it.
+ *
+ * Not thread safe; callers are expected to use it from the scan result processing
+ * thread.
+ *
+ * @hide
+ */
+/* package */class AdvertisingDataParser {
+    // AD types defined in the Bluetooth Assigned Numbers.
+    private static final int DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL = 0x02;
+    private static final int DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE = 0x03;
+    private static final int DATA_TYPE_SERVICE_UUIDS_32_BIT_PARTIAL = 0x04;
+    private static final int DATA_TYPE_SERVICE_UUIDS_32_BIT_COMPLETE = 0x05;
+    private static final int DATA_TYPE_SERVICE_UUIDS_128_BIT_PARTIAL = 0x06;
+    private static final int DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE = 0x07;
+    private static final int DATA_TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
+
+    // Bluetooth base UUID 00000000-0000-1000-8000-00805F9B34FB.
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    // Enough for a typical advertisement, grown on demand.
+    private static final int INITIAL_CAPACITY = 8;
+
+    private byte[] mData;
+    private ScanRecord mScanRecord;
+    private boolean mScanRecordParsed;
+
+    private int[] mUuid16 = new int[INITIAL_CAPACITY];
+    private int mNumUuid16;
+    private int[] mUuid32 = new int[INITIAL_CAPACITY];
+    private int mNumUuid32;
+    // Stored as consecutive (msb, lsb) pairs.
+    private long[] mUuid128 = new long[INITIAL_CAPACITY * 2];
+    private int mNumUuid128;
+    private int[] mManufacturerIds = new int[INITIAL_CAPACITY];
+    private int mNumManufacturerIds;
+
+    /**
+     * Parses the given advertising data, discarding the results of the previous call.
+     */
+    void reset(byte[] advData) {
+        mData = advData;
+        mScanRecord = null;
+        mScanRecordParsed = false;
+        mNumUuid16 = 0;
+        mNumUuid32 = 0;
+        mNumUuid128 = 0;
+        mNumManufacturerIds = 0;
+        if (advData == null) return;
+
+        int offset = 0;
+        while (offset < advData.length - 1) {
+            int len = advData[offset++] & 0xFF;
+            if (len == 0) break;
+            int end = offset + len;
+            // Malformed structure, ignore the remainder of the advertisement.
+            if (end > advData.length) break;
+
+            int type = advData[offset] & 0xFF;
+            int pos = offset + 1;
+            switch (type) {
+                case DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL:
+                case DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE:
+                    for (; pos + 2 <= end; pos += 2) {
+                        addUuid16(readLittleEndian(advData, pos, 2));
+                    }
+                    break;
+
+                case DATA_TYPE_SERVICE_UUIDS_32_BIT_PARTIAL:
+                case DATA_TYPE_SERVICE_UUIDS_32_BIT_COMPLETE:
+                    for (; pos + 4 <= end; pos += 4) {
+                        addUuid32((int) readLittleEndian(advData, pos, 4));
+                    }
+                    break;
+
+                case DATA_TYPE_SERVICE_UUIDS_128_BIT_PARTIAL:
+                case DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE:
+                    for (; pos + 16 <= end; pos += 16) {
+                        addUuid128(readLittleEndian(advData, pos + 8, 8),
+                                readLittleEndian(advData, pos, 8));
+                    }
+                    break;
+
+                case DATA_TYPE_MANUFACTURER_SPECIFIC_DATA:
+                    if (pos + 2 <= end) {
+                        addManufacturerId((int) readLittleEndian(advData, pos, 2));
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+            offset = end;
+        }
+    }
+
+    /**
+     * Returns the raw advertising data passed to the last {@link #reset} call.
+     */
+    byte[] getData() {
+        return mData;
+    }
+
+    /**
+     * Returns the number of service UUIDs found in the advertisement.
+     */
+    int getServiceUuidCount() {
+        return mNumUuid16 + mNumUuid32 + mNumUuid128;
+    }
+
+    /**
+     * Returns the number of 16-bit service UUIDs found in the advertisement.
+     */
+    int getUuid16Count() {
+        return mNumUuid16;
+    }
+
+    /**
+     * Returns the 16-bit service UUID at the given position.
+     */
+    int getUuid16(int index) {
+        return mUuid16[index];
+    }
+
+    /**
+     * Returns the number of 32-bit service UUIDs found in the advertisement.
+     */
+    int getUuid32Count() {
+        return mNumUuid32;
+    }
+
+    /**
+     * Returns the 32-bit service UUID at the given position.
+     */
+    int getUuid32(int index) {
+        return mUuid32[index];
+    }
+
+    /**
+     * Returns the number of 128-bit service UUIDs found in the advertisement.
+     */
+    int getUuid128Count() {
+        return mNumUuid128;
+    }
+
+    /**
+     * Returns the 16 or 32-bit value of the 128-bit service UUID at the given position,
+     * or -1 if it is not derived from the Bluetooth base UUID.
+     */
+    long getShortUuid128(int index) {
+        return toShortUuid(mUuid128[2 * index], mUuid128[2 * index + 1]);
+    }
+
+    /**
+     * Returns the number of manufacturer specific data fields in the advertisement.
+     */
+    int getManufacturerIdCount() {
+        return mNumManufacturerIds;
+    }
+
+    /**
+     * Returns the company identifier of the manufacturer specific data at the given position.
+     */
+    int getManufacturerId(int index) {
+        return mManufacturerIds[index];
+    }
+
+    /**
+     * Returns true if the advertisement lists the given service UUID, regardless of
+     * whether it was advertised in its 16, 32 or 128-bit form.
+     */
+    boolean containsServiceUuid(UUID uuid) {
+        long shortUuid = toShortUuid(uuid);
+        if (shortUuid >= 0) {
+            if (shortUuid <= 0xFFFF) {
+                for (int i = 0; i < mNumUuid16; i++) {
+                    if (mUuid16[i] == shortUuid) return true;
+                }
+            }
+            for (int i = 0; i < mNumUuid32; i++) {
+                if ((mUuid32[i] & 0xFFFFFFFFL) == shortUuid) return true;
+            }
+        }
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        for (int i = 0; i < mNumUuid128; i++) {
+            if (mUuid128[2 * i] == msb && mUuid128[2 * i + 1] == lsb) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if every UUID in {@code uuids} is present in the advertisement.
+     */
+    boolean containsAllServiceUuids(UUID[] uuids) {
+        if (uuids == null) return true;
+        for (UUID uuid : uuids) {
+            if (!containsServiceUuid(uuid)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the {@link ScanRecord} for the current advertisement. It is parsed on
+     * first use and then cached until the next {@link #reset} call.
+     */
+    ScanRecord getScanRecord() {
+        if (!mScanRecordParsed) {
+            mScanRecord = ScanRecord.parseFromBytes(mData);
+            mScanRecordParsed = true;
+        }
+        return mScanRecord;
+    }
+
+    /**
+     * Returns the 16 or 32-bit value of a UUID derived from the Bluetooth base UUID,
+     * or -1 if the UUID can only be expressed in its 128-bit form.
+     */
+    static long toShortUuid(UUID uuid) {
+        return toShortUuid(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    private static long toShortUuid(long msb, long lsb) {
+        if (lsb != BASE_UUID_LSB || (msb & 0xFFFFFFFFL) != BASE_UUID_MSB) {
+            return -1;
+        }
+        return msb >>> 32;
+    }
+
+    private void addUuid16(long uuid16) {
+        if (mNumUuid16 == mUuid16.length) {
+            mUuid16 = Arrays.copyOf(mUuid16, mUuid16.length * 2);
+        }
+        mUuid16[mNumUuid16++] = (int) uuid16;
+    }
+
+    private void addUuid32(int uuid32) {
+        if (mNumUuid32 == mUuid32.length) {
+            mUuid32 = Arrays.copyOf(mUuid32, mUuid32.length * 2);
+        }
+        mUuid32[mNumUuid32++] = uuid32;
+    }
+
+    private void addUuid128(long msb, long lsb) {
+        if (2 * mNumUuid128 == mUuid128.length) {
+            mUuid128 = Arrays.copyOf(mUuid128, mUuid128.length * 2);
+        }
+        mUuid128[2 * mNumUuid128] = msb;
+        mUuid128[2 * mNumUuid128 + 1] = lsb;
+        mNumUuid128++;
+    }
+
+    private void addManufacturerId(int manufacturerId) {
+        if (mNumManufacturerIds == mManufacturerIds.length) {
+            mManufacturerIds = Arrays.copyOf(mManufacturerIds, mManufacturerIds.length * 2);
+        }
+        mManufacturerIds[mNumManufacturerIds++] = manufacturerId;
+    }
+
+    private static long readLittleEndian(byte[] data, int offset, int length) {
+        long value = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
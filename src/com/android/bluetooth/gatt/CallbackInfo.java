@@ -25,6 +25,11 @@ import java.util.UUID;
 /*package*/
 
 class CallbackInfo {
+    static final int TYPE_CHARACTERISTIC_WRITE = 0;
+    static final int TYPE_DESCRIPTOR_WRITE = 1;
+    static final int TYPE_NOTIFICATION_SENT = 2;
+
+    int type;
     String address;
     int status;
     int srvcType;
@@ -32,9 +37,12 @@ class CallbackInfo {
     UUID srvcUuid;
     int charInstId;
     UUID charUuid;
+    int descrInstId;
+    UUID descrUuid;
 
     CallbackInfo(String address, int status, int srvcType, int srvcInstId,
             UUID srvcUuid, int charInstId, UUID charUuid) {
+        this.type = TYPE_CHARACTERISTIC_WRITE;
         this.address = address;
         this.status = status;
         this.srvcType = srvcType;
@@ -44,7 +52,16 @@ class CallbackInfo {
         this.charUuid = charUuid;
     }
 
+    CallbackInfo(String address, int status, int srvcType, int srvcInstId,
+            UUID srvcUuid, int charInstId, UUID charUuid, int descrInstId, UUID descrUuid) {
+        this(address, status, srvcType, srvcInstId, srvcUuid, charInstId, charUuid);
+        this.type = TYPE_DESCRIPTOR_WRITE;
+        this.descrInstId = descrInstId;
+        this.descrUuid = descrUuid;
+    }
+
     CallbackInfo(String address, int status) {
+        this.type = TYPE_NOTIFICATION_SENT;
         this.address = address;
         this.status = status;
     }
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.UUID;
+
+/**
+ * Streams a large value to a remote characteristic using write without
+ * response. GattService uses it for writes without response that don't fit the
+ * negotiated ATT MTU.
+ *
+ * The source is cut into chunks that fit the negotiated ATT MTU. The stack
+ * accepts a single outstanding command per connection, so the next chunk is
+ * only written once the previous one completed. Sending pauses while the
+ * connection is congested and resumes when the congestion clears. The app only
+ * sees a single completion instead of one binder round trip per chunk.
+ *
+ * The writer and listener are never called with the stream locked.
+ *
+ * @hide
+ */
+/* package */class CharacteristicWriteStream {
+    private static final boolean DBG = GattServiceConfig.DBG;
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "WriteStream";
+
+    // Bytes written between two progress reports.
+    private static final long PROGRESS_INTERVAL_BYTES = 4096;
+    // ATT opcode and handle preceding the value in a write command.
+    private static final int ATT_WRITE_HEADER_SIZE = 3;
+
+    static final int DEFAULT_MTU = 23;
+
+    /**
+     * Sends a chunk to the remote device.
+     */
+    interface ChunkWriter {
+        void writeChunk(CharacteristicWriteStream stream, byte[] chunk);
+    }
+
+    /**
+     * Receives progress and completion of a stream.
+     */
+    interface Listener {
+        void onProgress(CharacteristicWriteStream stream, long bytesWritten);
+
+        void onComplete(CharacteristicWriteStream stream, int status);
+    }
+
+    /**
+     * Calls to make once the stream is unlocked.
+     */
+    private static class Action {
+        byte[] chunk;
+        long progressBytes = -1;
+        boolean finished;
+        int status;
+    }
+
+    final int connId;
+    final String address;
+    final int srvcType;
+    final int srvcInstId;
+    final UUID srvcUuid;
+    final int charInstId;
+    final UUID charUuid;
+    final int authReq;
+    // Total number of bytes to write, -1 if unknown.
+    final long totalBytes;
+
+    private final InputStream mSource;
+    private final ChunkWriter mWriter;
+    private final Listener mListener;
+    private final int mChunkSize;
+
+    private boolean mWritePending;
+    private boolean mCongested;
+    private boolean mEndOfSource;
+    private boolean mFinished;
+    private long mBytesWritten;
+    private long mLastProgressBytes;
+
+    CharacteristicWriteStream(int connId, String address, int srvcType, int srvcInstId,
+            UUID srvcUuid, int charInstId, UUID charUuid, int authReq, int mtu,
+            InputStream source, long totalBytes, ChunkWriter writer, Listener listener) {
+        this.connId = connId;
+        this.address = address;
+        this.srvcType = srvcType;
+        this.srvcInstId = srvcInstId;
+        this.srvcUuid = srvcUuid;
+        this.charInstId = charInstId;
+        this.charUuid = charUuid;
+        this.authReq = authReq;
+        this.totalBytes = totalBytes;
+        mSource = source;
+        mWriter = writer;
+        mListener = listener;
+        mChunkSize = getChunkSize(mtu);
+    }
+
+    /**
+     * Returns the largest value written in a single write command for the given MTU.
+     */
+    static int getChunkSize(int mtu) {
+        return Math.max(mtu, DEFAULT_MTU) - ATT_WRITE_HEADER_SIZE;
+    }
+
+    /**
+     * Returns true if a write completion for the given characteristic belongs
+     * to this stream.
+     */
+    boolean matches(int srvcType, int srvcInstId, UUID srvcUuid, int charInstId,
+            UUID charUuid) {
+        return this.srvcType == srvcType && this.srvcInstId == srvcInstId
+                && this.charInstId == charInstId && this.srvcUuid.equals(srvcUuid)
+                && this.charUuid.equals(charUuid);
+    }
+
+    int getChunkSize() {
+        return mChunkSize;
+    }
+
+    synchronized long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    synchronized boolean isFinished() {
+        return mFinished;
+    }
+
+    void start() {
+        Action action;
+        synchronized (this) {
+            action = pump();
+        }
+        perform(action);
+    }
+
+    /**
+     * Called for the write completion of the outstanding chunk.
+     */
+    void onWriteCompleted(int status) {
+        Action action;
+        synchronized (this) {
+            if (mFinished || !mWritePending) return;
+            mWritePending = false;
+            if (status == BluetoothGatt.GATT_CONNECTION_CONGESTED) {
+                // The chunk went out, hold the rest until the congestion clears.
+                mCongested = true;
+                action = pump();
+            } else if (status != BluetoothGatt.GATT_SUCCESS) {
+                action = finish(status);
+            } else {
+                action = pump();
+            }
+        }
+        perform(action);
+    }
+
+    void setCongested(boolean congested) {
+        Action action;
+        synchronized (this) {
+            mCongested = congested;
+            action = pump();
+        }
+        perform(action);
+    }
+
+    /**
+     * Stops the stream, e.g. when the connection goes away.
+     */
+    void abort(int status) {
+        Action action;
+        synchronized (this) {
+            if (mFinished) return;
+            action = finish(status);
+        }
+        perform(action);
+    }
+
+    // Picks the next chunk to write, if the previous one completed.
+    private Action pump() {
+        if (mFinished || mWritePending) return new Action();
+        if (!mCongested && !mEndOfSource) {
+            byte[] chunk;
+            try {
+                chunk = readChunk();
+            } catch (IOException e) {
+                Log.e(TAG, "Exception: " + e);
+                return finish(BluetoothGatt.GATT_FAILURE);
+            }
+            if (chunk != null) {
+                Action action = new Action();
+                mWritePending = true;
+                mBytesWritten += chunk.length;
+                action.chunk = chunk;
+                if (mBytesWritten - mLastProgressBytes >= PROGRESS_INTERVAL_BYTES) {
+                    mLastProgressBytes = mBytesWritten;
+                    action.progressBytes = mBytesWritten;
+                }
+                return action;
+            }
+            mEndOfSource = true;
+        }
+        if (mEndOfSource) return finish(BluetoothGatt.GATT_SUCCESS);
+        return new Action();
+    }
+
+    // Returns the next chunk, or null at the end of the source.
+    private byte[] readChunk() throws IOException {
+        byte[] buffer = new byte[mChunkSize];
+        int length = 0;
+        while (length < mChunkSize) {
+            int read = mSource.read(buffer, length, mChunkSize - length);
+            if (read < 0) break;
+            length += read;
+        }
+        if (length == 0) return null;
+        if (length == mChunkSize) return buffer;
+        byte[] chunk = new byte[length];
+        System.arraycopy(buffer, 0, chunk, 0, length);
+        return chunk;
+    }
+
+    private Action finish(int status) {
+        mFinished = true;
+        try {
+            mSource.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Exception: " + e);
+        }
+        if (DBG) {
+            Log.d(TAG, "finish() - address=" + address + ", status=" + status
+                    + ", bytesWritten=" + mBytesWritten);
+        }
+        Action action = new Action();
+        action.finished = true;
+        action.status = status;
+        if (status == BluetoothGatt.GATT_SUCCESS && mBytesWritten != mLastProgressBytes) {
+            mLastProgressBytes = mBytesWritten;
+            action.progressBytes = mBytesWritten;
+        }
+        return action;
+    }
+
+    private void perform(Action action) {
+        if (action.chunk != null) mWriter.writeChunk(this, action.chunk);
+        if (mListener == null) return;
+        if (action.progressBytes >= 0) mListener.onProgress(this, action.progressBytes);
+        if (action.finished) mListener.onComplete(this, action.status);
+    }
+}
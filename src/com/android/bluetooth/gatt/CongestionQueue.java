@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+
+/**
+ * Write completions held back while the outgoing path of a connection is
+ * congested, so the app stops queueing more writes.
+ *
+ * Completions are never dropped or reordered. At most {@link #MAX_QUEUED}
+ * completions are held: when the queue is full, the oldest one is handed back
+ * for delivery right away, so an app that keeps writing on a long congested
+ * connection loses the back pressure instead of growing the queue.
+ *
+ * @hide
+ */
+/* package */class CongestionQueue {
+    // Maximum number of completions held per connection.
+    static final int MAX_QUEUED = 32;
+
+    private final ArrayDeque<CallbackInfo> mQueue = new ArrayDeque<CallbackInfo>();
+    private boolean mCongested;
+    private long mCongestedSinceMillis;
+
+    // Statistics for dump().
+    private int mNumCongestions;
+    private long mTotalCongestedMillis;
+    private long mMaxCongestedMillis;
+    private int mMaxDepth;
+    private int mNumOverflows;
+
+    synchronized boolean isCongested() {
+        return mCongested;
+    }
+
+    /**
+     * Updates the congestion state and the congestion time statistics.
+     */
+    synchronized void setCongested(boolean congested) {
+        if (congested == mCongested) return;
+        mCongested = congested;
+        long now = SystemClock.elapsedRealtime();
+        if (congested) {
+            mNumCongestions++;
+            mCongestedSinceMillis = now;
+        } else {
+            long duration = now - mCongestedSinceMillis;
+            mTotalCongestedMillis += duration;
+            mMaxCongestedMillis = Math.max(mMaxCongestedMillis, duration);
+        }
+    }
+
+    /**
+     * Returns true if callbacks have to be queued to keep them in order, either
+     * because the connection is congested or because held callbacks are still
+     * waiting to be delivered.
+     */
+    synchronized boolean shouldQueue() {
+        return mCongested || !mQueue.isEmpty();
+    }
+
+    /**
+     * Queues a write completion behind the ones already held. Returns the oldest
+     * held completion if the queue was full, the caller has to deliver it right
+     * away. Returns null otherwise.
+     */
+    synchronized CallbackInfo offer(CallbackInfo callbackInfo) {
+        CallbackInfo overflow = null;
+        if (mQueue.size() == MAX_QUEUED) {
+            overflow = mQueue.pollFirst();
+            mNumOverflows++;
+        }
+        mQueue.addLast(callbackInfo);
+        mMaxDepth = Math.max(mMaxDepth, mQueue.size());
+        return overflow;
+    }
+
+    /**
+     * Returns the next held callback, or null if the queue is empty or the
+     * connection became congested again.
+     */
+    synchronized CallbackInfo poll() {
+        if (mCongested) return null;
+        return mQueue.pollFirst();
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        long total = mTotalCongestedMillis;
+        if (mCongested) total += SystemClock.elapsedRealtime() - mCongestedSinceMillis;
+        if (mNumCongestions == 0 && mQueue.isEmpty()) return;
+        sb.append("      Congestion: count=" + mNumCongestions + ", totalMs=" + total
+                + ", maxMs=" + mMaxCongestedMillis + ", queued=" + mQueue.size()
+                + ", maxQueued=" + mMaxDepth + ", overflows=" + mNumOverflows + "\n");
+    }
+}
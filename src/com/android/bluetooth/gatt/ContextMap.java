@@ -21,8 +21,8 @@ import android.os.IInterface;
 import android.os.RemoteException;
 import android.util.Log;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Set;
@@ -33,6 +33,8 @@ import java.util.Map;
 /**
  * Helper class that keeps track of registered GATT applications.
  * This class manages application callbacks and keeps track of GATT connections.
+ * Lookups are lock-free and indexed by application ID, UUID, connection ID and
+ * (application ID, address), as they happen on every GATT callback.
  * @hide
  */
 /*package*/ class ContextMap<T> {
@@ -46,6 +48,18 @@ import java.util.Map;
         String address;
         int appId;
 
+        /** Callbacks held back while the connection is congested */
+        final CongestionQueue congestionQueue = new CongestionQueue();
+
+        /** ATT MTU negotiated for this connection */
+        volatile int mtu = CharacteristicWriteStream.DEFAULT_MTU;
+
+        /** Streamed characteristic write in progress, if any */
+        volatile CharacteristicWriteStream writeStream;
+
+        /** Prepared writes buffered for the server app */
+        final PreparedWriteQueue preparedWrites = new PreparedWriteQueue();
+
         Connection(int connId, String address,int appId) {
             this.connId = connId;
             this.address = address;
@@ -69,12 +83,6 @@ import java.util.Map;
         /** Death receipient */
         private IBinder.DeathRecipient mDeathRecipient;
 
-        /** Flag to signal that transport is congested */
-        Boolean isCongested = false;
-
-        /** Internal callback info queue, waiting to be send on congestion clear */
-        private List<CallbackInfo> congestionQueue = new ArrayList<CallbackInfo>();
-
         /**
          * Creates a new app context.
          */
@@ -109,29 +117,82 @@ import java.util.Map;
                 }
             }
         }
+    }
 
-        void queueCallback(CallbackInfo callbackInfo) {
-            congestionQueue.add(callbackInfo);
-        }
-
-        CallbackInfo popQueuedCallback() {
-            if (congestionQueue.size() == 0) return null;
-            return congestionQueue.remove(0);
+    /**
+     * Immutable view of all applications and connections. Lookups use the
+     * current snapshot without locking, updates build a new one.
+     */
+    private class Snapshot {
+        final List<App> apps;
+        final List<Connection> connections;
+        final Map<Integer, App> appsById = new HashMap<Integer, App>();
+        final Map<UUID, App> appsByUuid = new HashMap<UUID, App>();
+        final Map<Integer, Connection> connectionsById = new HashMap<Integer, Connection>();
+        // All connections of each application, in the order they were added.
+        final Map<Integer, List<Connection>> connectionsByApp =
+                new HashMap<Integer, List<Connection>>();
+        // First connection of each application to a device address.
+        final Map<Integer, Map<String, Connection>> connectionsByAddress =
+                new HashMap<Integer, Map<String, Connection>>();
+
+        Snapshot(List<App> apps, List<Connection> connections) {
+            this.apps = Collections.unmodifiableList(apps);
+            this.connections = Collections.unmodifiableList(connections);
+            for (App app : apps) {
+                // Applications waiting for registration all have id 0.
+                if (!appsById.containsKey(app.id)) appsById.put(app.id, app);
+                if (!appsByUuid.containsKey(app.uuid)) appsByUuid.put(app.uuid, app);
+            }
+            for (Connection connection : connections) {
+                connectionsById.put(connection.connId, connection);
+                List<Connection> appConnections = connectionsByApp.get(connection.appId);
+                if (appConnections == null) {
+                    appConnections = new ArrayList<Connection>();
+                    connectionsByApp.put(connection.appId, appConnections);
+                }
+                appConnections.add(connection);
+                Map<String, Connection> byAddress = connectionsByAddress.get(connection.appId);
+                if (byAddress == null) {
+                    byAddress = new HashMap<String, Connection>();
+                    connectionsByAddress.put(connection.appId, byAddress);
+                }
+                if (!byAddress.containsKey(connection.address)) {
+                    byAddress.put(connection.address, connection);
+                }
+            }
         }
     }
 
-    /** Our internal application list */
-    List<App> mApps = new ArrayList<App>();
+    /** Lock held while updating the snapshot */
+    private final Object mLock = new Object();
+
+    private volatile Snapshot mSnapshot =
+            new Snapshot(new ArrayList<App>(), new ArrayList<Connection>());
 
-    /** Internal list of connected devices **/
-    Set<Connection> mConnections = new HashSet<Connection>();
+    // Must be called with mLock held.
+    private void publish(List<App> apps, List<Connection> connections) {
+        mSnapshot = new Snapshot(apps, connections);
+    }
 
     /**
      * Add an entry to the application context list.
      */
     void add(UUID uuid, T callback) {
-        synchronized (mApps) {
-            mApps.add(new App(uuid, callback));
+        synchronized (mLock) {
+            List<App> apps = new ArrayList<App>(mSnapshot.apps);
+            apps.add(new App(uuid, callback));
+            publish(apps, mSnapshot.connections);
+        }
+    }
+
+    /**
+     * Set the ID of a registered application.
+     */
+    void setId(App app, int id) {
+        synchronized (mLock) {
+            app.id = id;
+            publish(mSnapshot.apps, mSnapshot.connections);
         }
     }
 
@@ -139,16 +200,13 @@ import java.util.Map;
      * Remove the context for a given UUID
      */
     void remove(UUID uuid) {
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while(i.hasNext()) {
-                App entry = i.next();
-                if (entry.uuid.equals(uuid)) {
-                    entry.unlinkToDeath();
-                    i.remove();
-                    break;
-                }
-            }
+        synchronized (mLock) {
+            App entry = mSnapshot.appsByUuid.get(uuid);
+            if (entry == null) return;
+            entry.unlinkToDeath();
+            List<App> apps = new ArrayList<App>(mSnapshot.apps);
+            apps.remove(entry);
+            publish(apps, mSnapshot.connections);
         }
     }
 
@@ -156,25 +214,22 @@ import java.util.Map;
      * Remove the context for a given application ID.
      */
     void remove(int id) {
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while(i.hasNext()) {
-                App entry = i.next();
-                if (entry.id == id) {
-                    entry.unlinkToDeath();
-                    i.remove();
-                    break;
-                }
+        synchronized (mLock) {
+            Snapshot snapshot = mSnapshot;
+            List<App> apps = new ArrayList<App>(snapshot.apps);
+            App entry = snapshot.appsById.get(id);
+            if (entry != null) {
+                entry.unlinkToDeath();
+                apps.remove(entry);
             }
-        }
-        synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while(i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.appId == id) {
-                    i.remove();
+            List<Connection> connections = snapshot.connections;
+            if (snapshot.connectionsByApp.containsKey(id)) {
+                connections = new ArrayList<Connection>();
+                for (Connection connection : snapshot.connections) {
+                    if (connection.appId != id) connections.add(connection);
                 }
             }
+            publish(apps, connections);
         }
     }
 
@@ -182,10 +237,12 @@ import java.util.Map;
      * Add a new connection for a given application ID.
      */
     void addConnection(int id, int connId, String address) {
-        synchronized (mConnections) {
+        synchronized (mLock) {
             App entry = getById(id);
             if (entry != null){
-                mConnections.add(new Connection(connId, address, id));
+                List<Connection> connections = new ArrayList<Connection>(mSnapshot.connections);
+                connections.add(new Connection(connId, address, id));
+                publish(mSnapshot.apps, connections);
             }
         }
     }
@@ -194,41 +251,40 @@ import java.util.Map;
      * Remove a connection with the given ID.
      */
     void removeConnection(int id, int connId) {
-        synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while(i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.connId == connId) {
-                    i.remove();
-                }
+        synchronized (mLock) {
+            Snapshot snapshot = mSnapshot;
+            if (!snapshot.connectionsById.containsKey(connId)) return;
+            List<Connection> connections = new ArrayList<Connection>();
+            for (Connection connection : snapshot.connections) {
+                if (connection.connId != connId) connections.add(connection);
             }
+            publish(snapshot.apps, connections);
         }
     }
 
+    /**
+     * Returns all application contexts. The list must not be modified.
+     */
+    List<App> getApps() {
+        return mSnapshot.apps;
+    }
+
     /**
      * Get an application context by ID.
      */
     App getById(int id) {
-        Iterator<App> i = mApps.iterator();
-        while(i.hasNext()) {
-            App entry = i.next();
-            if (entry.id == id) return entry;
-        }
-        Log.e(TAG, "Context not found for ID " + id);
-        return null;
+        App entry = mSnapshot.appsById.get(id);
+        if (entry == null) Log.e(TAG, "Context not found for ID " + id);
+        return entry;
     }
 
     /**
      * Get an application context by UUID.
      */
     App getByUuid(UUID uuid) {
-        Iterator<App> i = mApps.iterator();
-        while(i.hasNext()) {
-            App entry = i.next();
-            if (entry.uuid.equals(uuid)) return entry;
-        }
-        Log.e(TAG, "Context not found for UUID " + uuid);
-        return null;
+        App entry = mSnapshot.appsByUuid.get(uuid);
+        if (entry == null) Log.e(TAG, "Context not found for UUID " + uuid);
+        return entry;
     }
 
     /**
@@ -236,9 +292,7 @@ import java.util.Map;
      */
     Set<String> getConnectedDevices() {
         Set<String> addresses = new HashSet<String>();
-        Iterator<Connection> i = mConnections.iterator();
-        while(i.hasNext()) {
-            Connection connection = i.next();
+        for (Connection connection : mSnapshot.connections) {
             addresses.add(connection.address);
         }
         return addresses;
@@ -248,70 +302,59 @@ import java.util.Map;
      * Get an application context by a connection ID.
      */
     App getByConnId(int connId) {
-        Iterator<Connection> ii = mConnections.iterator();
-        while(ii.hasNext()) {
-            Connection connection = ii.next();
-            if (connection.connId == connId){
-                return getById(connection.appId);
-            }
-        }
-        return null;
+        Snapshot snapshot = mSnapshot;
+        Connection connection = snapshot.connectionsById.get(connId);
+        if (connection == null) return null;
+        App entry = snapshot.appsById.get(connection.appId);
+        if (entry == null) Log.e(TAG, "Context not found for ID " + connection.appId);
+        return entry;
     }
 
     /**
      * Returns a connection ID for a given device address.
      */
     Integer connIdByAddress(int id, String address) {
-        App entry = getById(id);
-        if (entry == null) return null;
-
-        Iterator<Connection> i = mConnections.iterator();
-        while(i.hasNext()) {
-            Connection connection = i.next();
-            if (connection.address.equals(address) && connection.appId == id)
-                return connection.connId;
+        Snapshot snapshot = mSnapshot;
+        if (snapshot.appsById.get(id) == null) {
+            Log.e(TAG, "Context not found for ID " + id);
+            return null;
         }
-        return null;
+        Map<String, Connection> byAddress = snapshot.connectionsByAddress.get(id);
+        if (byAddress == null) return null;
+        Connection connection = byAddress.get(address);
+        return connection == null ? null : connection.connId;
+    }
+
+    /**
+     * Returns the connection with the given connection ID.
+     */
+    Connection getConnectionById(int connId) {
+        return mSnapshot.connectionsById.get(connId);
     }
 
     /**
      * Returns the device address for a given connection ID.
      */
     String addressByConnId(int connId) {
-        Iterator<Connection> i = mConnections.iterator();
-        while(i.hasNext()) {
-            Connection connection = i.next();
-            if (connection.connId == connId) return connection.address;
-        }
-        return null;
+        Connection connection = mSnapshot.connectionsById.get(connId);
+        return connection == null ? null : connection.address;
     }
 
     List<Connection> getConnectionByApp(int appId) {
-        List<Connection> currentConnections = new ArrayList<Connection>();
-        Iterator<Connection> i = mConnections.iterator();
-        while(i.hasNext()) {
-            Connection connection = i.next();
-            if (connection.appId == appId)
-                currentConnections.add(connection);
-        }
-        return currentConnections;
+        List<Connection> connections = mSnapshot.connectionsByApp.get(appId);
+        if (connections == null) return new ArrayList<Connection>();
+        return new ArrayList<Connection>(connections);
     }
 
     /**
      * Erases all application context entries.
      */
     void clear() {
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while(i.hasNext()) {
-                App entry = i.next();
+        synchronized (mLock) {
+            for (App entry : mSnapshot.apps) {
                 entry.unlinkToDeath();
-                i.remove();
             }
-        }
-
-        synchronized (mConnections) {
-            mConnections.clear();
+            publish(new ArrayList<App>(), new ArrayList<Connection>());
         }
     }
 
@@ -320,7 +363,7 @@ import java.util.Map;
      */
     Map<Integer, String> getConnectedMap(){
         Map<Integer, String> connectedmap = new HashMap<Integer, String>();
-        for(Connection conn: mConnections){
+        for(Connection conn: mSnapshot.connections){
             connectedmap.put(conn.appId, conn.address);
         }
         return connectedmap;
@@ -330,21 +373,29 @@ import java.util.Map;
      * Logs debug information.
      */
     void dump(StringBuilder sb) {
-        sb.append("  Entries: " + mApps.size() + "\n");
+        Snapshot snapshot = mSnapshot;
+        sb.append("  Entries: " + snapshot.apps.size() + "\n");
 
-        Iterator<App> i = mApps.iterator();
-        while(i.hasNext()) {
-            App entry = i.next();
-            List<Connection> connections = getConnectionByApp(entry.id);
+        for (App entry : snapshot.apps) {
+            List<Connection> connections = snapshot.connectionsByApp.get(entry.id);
+            int numConnections = connections == null ? 0 : connections.size();
 
             sb.append("\n  Application Id: " + entry.id + "\n");
             sb.append("  UUID: " + entry.uuid + "\n");
-            sb.append("  Connections: " + connections.size() + "\n");
-
-            Iterator<Connection> ii = connections.iterator();
-            while(ii.hasNext()) {
-                Connection connection = ii.next();
-                sb.append("    " + connection.connId + ": " + connection.address + "\n");
+            sb.append("  Connections: " + numConnections + "\n");
+
+            if (connections == null) continue;
+            for (Connection connection : connections) {
+                sb.append("    " + connection.connId + ": " + connection.address
+                        + (connection.congestionQueue.isCongested() ? " (congested)" : "")
+                        + "\n");
+                connection.congestionQueue.dump(sb);
+                connection.preparedWrites.dump(sb);
+                CharacteristicWriteStream writeStream = connection.writeStream;
+                if (writeStream != null) {
+                    sb.append("      Write stream: " + writeStream.getBytesWritten() + "/"
+                            + writeStream.totalBytes + " bytes\n");
+                }
             }
         }
     }
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks controller commands that are waiting for their completion callback.
+ *
+ * Each command is identified by its opcode and the client interface it was
+ * issued for, which is what the completion callbacks report. A completion is
+ * matched to the oldest outstanding command with the same opcode and instance,
+ * so a late callback for an abandoned command can't complete an unrelated one.
+ * This lets a caller issue several independent commands back to back and wait
+ * once for all of them, instead of paying a full round trip per command.
+ * Commands that depend on the result of an earlier one must still wait for it.
+ *
+ * Commands must be submitted before the corresponding native method is called,
+ * so the completion callback can't arrive before the command is tracked.
+ *
+ * @hide
+ */
+/* package */class ControllerCommandQueue {
+    private static final boolean DBG = GattServiceConfig.DBG;
+
+    private static final int STATUS_SUCCESS = 0;
+
+    // Opcodes, one per completion callback type.
+    static final int OP_SCAN_FILTER_ENABLE = 0;
+    static final int OP_SCAN_FILTER_PARAMS = 1;
+    static final int OP_SCAN_FILTER_CONFIG = 2;
+    static final int OP_BATCH_SCAN_STORAGE = 3;
+    static final int OP_BATCH_SCAN_START_STOP = 4;
+    static final int OP_BATCH_SCAN_REPORTS = 5;
+    static final int OP_ADVERTISE = 6;
+    static final int OP_ADVERTISE_ENABLE = 7;
+    static final int OP_ADVERTISE_DATA = 8;
+
+    /**
+     * A command waiting for its completion callback.
+     */
+    static class Command {
+        final String name;
+        final int opcode;
+        final int instance;
+        private final long mSubmitTimeMillis = SystemClock.elapsedRealtime();
+        private final CountDownLatch mDone = new CountDownLatch(1);
+
+        private Command(String name, int opcode, int instance) {
+            this.name = name;
+            this.opcode = opcode;
+            this.instance = instance;
+        }
+
+        private void complete() {
+            mDone.countDown();
+        }
+    }
+
+    private final String mTag;
+    private final LinkedList<Command> mPending = new LinkedList<Command>();
+    // Set when a command submitted since the last awaitAll() failed.
+    private boolean mFailed;
+
+    // Statistics for dump().
+    private long mNumSubmitted;
+    private long mNumFailed;
+    private long mNumTimedOut;
+    private long mNumUnexpected;
+    private int mMaxInFlight;
+    private long mTotalRoundTripMillis;
+    private long mNumCompleted;
+
+    ControllerCommandQueue(String tag) {
+        mTag = tag;
+    }
+
+    /**
+     * Starts tracking a command. Call before issuing the native command.
+     *
+     * @param opcode Opcode of the completion callback the command is waiting for.
+     * @param instance Client interface the command is issued for.
+     */
+    synchronized Command submit(String name, int opcode, int instance) {
+        Command command = new Command(name, opcode, instance);
+        mPending.addLast(command);
+        mNumSubmitted++;
+        mMaxInFlight = Math.max(mMaxInFlight, mPending.size());
+        return command;
+    }
+
+    /**
+     * Completes the oldest outstanding command with the given opcode and instance.
+     * Returns false if no such command was waiting for a callback.
+     */
+    boolean complete(int opcode, int instance, int status) {
+        Command command = null;
+        synchronized (this) {
+            Iterator<Command> it = mPending.iterator();
+            while (it.hasNext()) {
+                Command pending = it.next();
+                if (pending.opcode == opcode && pending.instance == instance) {
+                    command = pending;
+                    it.remove();
+                    break;
+                }
+            }
+            if (command == null) {
+                mNumUnexpected++;
+                return false;
+            }
+            mNumCompleted++;
+            mTotalRoundTripMillis += SystemClock.elapsedRealtime() - command.mSubmitTimeMillis;
+            if (status != STATUS_SUCCESS) {
+                mNumFailed++;
+                mFailed = true;
+            }
+        }
+        if (DBG && status != STATUS_SUCCESS) {
+            Log.d(mTag, "command " + command.name + " failed, status=" + status);
+        }
+        command.complete();
+        return true;
+    }
+
+    /**
+     * Waits until all outstanding commands completed, allowing up to
+     * {@code timeoutPerCommandMillis} for each of them. Returns true if every
+     * command submitted since the previous call succeeded. Commands that are still
+     * outstanding after the timeout are abandoned.
+     */
+    boolean awaitAll(long timeoutPerCommandMillis) {
+        List<Command> outstanding;
+        synchronized (this) {
+            outstanding = new ArrayList<Command>(mPending);
+        }
+        // Completions may arrive in any order, wait for each command up to a shared deadline.
+        long deadline = SystemClock.elapsedRealtime()
+                + timeoutPerCommandMillis * outstanding.size();
+        boolean completed = true;
+        try {
+            for (Command command : outstanding) {
+                long remaining = Math.max(0, deadline - SystemClock.elapsedRealtime());
+                if (!command.mDone.await(remaining, TimeUnit.MILLISECONDS)) {
+                    completed = false;
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            completed = false;
+        }
+        synchronized (this) {
+            boolean success = completed && !mFailed;
+            if (!completed) {
+                Log.w(mTag, "timed out waiting for " + mPending.size() + " controller commands");
+                mNumTimedOut += mPending.size();
+                mPending.clear();
+            }
+            mFailed = false;
+            return success;
+        }
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        sb.append("  Controller commands: submitted=" + mNumSubmitted
+                + ", failed=" + mNumFailed + ", timedOut=" + mNumTimedOut
+                + ", unexpectedCallbacks=" + mNumUnexpected
+                + ", maxInFlight=" + mMaxInFlight + ", avgRoundTripMs="
+                + (mNumCompleted == 0 ? 0 : mTotalRoundTripMillis / mNumCompleted) + "\n");
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the attributes found by the service searches running on each
+ * connection.
+ *
+ * Attributes are kept in the order the stack reports them, which always lists
+ * a service before its characteristics and included services, and a
+ * characteristic before its descriptors. The completed list is the attribute
+ * tree of the remote device; it is stored in the attribute cache.
+ *
+ * Results of a search started through {@link #start} are held back and
+ * delivered to the app in one burst once the search completes, so the app
+ * never sees a partial tree while other requests run, and a cached copy of
+ * the database can be checked before the app sees it. The callbacks of the
+ * burst are the per attribute ones existing apps already handle.
+ *
+ * @hide
+ */
+/* package */class DiscoveryAccumulator {
+    static class Discovery {
+        final List<GattAttributeCache.Attribute> attributes =
+                new ArrayList<GattAttributeCache.Attribute>();
+        // Database found in the attribute cache when the search started, or null.
+        final List<GattAttributeCache.Attribute> cached;
+        final long startTimeMillis = SystemClock.elapsedRealtime();
+
+        Discovery(List<GattAttributeCache.Attribute> cached) {
+            this.cached = cached;
+        }
+    }
+
+    // Searches in progress, keyed by connection ID.
+    private final Map<Integer, Discovery> mDiscoveries = new HashMap<Integer, Discovery>();
+
+    // Statistics for dump().
+    private int mNumCompleted;
+    private int mNumFailed;
+    private int mNumCacheMismatches;
+    private long mNumAttributes;
+    private long mTotalDurationMillis;
+    private long mMaxDurationMillis;
+
+    /**
+     * Starts collecting the results of the search running on a connection.
+     * cached is the database found in the attribute cache, or null.
+     */
+    synchronized void start(int connId, List<GattAttributeCache.Attribute> cached) {
+        mDiscoveries.put(connId, new Discovery(cached));
+    }
+
+    /**
+     * Adds a search result. Returns true if the result must be reported to
+     * the app right away because no search started through {@link #start}
+     * runs on the connection.
+     */
+    synchronized boolean add(int connId, GattAttributeCache.Attribute attribute) {
+        Discovery discovery = mDiscoveries.get(connId);
+        if (discovery == null) return true;
+        discovery.attributes.add(attribute);
+        return false;
+    }
+
+    /**
+     * Ends the search of a connection. Returns null if no search started
+     * through {@link #start} is running on the connection. The attributes of
+     * the returned discovery are only complete if the search succeeded.
+     */
+    synchronized Discovery finish(int connId, boolean success) {
+        Discovery discovery = mDiscoveries.remove(connId);
+        if (discovery == null) return null;
+        if (!success) {
+            mNumFailed++;
+            return discovery;
+        }
+        long duration = SystemClock.elapsedRealtime() - discovery.startTimeMillis;
+        mNumCompleted++;
+        if (discovery.cached != null && !discovery.cached.equals(discovery.attributes)) {
+            mNumCacheMismatches++;
+        }
+        mNumAttributes += discovery.attributes.size();
+        mTotalDurationMillis += duration;
+        mMaxDurationMillis = Math.max(mMaxDurationMillis, duration);
+        return discovery;
+    }
+
+    synchronized void cancel(int connId) {
+        mDiscoveries.remove(connId);
+    }
+
+    synchronized void clear() {
+        mDiscoveries.clear();
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        sb.append("  Service searches: completed=" + mNumCompleted + ", failed=" + mNumFailed
+                + ", cacheMismatches=" + mNumCacheMismatches
+                + ", running=" + mDiscoveries.size() + ", attributes=" + mNumAttributes
+                + ", avgMs=" + (mNumCompleted == 0 ? 0 : mTotalDurationMillis / mNumCompleted)
+                + ", maxMs=" + mMaxDurationMillis + "\n");
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Persistent cache of the attribute database discovered on bonded devices.
+ *
+ * Once a discovery started by an app completes successfully for a bonded
+ * device, the attributes collected by the {@link DiscoveryAccumulator} are
+ * written to disk. A later discoverServices() on the same device still runs
+ * the search on the stack, which needs its own database for later requests.
+ * The app only gets the database once the search completed, so a changed
+ * database is never reported from the cache; it replaces the cached entry
+ * instead. The entry of a device is dropped when an app refreshes the device,
+ * when a search on it fails, when the device is no longer bonded, or when the
+ * bond state of the device changes.
+ *
+ * @hide
+ */
+/* package */class GattAttributeCache {
+    private static final boolean DBG = GattServiceConfig.DBG;
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "AttributeCache";
+
+    private static final int FILE_VERSION = 1;
+
+    static final int TYPE_SERVICE = 1;
+    static final int TYPE_CHARACTERISTIC = 2;
+    static final int TYPE_INCLUDED_SERVICE = 3;
+    static final int TYPE_DESCRIPTOR = 4;
+
+    private static final UUID EMPTY_UUID = new UUID(0, 0);
+
+    /**
+     * One discovery callback. Depending on the type, the fields describe a
+     * service, a characteristic, an included service or a descriptor.
+     */
+    static class Attribute {
+        final int type;
+        final int srvcType;
+        final int srvcInstId;
+        final UUID srvcUuid;
+        final int charInstId;
+        final UUID charUuid;
+        final int charProp;
+        // Included service type, for TYPE_INCLUDED_SERVICE.
+        final int inclSrvcType;
+        // Descriptor or included service instance and UUID.
+        final int instId;
+        final UUID uuid;
+
+        Attribute(int type, int srvcType, int srvcInstId, UUID srvcUuid, int charInstId,
+                UUID charUuid, int charProp, int inclSrvcType, int instId, UUID uuid) {
+            this.type = type;
+            this.srvcType = srvcType;
+            this.srvcInstId = srvcInstId;
+            this.srvcUuid = srvcUuid;
+            this.charInstId = charInstId;
+            this.charUuid = charUuid != null ? charUuid : EMPTY_UUID;
+            this.charProp = charProp;
+            this.inclSrvcType = inclSrvcType;
+            this.instId = instId;
+            this.uuid = uuid != null ? uuid : EMPTY_UUID;
+        }
+
+        static Attribute service(int srvcType, int srvcInstId, UUID srvcUuid) {
+            return new Attribute(TYPE_SERVICE, srvcType, srvcInstId, srvcUuid, 0, null, 0, 0,
+                    0, null);
+        }
+
+        static Attribute characteristic(int srvcType, int srvcInstId, UUID srvcUuid,
+                int charInstId, UUID charUuid, int charProp) {
+            return new Attribute(TYPE_CHARACTERISTIC, srvcType, srvcInstId, srvcUuid,
+                    charInstId, charUuid, charProp, 0, 0, null);
+        }
+
+        static Attribute includedService(int srvcType, int srvcInstId, UUID srvcUuid,
+                int inclSrvcType, int inclSrvcInstId, UUID inclSrvcUuid) {
+            return new Attribute(TYPE_INCLUDED_SERVICE, srvcType, srvcInstId, srvcUuid, 0,
+                    null, 0, inclSrvcType, inclSrvcInstId, inclSrvcUuid);
+        }
+
+        static Attribute descriptor(int srvcType, int srvcInstId, UUID srvcUuid,
+                int charInstId, UUID charUuid, int descrInstId, UUID descrUuid) {
+            return new Attribute(TYPE_DESCRIPTOR, srvcType, srvcInstId, srvcUuid, charInstId,
+                    charUuid, 0, 0, descrInstId, descrUuid);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Attribute)) return false;
+            Attribute other = (Attribute) o;
+            return type == other.type && srvcType == other.srvcType
+                    && srvcInstId == other.srvcInstId && srvcUuid.equals(other.srvcUuid)
+                    && charInstId == other.charInstId && charUuid.equals(other.charUuid)
+                    && charProp == other.charProp && inclSrvcType == other.inclSrvcType
+                    && instId == other.instId && uuid.equals(other.uuid);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, srvcType, srvcInstId, srvcUuid, charInstId, charUuid,
+                    charProp, inclSrvcType, instId, uuid);
+        }
+
+        private void writeTo(DataOutputStream out) throws IOException {
+            out.writeByte(type);
+            out.writeByte(srvcType);
+            out.writeInt(srvcInstId);
+            writeUuid(out, srvcUuid);
+            out.writeInt(charInstId);
+            writeUuid(out, charUuid);
+            out.writeInt(charProp);
+            out.writeByte(inclSrvcType);
+            out.writeInt(instId);
+            writeUuid(out, uuid);
+        }
+
+        private static Attribute readFrom(DataInputStream in) throws IOException {
+            return new Attribute(in.readByte(), in.readByte(), in.readInt(), readUuid(in),
+                    in.readInt(), readUuid(in), in.readInt(), in.readByte(), in.readInt(),
+                    readUuid(in));
+        }
+    }
+
+    private final File mDirectory;
+    // Attributes of cached devices loaded so far, keyed by address.
+    private final Map<String, List<Attribute>> mCache = new HashMap<String, List<Attribute>>();
+
+    // Statistics for dump().
+    private int mNumHits;
+    private int mNumMisses;
+    private int mNumStored;
+    private int mNumInvalidated;
+
+    GattAttributeCache(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Returns the cached attributes of a device, or null if the device isn't
+     * cached.
+     */
+    synchronized List<Attribute> get(String address) {
+        List<Attribute> attributes = mCache.get(address);
+        if (attributes == null) {
+            attributes = load(address);
+            if (attributes != null) mCache.put(address, attributes);
+        }
+        if (attributes == null) {
+            mNumMisses++;
+        } else {
+            mNumHits++;
+        }
+        return attributes;
+    }
+
+    /**
+     * Stores the attributes discovered on a device.
+     */
+    synchronized void put(String address, List<Attribute> attributes) {
+        attributes = Collections.unmodifiableList(new ArrayList<Attribute>(attributes));
+        mCache.put(address, attributes);
+        save(address, attributes);
+        mNumStored++;
+    }
+
+    /**
+     * Drops the cached attributes of a device.
+     */
+    synchronized void invalidate(String address) {
+        mCache.remove(address);
+        File file = getFile(address);
+        if (file.exists()) {
+            if (DBG) Log.d(TAG, "invalidate() - address=" + address);
+            new AtomicFile(file).delete();
+            mNumInvalidated++;
+        }
+    }
+
+    synchronized void clear() {
+        mCache.clear();
+    }
+
+    private File getFile(String address) {
+        return new File(mDirectory, address.replace(":", ""));
+    }
+
+    private List<Attribute> load(String address) {
+        File file = getFile(address);
+        if (!file.exists()) return null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new AtomicFile(file).openRead());
+            if (in.readInt() != FILE_VERSION) return null;
+            int count = in.readInt();
+            List<Attribute> attributes = new ArrayList<Attribute>(count);
+            for (int i = 0; i < count; i++) {
+                attributes.add(Attribute.readFrom(in));
+            }
+            return Collections.unmodifiableList(attributes);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.e(TAG, "Exception: " + e);
+            file.delete();
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Exception: " + e);
+                }
+            }
+        }
+    }
+
+    private void save(String address, List<Attribute> attributes) {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "save() - unable to create " + mDirectory);
+            return;
+        }
+        AtomicFile file = new AtomicFile(getFile(address));
+        FileOutputStream out = null;
+        try {
+            out = file.startWrite();
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(FILE_VERSION);
+            data.writeInt(attributes.size());
+            for (Attribute attribute : attributes) {
+                attribute.writeTo(data);
+            }
+            data.flush();
+            file.finishWrite(out);
+        } catch (IOException e) {
+            Log.e(TAG, "Exception: " + e);
+            file.failWrite(out);
+        }
+    }
+
+    private static void writeUuid(DataOutputStream out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID readUuid(DataInputStream in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        sb.append("  Cached devices: " + mCache.size() + " loaded, hits=" + mNumHits
+                + ", misses=" + mNumMisses + ", stored=" + mNumStored
+                + ", invalidated=" + mNumInvalidated + "\n");
+        for (Map.Entry<String, List<Attribute>> entry : mCache.entrySet()) {
+            sb.append("    " + entry.getKey() + ": " + entry.getValue().size()
+                    + " attributes\n");
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Measures how long GATT client operations take to complete.
+ *
+ * The start of each outstanding operation is recorded per connection and
+ * operation type. When the completion arrives, the latency is added to fixed
+ * bucket histograms kept per app and per remote device.
+ *
+ * @hide
+ */
+/* package */class GattLatencyTracker {
+    static final int OP_READ_CHARACTERISTIC = 0;
+    static final int OP_WRITE_CHARACTERISTIC = 1;
+    static final int OP_READ_DESCRIPTOR = 2;
+    static final int OP_WRITE_DESCRIPTOR = 3;
+    static final int OP_EXECUTE_WRITE = 4;
+    static final int OP_CONFIGURE_MTU = 5;
+    static final int OP_DISCOVER_SERVICES = 6;
+    private static final int NUM_OPS = 7;
+
+    private static final String[] OP_NAMES = {
+        "readChar", "writeChar", "readDesc", "writeDesc", "execWrite", "mtu", "discovery"
+    };
+
+    // Upper bounds of the histogram buckets, the last bucket is unbounded.
+    private static final int[] BUCKET_LIMITS_MS = {
+        5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000
+    };
+
+    // Devices kept, the least recently used one is dropped first.
+    private static final int MAX_DEVICES = 32;
+
+    /**
+     * Latency histograms of all operation types.
+     */
+    static class Histogram {
+        private final long[][] mCounts = new long[NUM_OPS][BUCKET_LIMITS_MS.length + 1];
+        private final long[] mTotalMillis = new long[NUM_OPS];
+        private final long[] mMaxMillis = new long[NUM_OPS];
+
+        void add(int op, long millis) {
+            int bucket = 0;
+            while (bucket < BUCKET_LIMITS_MS.length && millis >= BUCKET_LIMITS_MS[bucket]) {
+                bucket++;
+            }
+            mCounts[op][bucket]++;
+            mTotalMillis[op] += millis;
+            mMaxMillis[op] = Math.max(mMaxMillis[op], millis);
+        }
+
+        long getCount(int op) {
+            long count = 0;
+            for (long c : mCounts[op]) count += c;
+            return count;
+        }
+
+        long getCount(int op, int bucket) {
+            return mCounts[op][bucket];
+        }
+
+        void dump(StringBuilder sb, String prefix) {
+            for (int op = 0; op < NUM_OPS; op++) {
+                long count = getCount(op);
+                if (count == 0) continue;
+                sb.append(prefix + OP_NAMES[op] + ": n=" + count + ", avgMs="
+                        + mTotalMillis[op] / count + ", maxMs=" + mMaxMillis[op] + ", [");
+                for (int bucket = 0; bucket < mCounts[op].length; bucket++) {
+                    if (bucket > 0) sb.append(' ');
+                    sb.append(mCounts[op][bucket]);
+                }
+                sb.append("]\n");
+            }
+        }
+    }
+
+    // Start time of outstanding operations, keyed by connection ID and type.
+    private final Map<Long, Long> mStartTimes = new HashMap<Long, Long>();
+    private final SparseArray<Histogram> mByApp = new SparseArray<Histogram>();
+    private final Map<String, Histogram> mByDevice =
+            new LinkedHashMap<String, Histogram>(MAX_DEVICES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Histogram> eldest) {
+                    return size() > MAX_DEVICES;
+                }
+            };
+
+    private static long key(int connId, int op) {
+        return ((long) connId << 8) | op;
+    }
+
+    /**
+     * Records the start of an operation.
+     */
+    synchronized void start(int connId, int op) {
+        mStartTimes.put(key(connId, op), SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Records the completion of an operation. Completions without a recorded
+     * start are ignored.
+     */
+    synchronized void complete(int connId, int op, int appId, String address) {
+        Long start = mStartTimes.remove(key(connId, op));
+        if (start == null) return;
+        long millis = SystemClock.elapsedRealtime() - start;
+
+        Histogram histogram = mByApp.get(appId);
+        if (histogram == null) {
+            histogram = new Histogram();
+            mByApp.put(appId, histogram);
+        }
+        histogram.add(op, millis);
+
+        if (address == null) return;
+        histogram = mByDevice.get(address);
+        if (histogram == null) {
+            histogram = new Histogram();
+            mByDevice.put(address, histogram);
+        }
+        histogram.add(op, millis);
+    }
+
+    /**
+     * Forgets the outstanding operations of a connection.
+     */
+    synchronized void removeConnection(int connId) {
+        for (int op = 0; op < NUM_OPS; op++) {
+            mStartTimes.remove(key(connId, op));
+        }
+    }
+
+    synchronized void removeApp(int appId) {
+        mByApp.remove(appId);
+    }
+
+    synchronized void clear() {
+        mStartTimes.clear();
+        mByApp.clear();
+        mByDevice.clear();
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        sb.append("  Latency buckets (ms):");
+        for (int limit : BUCKET_LIMITS_MS) {
+            sb.append(" <" + limit);
+        }
+        sb.append(" >=" + BUCKET_LIMITS_MS[BUCKET_LIMITS_MS.length - 1] + "\n");
+        for (int i = 0; i < mByApp.size(); i++) {
+            sb.append("  App " + mByApp.keyAt(i) + ":\n");
+            mByApp.valueAt(i).dump(sb, "    ");
+        }
+        for (Map.Entry<String, Histogram> entry : mByDevice.entrySet()) {
+            sb.append("  " + entry.getKey() + ":\n");
+            entry.getValue().dump(sb, "    ");
+        }
+    }
+}
@@ -21,6 +21,7 @@ import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothProfile;
 import android.bluetooth.IBluetoothGatt;
 import android.bluetooth.IBluetoothGattCallback;
@@ -33,7 +34,11 @@ import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
 import android.os.Binder;
 import android.os.IBinder;
 import android.os.ParcelUuid;
@@ -48,18 +53,22 @@ import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.a2dp.A2dpService;
 import com.android.bluetooth.btservice.ProfileService;
-import com.android.bluetooth.util.NumberUtils;
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -79,6 +88,7 @@ public class GattService extends ProfileService {
     // Batch scan related constants.
     private static final int TRUNCATED_RESULT_SIZE = 11;
     private static final int TIME_STAMP_LENGTH = 2;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
 
     // onFoundLost related constants
     private static final int ADVT_STATE_ONFOUND = 0;
@@ -96,6 +106,21 @@ public class GattService extends ProfileService {
      */
     SearchQueue mSearchQueue = new SearchQueue();
 
+    /**
+     * Attribute databases discovered on bonded devices.
+     */
+    private GattAttributeCache mAttributeCache;
+
+    /**
+     * Results of the service searches in progress.
+     */
+    private final DiscoveryAccumulator mDiscoveryAccumulator = new DiscoveryAccumulator();
+
+    /**
+     * Completion times of client operations.
+     */
+    private final GattLatencyTracker mLatencyTracker = new GattLatencyTracker();
+
     /**
      * List of our registered clients.
      */
@@ -118,44 +143,87 @@ public class GattService extends ProfileService {
     private int mMaxScanFilters;
 
     /**
-     * Pending service declaration queue
+     * Advertising data parser shared by all scan clients.
      */
-    private List<ServiceDeclaration> mServiceDeclarations = new ArrayList<ServiceDeclaration>();
+    private final AdvertisingDataParser mAdvDataParser = new AdvertisingDataParser();
 
-    private ServiceDeclaration addDeclaration() {
-        synchronized (mServiceDeclarations) {
-            mServiceDeclarations.add(new ServiceDeclaration());
-        }
-        return getActiveDeclaration();
-    }
+    /**
+     * Pipeline moving scan result processing and delivery off the JNI callback thread.
+     */
+    @VisibleForTesting
+    volatile ScanResultDispatcher mScanResultDispatcher;
 
-    private ServiceDeclaration getActiveDeclaration() {
-        synchronized (mServiceDeclarations) {
-            if (mServiceDeclarations.size() > 0)
-                return mServiceDeclarations.get(mServiceDeclarations.size() - 1);
+    /**
+     * Pending service declaration queue
+     */
+    private final Deque<ServiceDeclaration> mServiceDeclarations =
+            new ConcurrentLinkedDeque<ServiceDeclaration>();
+
+    private final ServiceRegistrationStats mServiceRegistrationStats =
+            new ServiceRegistrationStats();
+
+    private ServiceDeclaration addDeclaration(int serverIf) {
+        ServiceDeclaration declaration = new ServiceDeclaration();
+        declaration.mServerIf = serverIf;
+        mServiceDeclarations.offerLast(declaration);
+        return declaration;
+    }
+
+    // Returns the declaration a server is still building, or null.
+    private ServiceDeclaration getActiveDeclaration(int serverIf) {
+        Iterator<ServiceDeclaration> it = mServiceDeclarations.descendingIterator();
+        while (it.hasNext()) {
+            ServiceDeclaration declaration = it.next();
+            if (declaration.mServerIf == serverIf && !declaration.mDeclared) {
+                return declaration;
+            }
         }
         return null;
     }
 
     private ServiceDeclaration getPendingDeclaration() {
-        synchronized (mServiceDeclarations) {
-            if (mServiceDeclarations.size() > 0)
-                return mServiceDeclarations.get(0);
-        }
-        return null;
+        return mServiceDeclarations.peekFirst();
     }
 
     private void removePendingDeclaration() {
-        synchronized (mServiceDeclarations) {
-            if (mServiceDeclarations.size() > 0)
-                mServiceDeclarations.remove(0);
-        }
+        mServiceDeclarations.pollFirst();
     }
 
     private AdvertiseManager mAdvertiseManager;
     private ScanManager mScanManager;
     private AppOpsManager mAppOps;
 
+    /**
+     * Cached location checks used to compute the scan result permission of scan clients.
+     */
+    private boolean mStrictLocationCheck;
+    private volatile boolean mLocationEnabled;
+
+    private final ContentObserver mLocationModeObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mLocationEnabled = isLocationModeEnabled();
+            if (DBG) Log.d(TAG, "Location mode changed, enabled=" + mLocationEnabled);
+            ScanManager scanManager = mScanManager;
+            if (scanManager == null) return;
+            for (ScanClient client : scanManager.getRegularScanIndex().getClients()) {
+                updateScanResultPermission(client);
+            }
+        }
+    };
+
+    // A new or removed bond may come with a new identity for the address, so
+    // the cached database of the device can no longer be trusted.
+    private final BroadcastReceiver mBondStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            GattAttributeCache attributeCache = mAttributeCache;
+            if (device == null || attributeCache == null) return;
+            attributeCache.invalidate(device.getAddress());
+        }
+    };
+
     /**
      * Reliable write queue
      */
@@ -179,20 +247,36 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "start()");
         initializeNative();
         mAppOps = getSystemService(AppOpsManager.class);
+        mStrictLocationCheck = getResources().getBoolean(R.bool.strict_location_check);
+        mLocationEnabled = isLocationModeEnabled();
+        getContentResolver().registerContentObserver(
+                Settings.Secure.getUriFor(Settings.Secure.LOCATION_MODE), false,
+                mLocationModeObserver);
+        mAttributeCache = new GattAttributeCache(new File(getFilesDir(), "gatt_cache"));
+        registerReceiver(mBondStateReceiver,
+                new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED));
         mAdvertiseManager = new AdvertiseManager(this, AdapterService.getAdapterService());
         mAdvertiseManager.start();
 
         mScanManager = new ScanManager(this);
         mScanManager.start();
 
+        mScanResultDispatcher = new ScanResultDispatcher(this);
+        mScanResultDispatcher.start();
+
         return true;
     }
 
     protected boolean stop() {
         if (DBG) Log.d(TAG, "stop()");
+        getContentResolver().unregisterContentObserver(mLocationModeObserver);
+        unregisterReceiver(mBondStateReceiver);
         mClientMap.clear();
         mServerMap.clear();
         mSearchQueue.clear();
+        mAttributeCache.clear();
+        mDiscoveryAccumulator.clear();
+        mLatencyTracker.clear();
         mHandleMap.clear();
         mServiceDeclarations.clear();
         mReliableQueue.clear();
@@ -204,6 +288,10 @@ public class GattService extends ProfileService {
             mScanManager.cleanup();
             mScanManager = null;
         }
+        if (mScanResultDispatcher != null) {
+            mScanResultDispatcher.cleanup();
+            mScanResultDispatcher = null;
+        }
         return true;
     }
 
@@ -218,6 +306,10 @@ public class GattService extends ProfileService {
             mScanManager.cleanup();
             mScanManager = null;
         }
+        if (mScanResultDispatcher != null) {
+            mScanResultDispatcher.cleanup();
+            mScanResultDispatcher = null;
+        }
         return true;
     }
 
@@ -616,73 +708,160 @@ public class GattService extends ProfileService {
     void onScanResult(String address, int rssi, byte[] adv_data) {
         if (VDBG) Log.d(TAG, "onScanResult() - address=" + address
                     + ", rssi=" + rssi);
-        List<UUID> remoteUuids = parseUuids(adv_data);
-        for (ScanClient client : mScanManager.getRegularScanQueue()) {
-            if (client.uuids.length > 0) {
-                int matches = 0;
-                for (UUID search : client.uuids) {
-                    for (UUID remote: remoteUuids) {
-                        if (remote.equals(search)) {
-                            ++matches;
-                            break; // Only count 1st match in case of duplicates
-                        }
-                    }
-                }
-
-                if (matches < client.uuids.length) continue;
+        // Parsing, filtering and delivery happen off the JNI callback thread.
+        ScanResultDispatcher dispatcher = mScanResultDispatcher;
+        if (dispatcher != null) dispatcher.enqueue(address, rssi, adv_data);
+    }
+
+    // Match an advertisement against all regular scan clients. Called on the
+    // ScanResultDispatcher processing thread.
+    void processScanResult(ScanResultDispatcher.Advertisement advertisement) {
+        ScanFilterIndex index = getRegularScanIndex();
+        ScanResultDispatcher dispatcher = mScanResultDispatcher;
+        if (index == null || dispatcher == null) return;
+
+        // Parse the advertisement once and share the result with every client.
+        mAdvDataParser.reset(advertisement.advData);
+        ScanClient[] clients = index.getClients();
+        boolean[] candidates = index.getCandidates(advertisement.address, mAdvDataParser);
+        for (int i = 0; i < clients.length; i++) {
+            if (!candidates[i]) continue;
+            ScanClient client = clients[i];
+            if (client.uuids.length > 0
+                    && !mAdvDataParser.containsAllServiceUuids(client.uuids)) {
+                continue;
             }
 
             if (!client.isServer) {
-                ClientMap.App app = mClientMap.getById(client.clientIf);
-                if (app != null) {
+                if (advertisement.result == null) {
                     BluetoothDevice device = BluetoothAdapter.getDefaultAdapter()
-                            .getRemoteDevice(address);
-                    ScanResult result = new ScanResult(device, ScanRecord.parseFromBytes(adv_data),
-                            rssi, SystemClock.elapsedRealtimeNanos());
-                    // Do no report if location mode is OFF or the client has no location permission
-                    // PEERS_MAC_ADDRESS permission holders always get results
-                    if (hasScanResultPermission(client) && matchesFilters(client, result)) {
-                        try {
-                            ScanSettings settings = client.settings;
-                            if ((settings.getCallbackType() &
-                                    ScanSettings.CALLBACK_TYPE_ALL_MATCHES) != 0) {
-                                app.callback.onScanResult(result);
-                            }
-                        } catch (RemoteException e) {
-                            Log.e(TAG, "Exception: " + e);
-                            mClientMap.remove(client.clientIf);
-                            mScanManager.stopScan(client);
-                        }
-                    }
+                            .getRemoteDevice(advertisement.address);
+                    advertisement.result = new ScanResult(device,
+                            mAdvDataParser.getScanRecord(), advertisement.rssi,
+                            SystemClock.elapsedRealtimeNanos());
                 }
-            } else {
-                ServerMap.App app = mServerMap.getById(client.clientIf);
-                if (app != null) {
-                    try {
-                        app.callback.onScanResult(address, rssi, adv_data);
-                    } catch (RemoteException e) {
-                        Log.e(TAG, "Exception: " + e);
-                        mServerMap.remove(client.clientIf);
-                        mScanManager.stopScan(client);
-                    }
+                // Do no report if location mode is OFF or the client has no location permission
+                // PEERS_MAC_ADDRESS permission holders always get results
+                if (!hasScanResultPermission(client)
+                        || !matchesFilters(client, advertisement.result)) {
+                    continue;
+                }
+                if ((client.settings.getCallbackType() &
+                        ScanSettings.CALLBACK_TYPE_ALL_MATCHES) == 0) {
+                    continue;
+                }
+                if (client.resultCoalescer != null) {
+                    coalesceScanResult(client, advertisement.result);
+                    continue;
                 }
             }
+            dispatcher.deliver(client, advertisement);
+        }
+    }
+
+    // Filter index of the regular scan clients, null if the service is stopped.
+    @VisibleForTesting
+    ScanFilterIndex getRegularScanIndex() {
+        ScanManager scanManager = mScanManager;
+        return scanManager == null ? null : scanManager.getRegularScanIndex();
+    }
+
+    // Deliver a matching advertisement to a scan client. Called on a delivery thread
+    // of the ScanResultDispatcher. Returns false if the client is gone.
+    boolean deliverScanResult(ScanClient client, ScanResultDispatcher.Advertisement advertisement) {
+        if (!client.isServer) {
+            ClientMap.App app = mClientMap.getById(client.clientIf);
+            if (app == null) return false;
+            try {
+                app.callback.onScanResult(advertisement.result);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Exception: " + e);
+                mClientMap.remove(client.clientIf);
+                ScanManager scanManager = mScanManager;
+                if (scanManager != null) scanManager.stopScan(client);
+                return false;
+            }
+        } else {
+            ServerMap.App app = mServerMap.getById(client.clientIf);
+            if (app == null) return false;
+            try {
+                app.callback.onScanResult(advertisement.address, advertisement.rssi,
+                        advertisement.advData);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Exception: " + e);
+                mServerMap.remove(client.clientIf);
+                ScanManager scanManager = mScanManager;
+                if (scanManager != null) scanManager.stopScan(client);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Start queueing results for a scan client, before it is added to the scan index.
+    void acceptScanResults(ScanClient client) {
+        ScanResultDispatcher dispatcher = mScanResultDispatcher;
+        if (dispatcher != null) dispatcher.addClient(client);
+    }
+
+    // Drop the results still queued for a scan client that stopped scanning.
+    void dropPendingScanResults(int clientIf) {
+        ScanResultDispatcher dispatcher = mScanResultDispatcher;
+        if (dispatcher != null) dispatcher.removeClient(clientIf);
+    }
+
+    // Buffer a result of a software batch client, flushing it after the report delay
+    // or as soon as the buffer is full.
+    private void coalesceScanResult(ScanClient client, ScanResult result) {
+        ScanManager scanManager = mScanManager;
+        if (scanManager == null) return;
+        switch (client.resultCoalescer.add(result)) {
+            case ScanResultCoalescer.ADDED_FIRST:
+                scanManager.flushCoalescedResults(client,
+                        client.settings.getReportDelayMillis());
+                break;
+            case ScanResultCoalescer.ADDED_FULL:
+                scanManager.flushCoalescedResults(client, 0);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Deliver the coalesced results of a software batch client in one callback.
+    void deliverCoalescedScanResults(ScanClient client) {
+        List<ScanResult> results = client.resultCoalescer.drain();
+        if (results.isEmpty()) return;
+        ClientMap.App app = mClientMap.getById(client.clientIf);
+        if (app == null) return;
+        try {
+            app.callback.onBatchScanResults(results);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Exception: " + e);
+            mClientMap.remove(client.clientIf);
+            ScanManager scanManager = mScanManager;
+            if (scanManager != null) scanManager.stopScan(client);
         }
     }
 
     /** Determines if the given scan client has the appropriate permissions to receive callbacks. */
     private boolean hasScanResultPermission(final ScanClient client) {
-        final boolean requiresLocationEnabled =
-                getResources().getBoolean(R.bool.strict_location_check);
-        final boolean locationEnabledSetting = Settings.Secure.getInt(getContentResolver(),
-                Settings.Secure.LOCATION_MODE, Settings.Secure.LOCATION_MODE_OFF)
-                != Settings.Secure.LOCATION_MODE_OFF;
-        final boolean locationEnabled = !requiresLocationEnabled || locationEnabledSetting
+        return client.hasScanResultPermission;
+    }
+
+    // Recomputes the permission snapshot of a scan client from the cached location mode.
+    private void updateScanResultPermission(final ScanClient client) {
+        final boolean locationEnabled = !mStrictLocationCheck || mLocationEnabled
                 || client.legacyForegroundApp;
-        return (client.hasPeersMacAddressPermission
+        client.hasScanResultPermission = (client.hasPeersMacAddressPermission
                 || (client.hasLocationPermission && locationEnabled));
     }
 
+    private boolean isLocationModeEnabled() {
+        return Settings.Secure.getInt(getContentResolver(), Settings.Secure.LOCATION_MODE,
+                Settings.Secure.LOCATION_MODE_OFF) != Settings.Secure.LOCATION_MODE_OFF;
+    }
+
     // Check if a scan record matches a specific filters.
     private boolean matchesFilters(ScanClient client, ScanResult scanResult) {
         if (client.filters == null || client.filters.isEmpty()) {
@@ -703,7 +882,7 @@ public class GattService extends ProfileService {
         ClientMap.App app = mClientMap.getByUuid(uuid);
         if (app != null) {
             if (status == 0) {
-                app.id = clientIf;
+                mClientMap.setId(app, clientIf);
                 app.linkToDeath(new ClientDeathRecipient(clientIf));
             } else {
                 mClientMap.remove(uuid);
@@ -730,8 +909,13 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onDisconnected() - clientIf=" + clientIf
             + ", connId=" + connId + ", address=" + address);
 
+        ClientMap.Connection connection = mClientMap.getConnectionById(connId);
+        CharacteristicWriteStream writeStream = connection == null ? null : connection.writeStream;
+        if (writeStream != null) writeStream.abort(BluetoothGatt.GATT_FAILURE);
         mClientMap.removeConnection(clientIf, connId);
         mSearchQueue.removeConnId(connId);
+        mDiscoveryAccumulator.cancel(connId);
+        mLatencyTracker.removeConnection(connId);
         ClientMap.App app = mClientMap.getById(clientIf);
         if (app != null) {
             app.callback.onClientConnectionState(status, clientIf, false, address);
@@ -754,7 +938,8 @@ public class GattService extends ProfileService {
 
         mSearchQueue.add(connId, srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb);
 
-        ClientMap.App app = mClientMap.getByConnId(connId);
+        ClientMap.App app = collectSearchResult(connId,
+                GattAttributeCache.Attribute.service(srvcType, srvcInstId, uuid));
         if (app != null) {
             app.callback.onGetService(address, srvcType, srvcInstId,
                                         new ParcelUuid(uuid));
@@ -778,7 +963,9 @@ public class GattService extends ProfileService {
                             srvcInstId, srvcUuidLsb, srvcUuidMsb,
                             charInstId, charUuidLsb, charUuidMsb);
 
-            ClientMap.App app = mClientMap.getByConnId(connId);
+            ClientMap.App app = collectSearchResult(connId,
+                    GattAttributeCache.Attribute.characteristic(srvcType, srvcInstId,
+                            srvcUuid, charInstId, charUuid, charProp));
             if (app != null) {
                 app.callback.onGetCharacteristic(address, srvcType,
                             srvcInstId, new ParcelUuid(srvcUuid),
@@ -811,7 +998,9 @@ public class GattService extends ProfileService {
             + ", status=" + status + ", descUuid=" + descUuid);
 
         if (status == 0) {
-            ClientMap.App app = mClientMap.getByConnId(connId);
+            ClientMap.App app = collectSearchResult(connId,
+                    GattAttributeCache.Attribute.descriptor(srvcType, srvcInstId, srvcUuid,
+                            charInstId, charUuid, descrInstId, descUuid));
             if (app != null) {
                 app.callback.onGetDescriptor(address, srvcType,
                             srvcInstId, new ParcelUuid(srvcUuid),
@@ -843,7 +1032,9 @@ public class GattService extends ProfileService {
             + ", inclUuid=" + inclSrvcUuid);
 
         if (status == 0) {
-            ClientMap.App app = mClientMap.getByConnId(connId);
+            ClientMap.App app = collectSearchResult(connId,
+                    GattAttributeCache.Attribute.includedService(srvcType, srvcInstId,
+                            srvcUuid, inclSrvcType, inclSrvcInstId, inclSrvcUuid));
             if (app != null) {
                 app.callback.onGetIncludedService(address,
                     srvcType, srvcInstId, new ParcelUuid(srvcUuid),
@@ -860,6 +1051,20 @@ public class GattService extends ProfileService {
         }
     }
 
+    // Returns the app to notify of a search result, or null if the result is
+    // delivered with the rest of the search once it completes.
+    private ClientMap.App collectSearchResult(int connId,
+            GattAttributeCache.Attribute attribute) {
+        boolean report = mDiscoveryAccumulator.add(connId, attribute);
+        ClientMap.App app = mClientMap.getByConnId(connId);
+        return report ? app : null;
+    }
+
+    private void completeOperation(int connId, int op, String address) {
+        ClientMap.App app = mClientMap.getByConnId(connId);
+        mLatencyTracker.complete(connId, op, app != null ? app.id : 0, address);
+    }
+
     void onRegisterForNotifications(int connId, int status, int registered, int srvcType,
             int srvcInstId, long srvcUuidLsb, long srvcUuidMsb,
             int charInstId, long charUuidLsb, long charUuidMsb) {
@@ -909,6 +1114,8 @@ public class GattService extends ProfileService {
         if (VDBG) Log.d(TAG, "onReadCharacteristic() - address=" + address
             + ", status=" + status + ", length=" + data.length);
 
+        completeOperation(connId, GattLatencyTracker.OP_READ_CHARACTERISTIC, address);
+
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
             app.callback.onCharacteristicRead(address, status, srvcType,
@@ -929,21 +1136,22 @@ public class GattService extends ProfileService {
         if (VDBG) Log.d(TAG, "onWriteCharacteristic() - address=" + address
             + ", status=" + status);
 
+        ClientMap.Connection connection = mClientMap.getConnectionById(connId);
+        CharacteristicWriteStream writeStream = connection == null ? null : connection.writeStream;
+        if (writeStream != null
+                && writeStream.matches(srvcType, srvcInstId, srvcUuid, charInstId, charUuid)) {
+            // Chunk of a streamed write, the app only gets the final completion.
+            writeStream.onWriteCompleted(status);
+            return;
+        }
+
+        completeOperation(connId, GattLatencyTracker.OP_WRITE_CHARACTERISTIC, address);
+
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app == null) return;
 
-        if (!app.isCongested) {
-            app.callback.onCharacteristicWrite(address, status, srvcType,
-                    srvcInstId, new ParcelUuid(srvcUuid),
-                    charInstId, new ParcelUuid(charUuid));
-        } else {
-            if (status == BluetoothGatt.GATT_CONNECTION_CONGESTED) {
-                status = BluetoothGatt.GATT_SUCCESS;
-            }
-            CallbackInfo callbackInfo = new CallbackInfo(address, status, srvcType,
-                    srvcInstId, srvcUuid, charInstId, charUuid);
-            app.queueCallback(callbackInfo);
-        }
+        deliverClientCallback(connId, app, new CallbackInfo(address, status, srvcType,
+                srvcInstId, srvcUuid, charInstId, charUuid));
     }
 
     void onExecuteCompleted(int connId, int status) throws RemoteException {
@@ -951,6 +1159,8 @@ public class GattService extends ProfileService {
         if (VDBG) Log.d(TAG, "onExecuteCompleted() - address=" + address
             + ", status=" + status);
 
+        completeOperation(connId, GattLatencyTracker.OP_EXECUTE_WRITE, address);
+
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
             app.callback.onExecuteWrite(address, status);
@@ -971,6 +1181,8 @@ public class GattService extends ProfileService {
         if (VDBG) Log.d(TAG, "onReadDescriptor() - address=" + address
             + ", status=" + status + ", length=" + data.length);
 
+        completeOperation(connId, GattLatencyTracker.OP_READ_DESCRIPTOR, address);
+
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
             app.callback.onDescriptorRead(address, status, srvcType,
@@ -993,12 +1205,12 @@ public class GattService extends ProfileService {
         if (VDBG) Log.d(TAG, "onWriteDescriptor() - address=" + address
             + ", status=" + status);
 
+        completeOperation(connId, GattLatencyTracker.OP_WRITE_DESCRIPTOR, address);
+
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
-            app.callback.onDescriptorWrite(address, status, srvcType,
-                        srvcInstId, new ParcelUuid(srvcUuid),
-                        charInstId, new ParcelUuid(charUuid),
-                        descrInstId, new ParcelUuid(descrUuid));
+            deliverClientCallback(connId, app, new CallbackInfo(address, status, srvcType,
+                        srvcInstId, srvcUuid, charInstId, charUuid, descrInstId, descrUuid));
         }
     }
 
@@ -1018,7 +1230,7 @@ public class GattService extends ProfileService {
             Log.d(TAG, "onScanFilterEnableDisabled() - clientIf=" + clientIf + ", status=" + status
                     + ", action=" + action);
         }
-        mScanManager.callbackDone(clientIf, status);
+        mScanManager.callbackDone(clientIf, ControllerCommandQueue.OP_SCAN_FILTER_ENABLE, status);
     }
 
     void onScanFilterParamsConfigured(int action, int status, int clientIf, int availableSpace) {
@@ -1027,7 +1239,7 @@ public class GattService extends ProfileService {
                     + ", status=" + status + ", action=" + action
                     + ", availableSpace=" + availableSpace);
         }
-        mScanManager.callbackDone(clientIf, status);
+        mScanManager.callbackDone(clientIf, ControllerCommandQueue.OP_SCAN_FILTER_PARAMS, status);
     }
 
     void onScanFilterConfig(int action, int status, int clientIf, int filterType,
@@ -1038,14 +1250,14 @@ public class GattService extends ProfileService {
                     + ", availableSpace=" + availableSpace);
         }
 
-        mScanManager.callbackDone(clientIf, status);
+        mScanManager.callbackDone(clientIf, ControllerCommandQueue.OP_SCAN_FILTER_CONFIG, status);
     }
 
     void onBatchScanStorageConfigured(int status, int clientIf) {
         if (DBG) {
             Log.d(TAG, "onBatchScanStorageConfigured() - clientIf="+ clientIf + ", status=" + status);
         }
-        mScanManager.callbackDone(clientIf, status);
+        mScanManager.callbackDone(clientIf, ControllerCommandQueue.OP_BATCH_SCAN_STORAGE, status);
     }
 
     // TODO: split into two different callbacks : onBatchScanStarted and onBatchScanStopped.
@@ -1054,138 +1266,152 @@ public class GattService extends ProfileService {
             Log.d(TAG, "onBatchScanStartStopped() - clientIf=" + clientIf
                     + ", status=" + status + ", startStopAction=" + startStopAction);
         }
-        mScanManager.callbackDone(clientIf, status);
+        mScanManager.callbackDone(clientIf, ControllerCommandQueue.OP_BATCH_SCAN_START_STOP,
+                status);
     }
 
-    void onBatchScanReports(int status, int clientIf, int reportType, int numRecords,
-            byte[] recordData) throws RemoteException {
+    void onBatchScanReports(int status, final int clientIf, final int reportType,
+            final int numRecords, final byte[] recordData) throws RemoteException {
         if (DBG) {
             Log.d(TAG, "onBatchScanReports() - clientIf=" + clientIf + ", status=" + status
                     + ", reportType=" + reportType + ", numRecords=" + numRecords);
         }
-        mScanManager.callbackDone(clientIf, status);
-        Set<ScanResult> results = parseBatchScanResults(numRecords, reportType, recordData);
+        mScanManager.callbackDone(clientIf, ControllerCommandQueue.OP_BATCH_SCAN_REPORTS, status);
+        // Parse and deliver off the callback thread, controllers may hold thousands of records.
+        ScanResultDispatcher dispatcher = mScanResultDispatcher;
+        if (dispatcher == null) return;
+        dispatcher.executeBatch(new Runnable() {
+            @Override
+            public void run() {
+                deliverBatchScanReports(clientIf, reportType, numRecords, recordData);
+            }
+        });
+    }
+
+    private void deliverBatchScanReports(int clientIf, int reportType, int numRecords,
+            byte[] recordData) {
+        if (DBG) Log.d(TAG, "current time is " + SystemClock.elapsedRealtimeNanos());
         if (reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED) {
             // We only support single client for truncated mode.
             ClientMap.App app = mClientMap.getById(clientIf);
             if (app == null) return;
-            app.callback.onBatchScanResults(new ArrayList<ScanResult>(results));
-        } else {
-            for (ScanClient client : mScanManager.getFullBatchScanQueue()) {
-                // Deliver results for each client.
-                deliverBatchScan(client, results);
-            }
+            deliverBatchScan(app, new ArrayList<ScanResult>(
+                    parseTruncatedResults(numRecords, recordData)));
+            return;
         }
-    }
 
-    // Check and deliver scan results for different scan clients.
-    private void deliverBatchScan(ScanClient client, Set<ScanResult> allResults) throws
-            RemoteException {
-        ClientMap.App app = mClientMap.getById(client.clientIf);
-        if (app == null) return;
-        if (client.filters == null || client.filters.isEmpty()) {
-            app.callback.onBatchScanResults(new ArrayList<ScanResult>(allResults));
+        ScanManager scanManager = mScanManager;
+        if (scanManager == null) return;
+        List<ScanClient> clients = new ArrayList<ScanClient>();
+        List<ClientMap.App> apps = new ArrayList<ClientMap.App>();
+        List<Set<ScanResult>> results = new ArrayList<Set<ScanResult>>();
+        for (ScanClient client : scanManager.getFullBatchScanQueue()) {
+            ClientMap.App app = mClientMap.getById(client.clientIf);
+            if (app == null) continue;
+            clients.add(client);
+            apps.add(app);
+            results.add(new LinkedHashSet<ScanResult>());
         }
-        // Reconstruct the scan results.
-        List<ScanResult> results = new ArrayList<ScanResult>();
-        for (ScanResult scanResult : allResults) {
-            if (matchesFilters(client, scanResult)) {
-                results.add(scanResult);
-            }
+        if (clients.isEmpty()) return;
+        // Filter for each client while parsing, the unfiltered set is never built.
+        parseFullResults(numRecords, recordData, clients, results);
+        for (int i = 0; i < apps.size(); i++) {
+            deliverBatchScan(apps.get(i), new ArrayList<ScanResult>(results.get(i)));
         }
-        app.callback.onBatchScanResults(results);
     }
 
-    private Set<ScanResult> parseBatchScanResults(int numRecords, int reportType,
-            byte[] batchRecord) {
-        if (numRecords == 0) {
-            return Collections.emptySet();
-        }
-        if (DBG) Log.d(TAG, "current time is " + SystemClock.elapsedRealtimeNanos());
-        if (reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED) {
-            return parseTruncatedResults(numRecords, batchRecord);
-        } else {
-            return parseFullResults(numRecords, batchRecord);
+    private void deliverBatchScan(ClientMap.App app, List<ScanResult> results) {
+        try {
+            app.callback.onBatchScanResults(results);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Exception: " + e);
         }
     }
 
+    // Repeated records are reported once, in the order they were first seen.
     private Set<ScanResult> parseTruncatedResults(int numRecords, byte[] batchRecord) {
-        if (DBG) Log.d(TAG, "batch record " + Arrays.toString(batchRecord));
-        Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
+        if (VDBG) Log.d(TAG, "batch record " + Arrays.toString(batchRecord));
+        numRecords = Math.min(numRecords, batchRecord.length / TRUNCATED_RESULT_SIZE);
+        Set<ScanResult> results = new LinkedHashSet<ScanResult>();
+        if (numRecords <= 0) return results;
+        // Truncated results carry no advertising data, share one empty record.
+        ScanRecord emptyRecord = ScanRecord.parseFromBytes(new byte[0]);
         long now = SystemClock.elapsedRealtimeNanos();
         for (int i = 0; i < numRecords; ++i) {
-            byte[] record = extractBytes(batchRecord, i * TRUNCATED_RESULT_SIZE,
-                    TRUNCATED_RESULT_SIZE);
-            byte[] address = extractBytes(record, 0, 6);
-            reverse(address);
-            BluetoothDevice device = mAdapter.getRemoteDevice(address);
-            int rssi = record[8];
-            long timestampNanos = now - parseTimestampNanos(extractBytes(record, 9, 2));
-            results.add(new ScanResult(device, ScanRecord.parseFromBytes(new byte[0]),
-                    rssi, timestampNanos));
+            int position = i * TRUNCATED_RESULT_SIZE;
+            BluetoothDevice device = mAdapter.getRemoteDevice(
+                    parseAddress(batchRecord, position));
+            int rssi = batchRecord[position + 8];
+            long timestampNanos = now - parseTimestampNanos(batchRecord, position + 9);
+            results.add(new ScanResult(device, emptyRecord, rssi, timestampNanos));
         }
         return results;
     }
 
     @VisibleForTesting
     long parseTimestampNanos(byte[] data) {
-        long timestampUnit = NumberUtils.littleEndianByteArrayToInt(data);
+        return parseTimestampNanos(data, 0);
+    }
+
+    private long parseTimestampNanos(byte[] data, int offset) {
+        long timestampUnit = (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
         // Timestamp is in every 50 ms.
         return TimeUnit.MILLISECONDS.toNanos(timestampUnit * 50);
     }
 
-    private Set<ScanResult> parseFullResults(int numRecords, byte[] batchRecord) {
-        Log.d(TAG, "Batch record : " + Arrays.toString(batchRecord));
-        Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
+    @VisibleForTesting
+    void parseFullResults(int numRecords, byte[] batchRecord,
+            List<ScanClient> clients, List<Set<ScanResult>> clientResults) {
+        if (VDBG) Log.d(TAG, "Batch record : " + Arrays.toString(batchRecord));
         int position = 0;
         long now = SystemClock.elapsedRealtimeNanos();
-        while (position < batchRecord.length) {
-            byte[] address = extractBytes(batchRecord, position, 6);
-            // TODO: remove temp hack.
-            reverse(address);
-            BluetoothDevice device = mAdapter.getRemoteDevice(address);
-            position += 6;
+        // Fixed part: address (6), address type, tx power, rssi, timestamp (2), adv length.
+        while (position + MAC_ADDRESS_LENGTH + 6 <= batchRecord.length) {
+            String address = parseAddress(batchRecord, position);
+            position += MAC_ADDRESS_LENGTH;
             // Skip address type.
             position++;
             // Skip tx power level.
             position++;
             int rssi = batchRecord[position++];
-            long timestampNanos = now - parseTimestampNanos(extractBytes(batchRecord, position, 2));
-            position += 2;
+            long timestampNanos = now - parseTimestampNanos(batchRecord, position);
+            position += TIME_STAMP_LENGTH;
 
             // Combine advertise packet and scan response packet.
-            int advertisePacketLen = batchRecord[position++];
-            byte[] advertiseBytes = extractBytes(batchRecord, position, advertisePacketLen);
+            int advertisePacketLen = batchRecord[position++] & 0xFF;
+            int advertiseStart = position;
             position += advertisePacketLen;
-            int scanResponsePacketLen = batchRecord[position++];
-            byte[] scanResponseBytes = extractBytes(batchRecord, position, scanResponsePacketLen);
+            if (position >= batchRecord.length) break;
+            int scanResponsePacketLen = batchRecord[position++] & 0xFF;
+            int scanResponseStart = position;
             position += scanResponsePacketLen;
+            if (position > batchRecord.length) break;
+
             byte[] scanRecord = new byte[advertisePacketLen + scanResponsePacketLen];
-            System.arraycopy(advertiseBytes, 0, scanRecord, 0, advertisePacketLen);
-            System.arraycopy(scanResponseBytes, 0, scanRecord,
+            System.arraycopy(batchRecord, advertiseStart, scanRecord, 0, advertisePacketLen);
+            System.arraycopy(batchRecord, scanResponseStart, scanRecord,
                     advertisePacketLen, scanResponsePacketLen);
-            Log.d(TAG, "ScanRecord : " + Arrays.toString(scanRecord));
-            results.add(new ScanResult(device, ScanRecord.parseFromBytes(scanRecord),
-                    rssi, timestampNanos));
+            if (VDBG) Log.d(TAG, "ScanRecord : " + Arrays.toString(scanRecord));
+            ScanResult result = new ScanResult(mAdapter.getRemoteDevice(address),
+                    ScanRecord.parseFromBytes(scanRecord), rssi, timestampNanos);
+            for (int i = 0; i < clients.size(); i++) {
+                if (matchesFilters(clients.get(i), result)) {
+                    clientResults.get(i).add(result);
+                }
+            }
         }
-        return results;
     }
 
-    // Reverse byte array.
-    private void reverse(byte[] address) {
-        int len = address.length;
-        for (int i = 0; i < len / 2; ++i) {
-            byte b = address[i];
-            address[i] = address[len - 1 - i];
-            address[len - 1 - i] = b;
+    // Format the little endian address at the given offset as a Bluetooth address string.
+    private static String parseAddress(byte[] data, int offset) {
+        char[] address = new char[MAC_ADDRESS_LENGTH * 3 - 1];
+        for (int i = 0; i < MAC_ADDRESS_LENGTH; ++i) {
+            int b = data[offset + MAC_ADDRESS_LENGTH - 1 - i] & 0xFF;
+            if (i > 0) address[i * 3 - 1] = ':';
+            address[i * 3] = HEX_DIGITS[b >> 4];
+            address[i * 3 + 1] = HEX_DIGITS[b & 0x0F];
         }
-    }
-
-    // Helper method to extract bytes from byte array.
-    private static byte[] extractBytes(byte[] scanRecord, int start, int length) {
-        byte[] bytes = new byte[length];
-        System.arraycopy(scanRecord, start, bytes, 0, length);
-        return bytes;
+        return new String(address);
     }
 
     void onBatchScanThresholdCrossed(int clientIf) {
@@ -1281,6 +1507,11 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onConfigureMTU() address=" + address + ", status="
             + status + ", mtu=" + mtu);
 
+        completeOperation(connId, GattLatencyTracker.OP_CONFIGURE_MTU, address);
+
+        ClientMap.Connection connection = mClientMap.getConnectionById(connId);
+        if (connection != null && status == BluetoothGatt.GATT_SUCCESS) connection.mtu = mtu;
+
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
             app.callback.onConfigureMTU(address, mtu, status);
@@ -1290,7 +1521,7 @@ public class GattService extends ProfileService {
     // Callback for standard advertising instance.
     void onAdvertiseCallback(int status, int clientIf) {
         if (DBG) Log.d(TAG, "onAdvertiseCallback,- clientIf=" + clientIf + ", status=" + status);
-        mAdvertiseManager.callbackDone(clientIf, status);
+        mAdvertiseManager.callbackDone(clientIf, ControllerCommandQueue.OP_ADVERTISE, status);
     }
 
     // Followings are callbacks for Bluetooth LE Advertise operations.
@@ -1303,7 +1534,8 @@ public class GattService extends ProfileService {
     void onAdvertiseInstanceEnabled(int status, int clientIf) {
         if (DBG) Log.d(TAG, "onAdvertiseInstanceEnabled() - "
                 + "clientIf=" + clientIf + ", status=" + status);
-        mAdvertiseManager.callbackDone(clientIf, status);
+        mAdvertiseManager.callbackDone(clientIf, ControllerCommandQueue.OP_ADVERTISE_ENABLE,
+                status);
     }
 
     // Not really used.
@@ -1316,7 +1548,7 @@ public class GattService extends ProfileService {
     void onAdvertiseDataSet(int status, int clientIf) {
         if (DBG) Log.d(TAG, "onAdvertiseDataSet() - clientIf=" + clientIf
             + ", status=" + status);
-        mAdvertiseManager.callbackDone(clientIf, status);
+        mAdvertiseManager.callbackDone(clientIf, ControllerCommandQueue.OP_ADVERTISE_DATA, status);
     }
 
     // Callback when advertise instance is disabled
@@ -1340,18 +1572,51 @@ public class GattService extends ProfileService {
     void onClientCongestion(int connId, boolean congested) throws RemoteException {
         if (VDBG) Log.d(TAG, "onClientCongestion() - connId=" + connId + ", congested=" + congested);
 
+        ClientMap.Connection connection = mClientMap.getConnectionById(connId);
+        if (connection == null) return;
+        connection.congestionQueue.setCongested(congested);
+        CharacteristicWriteStream writeStream = connection.writeStream;
+        if (writeStream != null) writeStream.setCongested(congested);
+
         ClientMap.App app = mClientMap.getByConnId(connId);
+        if (app == null) return;
 
-        if (app != null) {
-            app.isCongested = congested;
-            while(!app.isCongested) {
-                CallbackInfo callbackInfo = app.popQueuedCallback();
-                if (callbackInfo == null)  return;
+        CallbackInfo callbackInfo;
+        while ((callbackInfo = connection.congestionQueue.poll()) != null) {
+            dispatchClientCallback(app, callbackInfo);
+        }
+    }
+
+    // Delivers a write completion, or holds it back while the connection is congested.
+    private void deliverClientCallback(int connId, ClientMap.App app,
+            CallbackInfo callbackInfo) throws RemoteException {
+        ClientMap.Connection connection = mClientMap.getConnectionById(connId);
+        if (connection != null && connection.congestionQueue.shouldQueue()) {
+            if (callbackInfo.status == BluetoothGatt.GATT_CONNECTION_CONGESTED) {
+                callbackInfo.status = BluetoothGatt.GATT_SUCCESS;
+            }
+            callbackInfo = connection.congestionQueue.offer(callbackInfo);
+            if (callbackInfo == null) return;
+        }
+        dispatchClientCallback(app, callbackInfo);
+    }
+
+    private void dispatchClientCallback(ClientMap.App app, CallbackInfo callbackInfo)
+            throws RemoteException {
+        switch (callbackInfo.type) {
+            case CallbackInfo.TYPE_CHARACTERISTIC_WRITE:
                 app.callback.onCharacteristicWrite(callbackInfo.address,
                         callbackInfo.status, callbackInfo.srvcType,
                         callbackInfo.srvcInstId, new ParcelUuid(callbackInfo.srvcUuid),
                         callbackInfo.charInstId, new ParcelUuid(callbackInfo.charUuid));
-            }
+                break;
+            case CallbackInfo.TYPE_DESCRIPTOR_WRITE:
+                app.callback.onDescriptorWrite(callbackInfo.address,
+                        callbackInfo.status, callbackInfo.srvcType,
+                        callbackInfo.srvcInstId, new ParcelUuid(callbackInfo.srvcUuid),
+                        callbackInfo.charInstId, new ParcelUuid(callbackInfo.charUuid),
+                        callbackInfo.descrInstId, new ParcelUuid(callbackInfo.descrUuid));
+                break;
         }
     }
 
@@ -1418,6 +1683,7 @@ public class GattService extends ProfileService {
         scanClient.hasPeersMacAddressPermission = Utils.checkCallerHasPeersMacAddressPermission(
                 this);
         scanClient.legacyForegroundApp = Utils.isLegacyForegroundApp(this, callingPackage);
+        updateScanResultPermission(scanClient);
         mScanManager.startScan(scanClient);
     }
 
@@ -1446,7 +1712,7 @@ public class GattService extends ProfileService {
     }
 
     void unregAll() {
-        for(ClientMap.App app:mClientMap.mApps){
+        for(ClientMap.App app:mClientMap.getApps()){
             if (DBG) Log.d(TAG, "unreg:" + app.id);
             unregisterClient(app.id);
         }
@@ -1470,6 +1736,7 @@ public class GattService extends ProfileService {
 
         if (DBG) Log.d(TAG, "unregisterClient() - clientIf=" + clientIf);
         mClientMap.remove(clientIf);
+        mLatencyTracker.removeApp(clientIf);
         gattClientUnregisterAppNative(clientIf);
     }
 
@@ -1529,6 +1796,7 @@ public class GattService extends ProfileService {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
 
         if (DBG) Log.d(TAG, "refreshDevice() - address=" + address);
+        mAttributeCache.invalidate(address);
         gattClientRefreshNative(clientIf, address);
     }
 
@@ -1538,10 +1806,57 @@ public class GattService extends ProfileService {
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
         if (DBG) Log.d(TAG, "discoverServices() - address=" + address + ", connId=" + connId);
 
-        if (connId != null)
-            gattClientSearchServiceNative(connId, true, 0, 0);
-        else
+        if (connId == null) {
             Log.e(TAG, "discoverServices() - No connection for " + address + "...");
+            return;
+        }
+
+        mLatencyTracker.start(connId, GattLatencyTracker.OP_DISCOVER_SERVICES);
+        List<GattAttributeCache.Attribute> cached = null;
+        if (isBonded(address)) {
+            cached = mAttributeCache.get(address);
+        } else {
+            mAttributeCache.invalidate(address);
+        }
+        // The stack needs its own database for later requests, and the app must
+        // not get a cached database that is out of date, so the search always
+        // runs. Its results are delivered once it completes, after they were
+        // checked against the cache.
+        mDiscoveryAccumulator.start(connId, cached);
+        gattClientSearchServiceNative(connId, true, 0, 0);
+    }
+
+    private void deliverAttributes(ClientMap.App app, String address,
+            List<GattAttributeCache.Attribute> attributes) throws RemoteException {
+        for (GattAttributeCache.Attribute attr : attributes) {
+            switch (attr.type) {
+                case GattAttributeCache.TYPE_SERVICE:
+                    app.callback.onGetService(address, attr.srvcType, attr.srvcInstId,
+                            new ParcelUuid(attr.srvcUuid));
+                    break;
+                case GattAttributeCache.TYPE_CHARACTERISTIC:
+                    app.callback.onGetCharacteristic(address, attr.srvcType,
+                            attr.srvcInstId, new ParcelUuid(attr.srvcUuid),
+                            attr.charInstId, new ParcelUuid(attr.charUuid), attr.charProp);
+                    break;
+                case GattAttributeCache.TYPE_INCLUDED_SERVICE:
+                    app.callback.onGetIncludedService(address, attr.srvcType,
+                            attr.srvcInstId, new ParcelUuid(attr.srvcUuid),
+                            attr.inclSrvcType, attr.instId, new ParcelUuid(attr.uuid));
+                    break;
+                case GattAttributeCache.TYPE_DESCRIPTOR:
+                    app.callback.onGetDescriptor(address, attr.srvcType,
+                            attr.srvcInstId, new ParcelUuid(attr.srvcUuid),
+                            attr.charInstId, new ParcelUuid(attr.charUuid),
+                            attr.instId, new ParcelUuid(attr.uuid));
+                    break;
+            }
+        }
+    }
+
+    private boolean isBonded(String address) {
+        return mAdapter.getRemoteDevice(address).getBondState()
+                == BluetoothDevice.BOND_BONDED;
     }
 
     void readCharacteristic(int clientIf, String address, int srvcType,
@@ -1553,14 +1868,16 @@ public class GattService extends ProfileService {
         if (VDBG) Log.d(TAG, "readCharacteristic() - address=" + address);
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
-        if (connId != null)
+        if (connId != null) {
+            mLatencyTracker.start(connId, GattLatencyTracker.OP_READ_CHARACTERISTIC);
             gattClientReadCharacteristicNative(connId, srvcType,
                 srvcInstanceId, srvcUuid.getLeastSignificantBits(),
                 srvcUuid.getMostSignificantBits(), charInstanceId,
                 charUuid.getLeastSignificantBits(), charUuid.getMostSignificantBits(),
                 authReq);
-        else
+        } else {
             Log.e(TAG, "readCharacteristic() - No connection for " + address + "...");
+        }
     }
 
     void writeCharacteristic(int clientIf, String address, int srvcType,
@@ -1575,16 +1892,80 @@ public class GattService extends ProfileService {
         if (mReliableQueue.contains(address)) writeType = 3; // Prepared write
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
-        if (connId != null)
+        if (connId != null) {
+            mLatencyTracker.start(connId, GattLatencyTracker.OP_WRITE_CHARACTERISTIC);
+            if (writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+                    && startWriteStream(connId, address, srvcType, srvcInstanceId, srvcUuid,
+                            charInstanceId, charUuid, authReq, value)) {
+                return;
+            }
             gattClientWriteCharacteristicNative(connId, srvcType,
                 srvcInstanceId, srvcUuid.getLeastSignificantBits(),
                 srvcUuid.getMostSignificantBits(), charInstanceId,
                 charUuid.getLeastSignificantBits(), charUuid.getMostSignificantBits(),
                 writeType, authReq, value);
-        else
+        } else {
             Log.e(TAG, "writeCharacteristic() - No connection for " + address + "...");
+        }
+    }
+
+    // Streams a write without response that doesn't fit the MTU in chunks, instead of
+    // letting the stack truncate it. Returns false if the value is written as is.
+    private boolean startWriteStream(int connId, String address, int srvcType,
+            int srvcInstanceId, UUID srvcUuid, int charInstanceId, UUID charUuid,
+            int authReq, byte[] value) {
+        final ClientMap.Connection connection = mClientMap.getConnectionById(connId);
+        if (connection == null || connection.writeStream != null
+                || value.length <= CharacteristicWriteStream.getChunkSize(connection.mtu)) {
+            return false;
+        }
+        CharacteristicWriteStream writeStream = new CharacteristicWriteStream(connId, address,
+                srvcType, srvcInstanceId, srvcUuid, charInstanceId, charUuid, authReq,
+                connection.mtu, new ByteArrayInputStream(value), value.length,
+                mWriteStreamWriter, new CharacteristicWriteStream.Listener() {
+                    @Override
+                    public void onProgress(CharacteristicWriteStream stream, long bytesWritten) {
+                        if (VDBG) Log.d(TAG, "writeStream - address=" + stream.address
+                                + ", bytesWritten=" + bytesWritten);
+                    }
+
+                    @Override
+                    public void onComplete(CharacteristicWriteStream stream, int status) {
+                        connection.writeStream = null;
+                        completeOperation(stream.connId,
+                                GattLatencyTracker.OP_WRITE_CHARACTERISTIC, stream.address);
+                        ClientMap.App app = mClientMap.getByConnId(stream.connId);
+                        if (app == null) return;
+                        try {
+                            deliverClientCallback(stream.connId, app, new CallbackInfo(
+                                    stream.address, status, stream.srvcType, stream.srvcInstId,
+                                    stream.srvcUuid, stream.charInstId, stream.charUuid));
+                        } catch (RemoteException e) {
+                            Log.e(TAG, "Exception: " + e);
+                        }
+                    }
+                });
+        if (DBG) Log.d(TAG, "writeCharacteristic() - streaming " + value.length + " bytes to "
+                + address + " in chunks of " + writeStream.getChunkSize());
+        connection.writeStream = writeStream;
+        writeStream.setCongested(connection.congestionQueue.isCongested());
+        writeStream.start();
+        return true;
     }
 
+    private final CharacteristicWriteStream.ChunkWriter mWriteStreamWriter =
+            new CharacteristicWriteStream.ChunkWriter() {
+        @Override
+        public void writeChunk(CharacteristicWriteStream stream, byte[] chunk) {
+            gattClientWriteCharacteristicNative(stream.connId, stream.srvcType,
+                    stream.srvcInstId, stream.srvcUuid.getLeastSignificantBits(),
+                    stream.srvcUuid.getMostSignificantBits(), stream.charInstId,
+                    stream.charUuid.getLeastSignificantBits(),
+                    stream.charUuid.getMostSignificantBits(),
+                    BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, stream.authReq, chunk);
+        }
+    };
+
     void readDescriptor(int clientIf, String address, int srvcType,
                             int srvcInstanceId, UUID srvcUuid,
                             int charInstanceId, UUID charUuid,
@@ -1596,7 +1977,8 @@ public class GattService extends ProfileService {
         if (VDBG) Log.d(TAG, "readDescriptor() - address=" + address);
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
-        if (connId != null)
+        if (connId != null) {
+            mLatencyTracker.start(connId, GattLatencyTracker.OP_READ_DESCRIPTOR);
             gattClientReadDescriptorNative(connId, srvcType,
                 srvcInstanceId,
                 srvcUuid.getLeastSignificantBits(), srvcUuid.getMostSignificantBits(),
@@ -1605,8 +1987,9 @@ public class GattService extends ProfileService {
                 descrInstanceId,
                 descrUuid.getLeastSignificantBits(), descrUuid.getMostSignificantBits(),
                 authReq);
-        else
+        } else {
             Log.e(TAG, "readDescriptor() - No connection for " + address + "...");
+        }
     };
 
     void writeDescriptor(int clientIf, String address, int srvcType,
@@ -1620,7 +2003,8 @@ public class GattService extends ProfileService {
         if (VDBG) Log.d(TAG, "writeDescriptor() - address=" + address);
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
-        if (connId != null)
+        if (connId != null) {
+            mLatencyTracker.start(connId, GattLatencyTracker.OP_WRITE_DESCRIPTOR);
             gattClientWriteDescriptorNative(connId, srvcType,
                 srvcInstanceId,
                 srvcUuid.getLeastSignificantBits(), srvcUuid.getMostSignificantBits(),
@@ -1629,8 +2013,9 @@ public class GattService extends ProfileService {
                 descrInstanceId,
                 descrUuid.getLeastSignificantBits(), descrUuid.getMostSignificantBits(),
                 writeType, authReq, value);
-        else
+        } else {
             Log.e(TAG, "writeDescriptor() - No connection for " + address + "...");
+        }
     }
 
     void beginReliableWrite(int clientIf, String address) {
@@ -1648,7 +2033,10 @@ public class GattService extends ProfileService {
         mReliableQueue.remove(address);
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
-        if (connId != null) gattClientExecuteWriteNative(connId, execute);
+        if (connId != null) {
+            mLatencyTracker.start(connId, GattLatencyTracker.OP_EXECUTE_WRITE);
+            gattClientExecuteWriteNative(connId, execute);
+        }
     }
 
     void registerForNotification(int clientIf, String address, int srvcType,
@@ -1685,6 +2073,7 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "configureMTU() - address=" + address + " mtu=" + mtu);
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
         if (connId != null) {
+            mLatencyTracker.start(connId, GattLatencyTracker.OP_CONFIGURE_MTU);
             gattClientConfigureMTUNative(connId, mtu);
         } else {
             Log.e(TAG, "configureMTU() - No connection for " + address + "...");
@@ -1735,7 +2124,7 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onServerRegistered() - UUID=" + uuid + ", serverIf=" + serverIf);
         ServerMap.App app = mServerMap.getByUuid(uuid);
         if (app != null) {
-            app.id = serverIf;
+            mServerMap.setId(app, serverIf);
             app.linkToDeath(new ServerDeathRecipient(serverIf));
             app.callback.onServerRegistered(status, serverIf);
         }
@@ -1837,11 +2226,23 @@ public class GattService extends ProfileService {
         HandleMap.Entry entry = mHandleMap.getByHandle(attrHandle);
         if (entry == null) return;
 
+        if (isPrep && bufferPreparedWrite(entry.serverIf, connId, transId, attrHandle,
+                offset, data)) {
+            return;
+        }
+
         mHandleMap.addRequest(transId, attrHandle);
 
         ServerMap.App app = mServerMap.getById(entry.serverIf);
         if (app == null) return;
 
+        deliverAttributeWrite(app, address, transId, entry, offset, length, needRsp, isPrep,
+                data);
+    }
+
+    private void deliverAttributeWrite(ServerMap.App app, String address, int transId,
+            HandleMap.Entry entry, int offset, int length, boolean needRsp, boolean isPrep,
+            byte[] data) throws RemoteException {
         switch(entry.type) {
             case HandleMap.TYPE_CHARACTERISTIC:
             {
@@ -1928,9 +2329,46 @@ public class GattService extends ProfileService {
         ServerMap.App app = mServerMap.getByConnId(connId);
         if (app == null) return;
 
+        ServerMap.Connection connection = mServerMap.getConnectionById(connId);
+        if (connection != null && !connection.preparedWrites.isEmpty()) {
+            PreparedWriteQueue queue = connection.preparedWrites;
+            if (execWrite != 1) {
+                queue.cancel();
+            } else {
+                int status = queue.validate();
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    // The app never saw the fragments, answer on its behalf.
+                    queue.cancel();
+                    gattServerSendResponseNative(app.id, connId, transId, status, 0, 0,
+                            new byte[0], 0);
+                    return;
+                }
+                for (PreparedWriteQueue.Write write : queue.execute()) {
+                    HandleMap.Entry entry = mHandleMap.getByHandle(write.handle);
+                    if (entry == null) continue;
+                    byte[] value = write.getValue();
+                    deliverAttributeWrite(app, address, transId, entry, write.offset,
+                            value.length, false, false, value);
+                }
+            }
+        }
+
+        // The app answers the Execute Write request, as before.
         app.callback.onExecuteWrite(address, transId, execWrite == 1);
     }
 
+    // Queues a Prepare Write fragment and answers the request, so the app
+    // gets the coalesced value on Execute Write instead of every fragment.
+    private boolean bufferPreparedWrite(int serverIf, int connId, int transId, int handle,
+            int offset, byte[] data) {
+        ServerMap.Connection connection = mServerMap.getConnectionById(connId);
+        if (connection == null) return false;
+
+        int status = connection.preparedWrites.prepare(handle, offset, data);
+        gattServerSendResponseNative(serverIf, connId, transId, status, handle, offset, data, 0);
+        return true;
+    }
+
     void onResponseSendCompleted(int status, int attrHandle) {
         if (DBG) Log.d(TAG, "onResponseSendCompleted() handle=" + attrHandle);
     }
@@ -1944,26 +2382,32 @@ public class GattService extends ProfileService {
         ServerMap.App app = mServerMap.getByConnId(connId);
         if (app == null) return;
 
-        if (!app.isCongested) {
-            app.callback.onNotificationSent(address, status);
-        } else {
+        ServerMap.Connection connection = mServerMap.getConnectionById(connId);
+        if (connection != null && connection.congestionQueue.shouldQueue()) {
             if (status == BluetoothGatt.GATT_CONNECTION_CONGESTED) {
                 status = BluetoothGatt.GATT_SUCCESS;
             }
-            app.queueCallback(new CallbackInfo(address, status));
+            CallbackInfo overflow =
+                    connection.congestionQueue.offer(new CallbackInfo(address, status));
+            if (overflow == null) return;
+            address = overflow.address;
+            status = overflow.status;
         }
+        app.callback.onNotificationSent(address, status);
     }
 
     void onServerCongestion(int connId, boolean congested) throws RemoteException {
         if (DBG) Log.d(TAG, "onServerCongestion() - connId=" + connId + ", congested=" + congested);
 
+        ServerMap.Connection connection = mServerMap.getConnectionById(connId);
+        if (connection == null) return;
+        connection.congestionQueue.setCongested(congested);
+
         ServerMap.App app = mServerMap.getByConnId(connId);
         if (app == null) return;
 
-        app.isCongested = congested;
-        while(!app.isCongested) {
-            CallbackInfo callbackInfo = app.popQueuedCallback();
-            if (callbackInfo == null) return;
+        CallbackInfo callbackInfo;
+        while ((callbackInfo = connection.congestionQueue.poll()) != null) {
             app.callback.onNotificationSent(callbackInfo.address, callbackInfo.status);
         }
     }
@@ -2025,7 +2469,7 @@ public class GattService extends ProfileService {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
 
         if (DBG) Log.d(TAG, "beginServiceDeclaration() - uuid=" + srvcUuid);
-        ServiceDeclaration serviceDeclaration = addDeclaration();
+        ServiceDeclaration serviceDeclaration = addDeclaration(serverIf);
         serviceDeclaration.addService(srvcUuid, srvcType, srvcInstanceId, minHandles,
             advertisePreferred);
     }
@@ -2035,7 +2479,12 @@ public class GattService extends ProfileService {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
 
         if (DBG) Log.d(TAG, "addIncludedService() - uuid=" + srvcUuid);
-        getActiveDeclaration().addIncludedService(srvcUuid, srvcType, srvcInstanceId);
+        ServiceDeclaration declaration = getActiveDeclaration(serverIf);
+        if (declaration == null) {
+            Log.e(TAG, "addIncludedService() - no service declaration for serverIf=" + serverIf);
+            return;
+        }
+        declaration.addIncludedService(srvcUuid, srvcType, srvcInstanceId);
     }
 
     void addCharacteristic(int serverIf, UUID charUuid, int properties,
@@ -2043,14 +2492,24 @@ public class GattService extends ProfileService {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
 
         if (DBG) Log.d(TAG, "addCharacteristic() - uuid=" + charUuid);
-        getActiveDeclaration().addCharacteristic(charUuid, properties, permissions);
+        ServiceDeclaration declaration = getActiveDeclaration(serverIf);
+        if (declaration == null) {
+            Log.e(TAG, "addCharacteristic() - no service declaration for serverIf=" + serverIf);
+            return;
+        }
+        declaration.addCharacteristic(charUuid, properties, permissions);
     }
 
     void addDescriptor(int serverIf, UUID descUuid, int permissions) {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
 
         if (DBG) Log.d(TAG, "addDescriptor() - uuid=" + descUuid);
-        getActiveDeclaration().addDescriptor(descUuid, permissions);
+        ServiceDeclaration declaration = getActiveDeclaration(serverIf);
+        if (declaration == null) {
+            Log.e(TAG, "addDescriptor() - no service declaration for serverIf=" + serverIf);
+            return;
+        }
+        declaration.addDescriptor(descUuid, permissions);
     }
 
     void endServiceDeclaration(int serverIf) {
@@ -2058,12 +2517,13 @@ public class GattService extends ProfileService {
 
         if (DBG) Log.d(TAG, "endServiceDeclaration()");
 
-        if (getActiveDeclaration() == getPendingDeclaration()) {
-            try {
-                continueServiceDeclaration(serverIf, (byte)0, 0);
-            } catch (RemoteException e) {
-                Log.e(TAG,""+e);
-            }
+        ServiceDeclaration declaration = getActiveDeclaration(serverIf);
+        if (declaration == null) return;
+        declaration.mDeclared = true;
+        try {
+            submitPendingDeclaration();
+        } catch (RemoteException e) {
+            Log.e(TAG,""+e);
         }
     }
 
@@ -2115,8 +2575,8 @@ public class GattService extends ProfileService {
         int charHandle = mHandleMap.getCharacteristicHandle(srvcHandle, charUuid, charInstanceId);
         if (charHandle == 0) return;
 
-        int connId = mServerMap.connIdByAddress(serverIf, address);
-        if (connId == 0) return;
+        Integer connId = mServerMap.connIdByAddress(serverIf, address);
+        if (connId == null || connId == 0) return;
 
         if (confirm) {
             gattServerSendIndicationNative(serverIf, charHandle, connId, value);
@@ -2185,39 +2645,104 @@ public class GattService extends ProfileService {
                     svc.charInstId, svc.charUuidLsb, svc.charUuidMsb, 0, 0, 0);
             }
         } else {
+            String address = mClientMap.addressByConnId(connId);
+            completeOperation(connId, GattLatencyTracker.OP_DISCOVER_SERVICES, address);
+            DiscoveryAccumulator.Discovery discovery =
+                    mDiscoveryAccumulator.finish(connId, status == 0);
+            if (discovery != null && address != null) {
+                // Keep the cache in line with what the stack found.
+                if (status != 0) {
+                    mAttributeCache.invalidate(address);
+                } else if (discovery.cached != null) {
+                    if (!discovery.attributes.equals(discovery.cached)) {
+                        Log.w(TAG, "continueSearch() - database of " + address + " changed");
+                        mAttributeCache.put(address, discovery.attributes);
+                    }
+                } else if (isBonded(address)) {
+                    mAttributeCache.put(address, discovery.attributes);
+                }
+            }
+
             ClientMap.App app = mClientMap.getByConnId(connId);
             if (app != null) {
-                app.callback.onSearchComplete(mClientMap.addressByConnId(connId), status);
+                if (discovery != null) {
+                    // Everything the search found, in one burst per connection.
+                    deliverAttributes(app, address, discovery.attributes);
+                }
+                app.callback.onSearchComplete(address, status);
             }
         }
     }
 
+    // Hands the oldest declaration to the stack once the app finished it and
+    // no other declaration is being registered. Safe to call from any thread.
+    private void submitPendingDeclaration() throws RemoteException {
+        ServiceDeclaration declaration = getPendingDeclaration();
+        if (declaration == null || !declaration.mDeclared) return;
+        if (!declaration.mSubmitted.compareAndSet(false, true)) return;
+
+        declaration.mStartTimeMillis = SystemClock.elapsedRealtime();
+        declaration.mState = ServiceDeclaration.STATE_ADDING_SERVICE;
+        ServiceDeclaration.Entry entry = declaration.getNext();
+        if (entry == null || entry.type != ServiceDeclaration.TYPE_SERVICE) {
+            finishServiceDeclaration(declaration, BluetoothGatt.GATT_FAILURE);
+            return;
+        }
+        if (entry.advertisePreferred) {
+            mAdvertisingServiceUuids.add(entry.uuid);
+        }
+        gattServerAddServiceNative(declaration.mServerIf, entry.serviceType,
+            entry.instance,
+            entry.uuid.getLeastSignificantBits(),
+            entry.uuid.getMostSignificantBits(),
+            declaration.getNumHandles());
+    }
+
     private void continueServiceDeclaration(int serverIf, int status, int srvcHandle) throws RemoteException {
-        if (mServiceDeclarations.size() == 0) return;
-        if (DBG) Log.d(TAG, "continueServiceDeclaration() - srvcHandle=" + srvcHandle);
+        ServiceDeclaration declaration = getPendingDeclaration();
+        if (declaration == null || !declaration.mSubmitted.get()) return;
+        if (DBG) Log.d(TAG, "continueServiceDeclaration() - srvcHandle=" + srvcHandle
+            + ", status=" + status);
 
-        boolean finished = false;
+        if (declaration.mState == ServiceDeclaration.STATE_ADDING_SERVICE) {
+            declaration.mServiceHandle = srvcHandle;
+            if (status != 0) {
+                finishServiceDeclaration(declaration, status);
+                return;
+            }
+            addPendingAttributes(declaration);
+        } else {
+            declaration.mOutstanding--;
+            if (declaration.mStatus == 0) declaration.mStatus = status;
+        }
 
-        ServiceDeclaration.Entry entry = null;
-        if (status == 0)
-            entry = getPendingDeclaration().getNext();
+        if (declaration.mOutstanding == 0) {
+            // Every attribute is in place; only start a complete service.
+            if (declaration.mStatus == 0 && !declaration.mIncludeMissing) {
+                gattServerStartServiceNative(declaration.mServerIf, declaration.mServiceHandle,
+                    (byte)BluetoothDevice.TRANSPORT_BREDR | BluetoothDevice.TRANSPORT_LE);
+            }
+            finishServiceDeclaration(declaration, declaration.mStatus);
+        }
+    }
+
+    // Issues all characteristics, descriptors and included services of the
+    // service back to back. The stack adds them in order, each descriptor to
+    // the characteristic added before it, so there's no need to wait for each
+    // completion before issuing the next attribute. The service is started
+    // once the last of them completed.
+    private void addPendingAttributes(ServiceDeclaration declaration) {
+        declaration.mState = ServiceDeclaration.STATE_ADDING_ATTRIBUTES;
+        int serverIf = declaration.mServerIf;
+        int srvcHandle = declaration.mServiceHandle;
 
-        if (entry != null) {
+        ServiceDeclaration.Entry entry;
+        while (!declaration.mIncludeMissing && (entry = declaration.getNext()) != null) {
             if (DBG) Log.d(TAG, "continueServiceDeclaration() - next entry type="
                 + entry.type);
             switch(entry.type) {
-                case ServiceDeclaration.TYPE_SERVICE:
-                    if (entry.advertisePreferred) {
-                        mAdvertisingServiceUuids.add(entry.uuid);
-                    }
-                    gattServerAddServiceNative(serverIf, entry.serviceType,
-                        entry.instance,
-                        entry.uuid.getLeastSignificantBits(),
-                        entry.uuid.getMostSignificantBits(),
-                        getPendingDeclaration().getNumHandles());
-                    break;
-
                 case ServiceDeclaration.TYPE_CHARACTERISTIC:
+                    declaration.mOutstanding++;
                     gattServerAddCharacteristicNative(serverIf, srvcHandle,
                         entry.uuid.getLeastSignificantBits(),
                         entry.uuid.getMostSignificantBits(),
@@ -2225,6 +2750,7 @@ public class GattService extends ProfileService {
                     break;
 
                 case ServiceDeclaration.TYPE_DESCRIPTOR:
+                    declaration.mOutstanding++;
                     gattServerAddDescriptorNative(serverIf, srvcHandle,
                         entry.uuid.getLeastSignificantBits(),
                         entry.uuid.getMostSignificantBits(),
@@ -2236,39 +2762,38 @@ public class GattService extends ProfileService {
                     int inclSrvc = mHandleMap.getServiceHandle(entry.uuid,
                                             entry.serviceType, entry.instance);
                     if (inclSrvc != 0) {
+                        declaration.mOutstanding++;
                         gattServerAddIncludedServiceNative(serverIf, srvcHandle,
                                                            inclSrvc);
                     } else {
-                        finished = true;
+                        declaration.mIncludeMissing = true;
                     }
                     break;
                 }
             }
-        } else {
-            gattServerStartServiceNative(serverIf, srvcHandle,
-                (byte)BluetoothDevice.TRANSPORT_BREDR | BluetoothDevice.TRANSPORT_LE);
-            finished = true;
+            declaration.mNumAttributes++;
         }
+    }
 
-        if (finished) {
-            if (DBG) Log.d(TAG, "continueServiceDeclaration() - completed.");
-            ServerMap.App app = mServerMap.getById(serverIf);
-            if (app != null) {
-                HandleMap.Entry serviceEntry = mHandleMap.getByHandle(srvcHandle);
+    private void finishServiceDeclaration(ServiceDeclaration declaration, int status)
+            throws RemoteException {
+        if (DBG) Log.d(TAG, "continueServiceDeclaration() - completed.");
+        mServiceRegistrationStats.recordService(status, declaration.mNumAttributes,
+                SystemClock.elapsedRealtime() - declaration.mStartTimeMillis);
 
-                if (serviceEntry != null) {
-                    app.callback.onServiceAdded(status, serviceEntry.serviceType,
-                        serviceEntry.instance, new ParcelUuid(serviceEntry.uuid));
-                } else {
-                    app.callback.onServiceAdded(status, 0, 0, null);
-                }
-            }
-            removePendingDeclaration();
+        ServerMap.App app = mServerMap.getById(declaration.mServerIf);
+        if (app != null) {
+            HandleMap.Entry serviceEntry = mHandleMap.getByHandle(declaration.mServiceHandle);
 
-            if (getPendingDeclaration() != null) {
-                continueServiceDeclaration(serverIf, (byte)0, 0);
+            if (serviceEntry != null) {
+                app.callback.onServiceAdded(status, serviceEntry.serviceType,
+                    serviceEntry.instance, new ParcelUuid(serviceEntry.uuid));
+            } else {
+                app.callback.onServiceAdded(status, 0, 0, null);
             }
         }
+        removePendingDeclaration();
+        submitPendingDeclaration();
     }
 
     private void stopNextService(int serverIf, int status) throws RemoteException {
@@ -2311,36 +2836,6 @@ public class GattService extends ProfileService {
         }
     }
 
-    private List<UUID> parseUuids(byte[] adv_data) {
-        List<UUID> uuids = new ArrayList<UUID>();
-
-        int offset = 0;
-        while(offset < (adv_data.length-2)) {
-            int len = adv_data[offset++];
-            if (len == 0) break;
-
-            int type = adv_data[offset++];
-            switch (type) {
-                case 0x02: // Partial list of 16-bit UUIDs
-                case 0x03: // Complete list of 16-bit UUIDs
-                    while (len > 1) {
-                        int uuid16 = adv_data[offset++];
-                        uuid16 += (adv_data[offset++] << 8);
-                        len -= 2;
-                        uuids.add(UUID.fromString(String.format(
-                            "%08x-0000-1000-8000-00805f9b34fb", uuid16)));
-                    }
-                    break;
-
-                default:
-                    offset += (len - 1);
-                    break;
-            }
-        }
-
-        return uuids;
-    }
-
     @Override
     public void dump(StringBuilder sb) {
         super.dump(sb);
@@ -2352,10 +2847,36 @@ public class GattService extends ProfileService {
             println(sb, "  " + declaration);
         }
         println(sb, "mMaxScanFilters: " + mMaxScanFilters);
+        mServiceRegistrationStats.dump(sb);
+
+        if (mScanManager != null) {
+            sb.append("\nGATT Scan Manager\n");
+            mScanManager.dump(sb);
+        }
+
+        if (mAdvertiseManager != null) {
+            sb.append("\nGATT Advertise Manager\n");
+            mAdvertiseManager.dump(sb);
+        }
+
+        ScanResultDispatcher dispatcher = mScanResultDispatcher;
+        if (dispatcher != null) {
+            sb.append("\nGATT Scan Result Dispatcher\n");
+            dispatcher.dump(sb);
+        }
 
         sb.append("\nGATT Client Map\n");
         mClientMap.dump(sb);
 
+        sb.append("\nGATT Client Operation Latency\n");
+        mLatencyTracker.dump(sb);
+
+        if (mAttributeCache != null) {
+            sb.append("\nGATT Attribute Cache\n");
+            mDiscoveryAccumulator.dump(sb);
+            mAttributeCache.dump(sb);
+        }
+
         sb.append("\nGATT Server Map\n");
         mServerMap.dump(sb);
 
@@ -16,6 +16,7 @@
 package com.android.bluetooth.gatt;
 
 import android.util.Log;
+import android.util.SparseArray;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -84,9 +85,49 @@ class HandleMap {
         }
     }
 
+    /**
+     * Lookup key for services (uuid, service type, instance) and
+     * characteristics (uuid, service handle, instance).
+     */
+    private static class AttributeKey {
+        final int type;
+        final UUID uuid;
+        // Service type for services, service handle for characteristics.
+        final int scope;
+        final int instance;
+
+        AttributeKey(int type, UUID uuid, int scope, int instance) {
+            this.type = type;
+            this.uuid = uuid;
+            this.scope = scope;
+            this.instance = instance;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            AttributeKey other = (AttributeKey) obj;
+            return type == other.type && scope == other.scope && instance == other.instance
+                    && uuid.equals(other.uuid);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((uuid.hashCode() * 31 + type) * 31 + scope) * 31 + instance;
+        }
+    }
+
     List<Entry> mEntries = null;
     Map<Integer, Integer> mRequestMap = null;
     int mLastCharacteristic = 0;
+    // Indices over mEntries, the first matching entry wins like a linear search would.
+    private final SparseArray<Entry> mEntriesByHandle = new SparseArray<Entry>();
+    private final Map<AttributeKey, Entry> mEntriesByKey = new HashMap<AttributeKey, Entry>();
 
     HandleMap() {
         mEntries = new ArrayList<Entry>();
@@ -96,78 +137,117 @@ class HandleMap {
     void clear() {
         mEntries.clear();
         mRequestMap.clear();
+        mEntriesByHandle.clear();
+        mEntriesByKey.clear();
     }
 
     void addService(int serverIf, int handle, UUID uuid, int serviceType, int instance,
         boolean advertisePreferred) {
-        mEntries.add(new Entry(serverIf, handle, uuid, serviceType, instance, advertisePreferred));
+        addEntry(new Entry(serverIf, handle, uuid, serviceType, instance, advertisePreferred));
     }
 
     void addCharacteristic(int serverIf, int handle, UUID uuid, int serviceHandle) {
         mLastCharacteristic = handle;
-        mEntries.add(new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle));
+        addEntry(new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle));
     }
 
     void addDescriptor(int serverIf, int handle, UUID uuid, int serviceHandle) {
-        mEntries.add(new Entry(serverIf, TYPE_DESCRIPTOR, handle, uuid, serviceHandle, mLastCharacteristic));
+        addEntry(new Entry(serverIf, TYPE_DESCRIPTOR, handle, uuid, serviceHandle, mLastCharacteristic));
+    }
+
+    private void addEntry(Entry entry) {
+        mEntries.add(entry);
+        index(entry);
+    }
+
+    private void index(Entry entry) {
+        if (mEntriesByHandle.get(entry.handle) == null) {
+            mEntriesByHandle.put(entry.handle, entry);
+        }
+        AttributeKey key = getKey(entry);
+        if (key != null && !mEntriesByKey.containsKey(key)) {
+            mEntriesByKey.put(key, entry);
+        }
+    }
+
+    private static AttributeKey getKey(Entry entry) {
+        switch (entry.type) {
+            case TYPE_SERVICE:
+                return new AttributeKey(TYPE_SERVICE, entry.uuid, entry.serviceType,
+                        entry.instance);
+            case TYPE_CHARACTERISTIC:
+                return new AttributeKey(TYPE_CHARACTERISTIC, entry.uuid, entry.serviceHandle,
+                        entry.instance);
+            default:
+                return null;
+        }
     }
 
     void setStarted(int serverIf, int handle, boolean started) {
-        for(Entry entry : mEntries) {
-            if (entry.type != TYPE_SERVICE ||
-                entry.serverIf != serverIf ||
-                entry.handle != handle)
+        Entry entry = mEntriesByHandle.get(handle);
+        if (entry != null && entry.type == TYPE_SERVICE && entry.serverIf == serverIf) {
+            entry.started = started;
+            return;
+        }
+        // Handle is shadowed by an entry of another server, fall back to a full search.
+        for(Entry e : mEntries) {
+            if (e.type != TYPE_SERVICE ||
+                e.serverIf != serverIf ||
+                e.handle != handle)
                 continue;
 
-            entry.started = started;
+            e.started = started;
             return;
         }
     }
 
     Entry getByHandle(int handle) {
-        for(Entry entry : mEntries) {
-            if (entry.handle == handle)
-                return entry;
+        Entry entry = mEntriesByHandle.get(handle);
+        if (entry == null) {
+            Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
         }
-        Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
-        return null;
+        return entry;
     }
 
     int getServiceHandle(UUID uuid, int serviceType, int instance) {
-        for(Entry entry : mEntries) {
-            if (entry.type == TYPE_SERVICE &&
-                entry.serviceType == serviceType &&
-                entry.instance == instance &&
-                entry.uuid.equals(uuid)) {
-                return entry.handle;
-            }
+        Entry entry = mEntriesByKey.get(
+                new AttributeKey(TYPE_SERVICE, uuid, serviceType, instance));
+        if (entry == null) {
+            Log.e(TAG, "getServiceHandle() - UUID " + uuid + " not found!");
+            return 0;
         }
-        Log.e(TAG, "getServiceHandle() - UUID " + uuid + " not found!");
-        return 0;
+        return entry.handle;
     }
 
     int getCharacteristicHandle(int serviceHandle, UUID uuid, int instance) {
-        for(Entry entry : mEntries) {
-            if (entry.type == TYPE_CHARACTERISTIC &&
-                entry.serviceHandle == serviceHandle &&
-                entry.instance == instance &&
-                entry.uuid.equals(uuid)) {
-                return entry.handle;
-            }
+        Entry entry = mEntriesByKey.get(
+                new AttributeKey(TYPE_CHARACTERISTIC, uuid, serviceHandle, instance));
+        if (entry == null) {
+            Log.e(TAG, "getCharacteristicHandle() - Service " + serviceHandle
+                        + ", UUID " + uuid + " not found!");
+            return 0;
         }
-        Log.e(TAG, "getCharacteristicHandle() - Service " + serviceHandle
-                    + ", UUID " + uuid + " not found!");
-        return 0;
+        return entry.handle;
     }
 
     void deleteService(int serverIf, int serviceHandle) {
+        boolean removed = false;
         for(Iterator <Entry> it = mEntries.iterator(); it.hasNext();) {
             Entry entry = it.next();
             if (entry.serverIf != serverIf) continue;
 
             if (entry.handle == serviceHandle ||
-                entry.serviceHandle == serviceHandle)
+                entry.serviceHandle == serviceHandle) {
                 it.remove();
+                removed = true;
+            }
+        }
+        if (!removed) return;
+        // Rebuild the indices so entries shadowed by the removed ones become visible.
+        mEntriesByHandle.clear();
+        mEntriesByKey.clear();
+        for (Entry entry : mEntries) {
+            index(entry);
         }
     }
 
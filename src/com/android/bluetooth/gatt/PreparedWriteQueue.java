@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prepared write queue of a connection to a local GATT server.
+ *
+ * Prepare Write requests are assembled here instead of being forwarded to the
+ * server app fragment by fragment. On Execute Write the fragments of each
+ * attribute are coalesced into a single value, so the app sees one write per
+ * attribute. Memory is bounded per connection and per attribute, and the
+ * fragment offsets of an attribute have to be contiguous.
+ *
+ * @hide
+ */
+/* package */class PreparedWriteQueue {
+    // ATT error returned when the prepare queue can't hold another fragment.
+    static final int ATT_PREPARE_QUEUE_FULL = 0x09;
+
+    // Largest attribute value allowed by the GATT specification.
+    static final int MAX_ATTRIBUTE_LENGTH = 512;
+    // Bytes buffered per connection.
+    static final int MAX_QUEUE_BYTES = 8 * MAX_ATTRIBUTE_LENGTH;
+
+    /**
+     * Coalesced value of one attribute.
+     */
+    static class Write {
+        final int handle;
+        final int offset;
+        private byte[] mValue = new byte[0];
+        private int mNumFragments;
+        private boolean mInvalidOffset;
+
+        private Write(int handle, int offset) {
+            this.handle = handle;
+            this.offset = offset;
+        }
+
+        byte[] getValue() {
+            return mValue;
+        }
+
+        int getNumFragments() {
+            return mNumFragments;
+        }
+
+        private void add(int offset, byte[] value) {
+            mNumFragments++;
+            int position = offset - this.offset;
+            if (position < 0 || position > mValue.length) {
+                mInvalidOffset = true;
+                return;
+            }
+            int end = position + value.length;
+            if (end > mValue.length) mValue = Arrays.copyOf(mValue, end);
+            System.arraycopy(value, 0, mValue, position, value.length);
+        }
+    }
+
+    // Pending writes keyed by handle, in the order they were first prepared.
+    private final Map<Integer, Write> mWrites = new LinkedHashMap<Integer, Write>();
+    private int mQueuedBytes;
+
+    // Statistics for dump().
+    private long mNumFragments;
+    private long mNumExecuted;
+    private long mNumCancelled;
+    private long mNumRejected;
+    private int mMaxQueuedBytes;
+
+    /**
+     * Queues a fragment. Returns the ATT status to send in the Prepare Write
+     * response.
+     */
+    synchronized int prepare(int handle, int offset, byte[] value) {
+        if (mQueuedBytes + value.length > MAX_QUEUE_BYTES) {
+            mNumRejected++;
+            return ATT_PREPARE_QUEUE_FULL;
+        }
+        Write write = mWrites.get(handle);
+        if (write == null) {
+            write = new Write(handle, offset);
+            mWrites.put(handle, write);
+        }
+        write.add(offset, value);
+        mQueuedBytes += value.length;
+        mMaxQueuedBytes = Math.max(mMaxQueuedBytes, mQueuedBytes);
+        mNumFragments++;
+        return BluetoothGatt.GATT_SUCCESS;
+    }
+
+    /**
+     * Returns the ATT status of executing the queue: an offset or length error
+     * if one of the coalesced values is invalid, success otherwise.
+     */
+    synchronized int validate() {
+        for (Write write : mWrites.values()) {
+            if (write.mInvalidOffset) return BluetoothGatt.GATT_INVALID_OFFSET;
+            if (write.offset + write.mValue.length > MAX_ATTRIBUTE_LENGTH) {
+                return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+            }
+        }
+        return BluetoothGatt.GATT_SUCCESS;
+    }
+
+    /**
+     * Returns the coalesced writes and empties the queue.
+     */
+    synchronized List<Write> execute() {
+        List<Write> writes = new ArrayList<Write>(mWrites.values());
+        mNumExecuted++;
+        reset();
+        return writes;
+    }
+
+    synchronized void cancel() {
+        mNumCancelled++;
+        reset();
+    }
+
+    synchronized boolean isEmpty() {
+        return mWrites.isEmpty();
+    }
+
+    private void reset() {
+        mWrites.clear();
+        mQueuedBytes = 0;
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        if (mNumFragments == 0 && mNumRejected == 0) return;
+        sb.append("      Prepared writes: fragments=" + mNumFragments + ", executed="
+                + mNumExecuted + ", cancelled=" + mNumCancelled + ", rejected="
+                + mNumRejected + ", queuedBytes=" + mQueuedBytes + ", maxQueuedBytes="
+                + mMaxQueuedBytes + "\n");
+    }
+}
@@ -42,6 +42,10 @@ import java.util.UUID;
     boolean hasPeersMacAddressPermission;
     // Pre-M apps are allowed to get scan results even if location is disabled
     boolean legacyForegroundApp;
+    // Snapshot of the permission and location checks, refreshed on location mode changes.
+    volatile boolean hasScanResultPermission;
+    // Non-null if results are batched in software instead of by the controller.
+    ScanResultCoalescer resultCoalescer;
 
     private static final ScanSettings DEFAULT_SCAN_SETTINGS = new ScanSettings.Builder()
             .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY).build();
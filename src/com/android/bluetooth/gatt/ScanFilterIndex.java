@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanFilter;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Immutable index over the scan filters of a set of scan clients.
+ *
+ * Each {@link ScanFilter} is keyed by the cheapest field that must match for the
+ * filter to pass: device address, unmasked service UUID or manufacturer ID.
+ * Filters without such a field end up in a residual list and make their client a
+ * candidate for every advertisement. The index only narrows down the set of
+ * clients; candidates must still be checked with {@link ScanFilter#matches}.
+ *
+ * A new index is built by {@link ScanManager} whenever the regular scan queue
+ * changes, so readers never observe a partially updated index.
+ *
+ * @hide
+ */
+/* package */class ScanFilterIndex {
+    private final ScanClient[] mClients;
+    // Clients that receive every advertisement (no filters or residual filters).
+    private final int[] mAlwaysCandidates;
+    private final Map<String, int[]> mByAddress;
+    private final SparseArray<int[]> mByShortUuid;
+    private final UUID[] mLongUuids;
+    private final int[][] mByLongUuid;
+    private final SparseArray<int[]> mByManufacturerId;
+
+    // Scratch space for getCandidates(), only used from the scan result processing thread.
+    private final boolean[] mCandidates;
+
+    private ScanFilterIndex(Collection<ScanClient> clients) {
+        mClients = clients.toArray(new ScanClient[clients.size()]);
+        mCandidates = new boolean[mClients.length];
+
+        List<Integer> always = new ArrayList<Integer>();
+        Map<String, List<Integer>> byAddress = new HashMap<String, List<Integer>>();
+        Map<Long, List<Integer>> byShortUuid = new HashMap<Long, List<Integer>>();
+        Map<UUID, List<Integer>> byLongUuid = new HashMap<UUID, List<Integer>>();
+        Map<Integer, List<Integer>> byManufacturerId = new HashMap<Integer, List<Integer>>();
+
+        for (int i = 0; i < mClients.length; i++) {
+            ScanClient client = mClients[i];
+            if (client.uuids != null && client.uuids.length > 0) {
+                // Legacy UUID clients need all UUIDs present, index on the first one.
+                addUuid(client.uuids[0], i, byShortUuid, byLongUuid);
+                continue;
+            }
+            if (client.filters == null || client.filters.isEmpty()) {
+                always.add(i);
+                continue;
+            }
+            for (ScanFilter filter : client.filters) {
+                if (filter.getDeviceAddress() != null) {
+                    add(byAddress, filter.getDeviceAddress(), i);
+                } else if (filter.getServiceUuid() != null
+                        && filter.getServiceUuidMask() == null) {
+                    addUuid(filter.getServiceUuid().getUuid(), i, byShortUuid, byLongUuid);
+                } else if (filter.getManufacturerId() >= 0) {
+                    add(byManufacturerId, filter.getManufacturerId(), i);
+                } else {
+                    // Complex or masked filter, can't be indexed.
+                    always.add(i);
+                    break;
+                }
+            }
+        }
+
+        mAlwaysCandidates = toArray(always);
+        mByAddress = new HashMap<String, int[]>();
+        for (Map.Entry<String, List<Integer>> entry : byAddress.entrySet()) {
+            mByAddress.put(entry.getKey(), toArray(entry.getValue()));
+        }
+        mByShortUuid = new SparseArray<int[]>(byShortUuid.size());
+        for (Map.Entry<Long, List<Integer>> entry : byShortUuid.entrySet()) {
+            mByShortUuid.put((int) (long) entry.getKey(), toArray(entry.getValue()));
+        }
+        mLongUuids = new UUID[byLongUuid.size()];
+        mByLongUuid = new int[byLongUuid.size()][];
+        int index = 0;
+        for (Map.Entry<UUID, List<Integer>> entry : byLongUuid.entrySet()) {
+            mLongUuids[index] = entry.getKey();
+            mByLongUuid[index] = toArray(entry.getValue());
+            index++;
+        }
+        mByManufacturerId = new SparseArray<int[]>(byManufacturerId.size());
+        for (Map.Entry<Integer, List<Integer>> entry : byManufacturerId.entrySet()) {
+            mByManufacturerId.put(entry.getKey(), toArray(entry.getValue()));
+        }
+    }
+
+    /**
+     * Builds an index for the given scan clients.
+     */
+    static ScanFilterIndex build(Collection<ScanClient> clients) {
+        return new ScanFilterIndex(clients);
+    }
+
+    /**
+     * Returns all clients covered by this index. The array must not be modified.
+     */
+    ScanClient[] getClients() {
+        return mClients;
+    }
+
+    /**
+     * Marks the clients that may be interested in an advertisement. On return,
+     * {@code result[i]} is true if {@code getClients()[i]} is a candidate. The
+     * returned array is reused by the next call.
+     */
+    boolean[] getCandidates(String address, AdvertisingDataParser parser) {
+        boolean[] candidates = mCandidates;
+        for (int i = 0; i < candidates.length; i++) {
+            candidates[i] = false;
+        }
+        mark(candidates, mAlwaysCandidates);
+        if (!mByAddress.isEmpty() && address != null) {
+            mark(candidates, mByAddress.get(address));
+        }
+        if (mByShortUuid.size() > 0) {
+            for (int i = 0; i < parser.getUuid16Count(); i++) {
+                mark(candidates, mByShortUuid.get(parser.getUuid16(i)));
+            }
+            for (int i = 0; i < parser.getUuid32Count(); i++) {
+                mark(candidates, mByShortUuid.get(parser.getUuid32(i)));
+            }
+            // Base UUID derived services may also be advertised in their 128-bit form.
+            for (int i = 0; i < parser.getUuid128Count(); i++) {
+                long shortUuid = parser.getShortUuid128(i);
+                if (shortUuid >= 0) {
+                    mark(candidates, mByShortUuid.get((int) shortUuid));
+                }
+            }
+        }
+        for (int i = 0; i < mLongUuids.length; i++) {
+            if (parser.containsServiceUuid(mLongUuids[i])) {
+                mark(candidates, mByLongUuid[i]);
+            }
+        }
+        if (mByManufacturerId.size() > 0) {
+            for (int i = 0; i < parser.getManufacturerIdCount(); i++) {
+                mark(candidates, mByManufacturerId.get(parser.getManufacturerId(i)));
+            }
+        }
+        return candidates;
+    }
+
+    private static void mark(boolean[] candidates, int[] clients) {
+        if (clients == null) return;
+        for (int client : clients) {
+            candidates[client] = true;
+        }
+    }
+
+    private static void addUuid(UUID uuid, int client, Map<Long, List<Integer>> byShortUuid,
+            Map<UUID, List<Integer>> byLongUuid) {
+        long shortUuid = AdvertisingDataParser.toShortUuid(uuid);
+        if (shortUuid >= 0) {
+            add(byShortUuid, shortUuid, client);
+        } else {
+            add(byLongUuid, uuid, client);
+        }
+    }
+
+    private static <K> void add(Map<K, List<Integer>> map, K key, int client) {
+        List<Integer> clients = map.get(key);
+        if (clients == null) {
+            clients = new ArrayList<Integer>();
+            map.put(key, clients);
+        }
+        if (!clients.contains(client)) {
+            clients.add(client);
+        }
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+}
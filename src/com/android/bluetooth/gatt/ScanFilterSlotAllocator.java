@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanFilter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Allocates controller filter indices to scan filters.
+ *
+ * Equivalent filters with the same delivery mode are programmed into the
+ * controller once and reference counted, so apps scanning for the same thing
+ * share a hardware slot. Results are demultiplexed per client in software by
+ * {@link GattService}, which matches every result against the client's own
+ * filters anyway. Filters that carry per-client state in the controller, such as
+ * onfound/onlost tracking entries, always get an exclusive slot.
+ *
+ * Not thread-safe, only used from the scan manager handler thread.
+ *
+ * @hide
+ */
+/* package */class ScanFilterSlotAllocator {
+
+    /**
+     * A controller filter index and the clients using it.
+     */
+    static class Slot {
+        final int filterIndex;
+        private final Key mKey;
+        private int mRefCount;
+
+        private Slot(int filterIndex, Key key) {
+            this.filterIndex = filterIndex;
+            mKey = key;
+        }
+
+        /**
+         * Returns true if the filter still needs to be programmed into the
+         * controller, i.e. this is the first client using the slot.
+         */
+        boolean isNew() {
+            return mRefCount == 1;
+        }
+    }
+
+    private static class Key {
+        final ScanFilter filter;
+        final int deliveryMode;
+
+        Key(ScanFilter filter, int deliveryMode) {
+            this.filter = filter;
+            this.deliveryMode = deliveryMode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return deliveryMode == other.deliveryMode && filter.equals(other.filter);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * filter.hashCode() + deliveryMode;
+        }
+    }
+
+    private final Deque<Integer> mFreeIndices = new ArrayDeque<Integer>();
+    private final Map<Key, Slot> mSharedSlots = new HashMap<Key, Slot>();
+    private final Map<Integer, List<Slot>> mClientSlots = new HashMap<Integer, List<Slot>>();
+    private int mCapacity;
+
+    // Statistics for dump().
+    private int mPeakSlotsInUse;
+    private long mNumAllocations;
+    private long mNumSharedAcquisitions;
+    private long mNumAllPassFallbacks;
+
+    /**
+     * Makes the filter indices in [firstIndex, maxFilters) available. Does
+     * nothing if the allocator has already been initialized.
+     */
+    void init(int firstIndex, int maxFilters) {
+        if (isInitialized()) return;
+        for (int i = firstIndex; i < maxFilters; ++i) {
+            mFreeIndices.add(i);
+        }
+        mCapacity = mFreeIndices.size();
+    }
+
+    boolean isInitialized() {
+        return mCapacity > 0;
+    }
+
+    /**
+     * Returns true if all given filters can be placed in the controller, taking
+     * into account slots that can be shared with other clients.
+     */
+    boolean canAllocate(List<ScanFilter> filters, int deliveryMode, boolean shareable) {
+        int needed = 0;
+        Set<Key> pending = new HashSet<Key>();
+        for (ScanFilter filter : filters) {
+            if (!shareable) {
+                needed++;
+                continue;
+            }
+            Key key = new Key(filter, deliveryMode);
+            if (!mSharedSlots.containsKey(key) && pending.add(key)) {
+                needed++;
+            }
+        }
+        return needed <= mFreeIndices.size();
+    }
+
+    /**
+     * Acquires a slot for a filter of the given client. The caller must check
+     * {@link #canAllocate} first. If {@link Slot#isNew} returns true the filter
+     * has to be programmed into the controller.
+     */
+    Slot acquire(int clientIf, ScanFilter filter, int deliveryMode, boolean shareable) {
+        Key key = shareable ? new Key(filter, deliveryMode) : null;
+        Slot slot = key != null ? mSharedSlots.get(key) : null;
+        if (slot != null) {
+            mNumSharedAcquisitions++;
+        } else {
+            slot = new Slot(mFreeIndices.pop(), key);
+            if (key != null) mSharedSlots.put(key, slot);
+            mNumAllocations++;
+            mPeakSlotsInUse = Math.max(mPeakSlotsInUse, getSlotsInUse());
+        }
+        slot.mRefCount++;
+        List<Slot> slots = mClientSlots.get(clientIf);
+        if (slots == null) {
+            slots = new ArrayList<Slot>();
+            mClientSlots.put(clientIf, slots);
+        }
+        slots.add(slot);
+        return slot;
+    }
+
+    /**
+     * Releases all slots of a client. Returns the filter indices that are no
+     * longer used by any client and have to be cleared in the controller.
+     */
+    List<Integer> release(int clientIf) {
+        List<Slot> slots = mClientSlots.remove(clientIf);
+        if (slots == null) return Collections.emptyList();
+        List<Integer> freed = new ArrayList<Integer>();
+        for (Slot slot : slots) {
+            if (--slot.mRefCount > 0) continue;
+            if (slot.mKey != null) mSharedSlots.remove(slot.mKey);
+            mFreeIndices.add(slot.filterIndex);
+            freed.add(slot.filterIndex);
+        }
+        return freed;
+    }
+
+    /**
+     * Records that a client had to fall back to the ALL_PASS filter.
+     */
+    void recordAllPassFallback() {
+        mNumAllPassFallbacks++;
+    }
+
+    private int getSlotsInUse() {
+        return mCapacity - mFreeIndices.size();
+    }
+
+    void dump(StringBuilder sb) {
+        sb.append("  Filter slots: capacity=" + mCapacity + ", inUse=" + getSlotsInUse()
+                + ", peak=" + mPeakSlotsInUse + ", shared=" + mSharedSlots.size() + "\n");
+        sb.append("  Filter allocations: " + mNumAllocations + ", shared acquisitions: "
+                + mNumSharedAcquisitions + ", ALL_PASS fallbacks: " + mNumAllPassFallbacks
+                + "\n");
+    }
+}
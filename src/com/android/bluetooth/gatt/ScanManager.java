@@ -34,17 +34,14 @@ import android.os.RemoteException;
 import android.os.SystemClock;
 import android.util.Log;
 
+import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Class that handles Bluetooth LE scan related operations.
@@ -64,6 +61,8 @@ public class ScanManager {
     private static final int MSG_START_BLE_SCAN = 0;
     private static final int MSG_STOP_BLE_SCAN = 1;
     private static final int MSG_FLUSH_BATCH_RESULTS = 2;
+    private static final int MSG_FLUSH_COALESCED_RESULTS = 3;
+    private static final int MSG_RECONFIGURE_SCAN_PARAMS = 4;
 
     private static final String ACTION_REFRESH_BATCHED_SCAN =
             "com.android.bluetooth.gatt.REFRESH_BATCHED_SCAN";
@@ -71,7 +70,8 @@ public class ScanManager {
     // Timeout for each controller operation.
     private static final int OPERATION_TIME_OUT_MILLIS = 500;
 
-    private int mLastConfiguredScanSetting = Integer.MIN_VALUE;
+    // Merges the duty cycles of the regular scan clients.
+    private final ScanParamArbiter mScanParamArbiter;
     // Scan parameters for batch scan.
     private BatchScanParams mBatchScanParms;
 
@@ -83,14 +83,29 @@ public class ScanManager {
     private ClientHandler mHandler;
 
     private Set<ScanClient> mRegularScanClients;
+    // Concurrent, batch reports are parsed off the handler thread.
     private Set<ScanClient> mBatchClients;
+    // Filter index over mRegularScanClients, rebuilt whenever the queue changes.
+    private volatile ScanFilterIndex mRegularScanIndex;
 
-    private CountDownLatch mLatch;
+    // Controller commands waiting for their completion callback.
+    private final ControllerCommandQueue mCommandQueue = new ControllerCommandQueue(TAG);
+
+    // Software batching of regular scan results, see ScanResultCoalescer.
+    private final int mSoftwareBatchMaxReportDelayMillis;
+    private final int mSoftwareBatchMaxResults;
 
     ScanManager(GattService service) {
         mRegularScanClients = new HashSet<ScanClient>();
-        mBatchClients = new HashSet<ScanClient>();
+        mBatchClients = Collections.newSetFromMap(new ConcurrentHashMap<ScanClient, Boolean>());
+        mRegularScanIndex = ScanFilterIndex.build(mRegularScanClients);
         mService = service;
+        mSoftwareBatchMaxReportDelayMillis = service.getResources().getInteger(
+                R.integer.gatt_software_batch_max_report_delay_ms);
+        mSoftwareBatchMaxResults = service.getResources().getInteger(
+                R.integer.gatt_software_batch_max_results);
+        mScanParamArbiter = new ScanParamArbiter(service.getResources().getInteger(
+                R.integer.gatt_low_latency_scan_burst_ms));
         mScanNative = new ScanNative();
         curUsedTrackableAdvertisements = 0;
     }
@@ -103,6 +118,7 @@ public class ScanManager {
 
     void cleanup() {
         mRegularScanClients.clear();
+        updateRegularScanIndex();
         mBatchClients.clear();
         mScanNative.cleanup();
     }
@@ -114,6 +130,17 @@ public class ScanManager {
         return mRegularScanClients;
     }
 
+    /**
+     * Returns the filter index of the regular scan queue.
+     */
+    ScanFilterIndex getRegularScanIndex() {
+        return mRegularScanIndex;
+    }
+
+    private void updateRegularScanIndex() {
+        mRegularScanIndex = ScanFilterIndex.build(mRegularScanClients);
+    }
+
     /**
      * Returns batch scan queue.
      */
@@ -148,11 +175,19 @@ public class ScanManager {
         sendMessage(MSG_FLUSH_BATCH_RESULTS, client);
     }
 
-    void callbackDone(int clientIf, int status) {
+    /**
+     * Schedules delivery of the coalesced results of a software batch client,
+     * replacing a flush that is already scheduled.
+     */
+    void flushCoalescedResults(ScanClient client, long delayMillis) {
+        mHandler.removeMessages(MSG_FLUSH_COALESCED_RESULTS, client);
+        Message message = mHandler.obtainMessage(MSG_FLUSH_COALESCED_RESULTS, client);
+        mHandler.sendMessageDelayed(message, delayMillis);
+    }
+
+    void callbackDone(int clientIf, int opcode, int status) {
         logd("callback done for clientIf - " + clientIf + " status - " + status);
-        if (status == 0) {
-            mLatch.countDown();
-        }
+        mCommandQueue.complete(opcode, clientIf, status);
         // TODO: add a callback for scan failure.
     }
 
@@ -188,6 +223,12 @@ public class ScanManager {
                 case MSG_FLUSH_BATCH_RESULTS:
                     handleFlushBatchResults(client);
                     break;
+                case MSG_FLUSH_COALESCED_RESULTS:
+                    mService.deliverCoalescedScanResults(client);
+                    break;
+                case MSG_RECONFIGURE_SCAN_PARAMS:
+                    mScanNative.configureRegularScanParams();
+                    break;
                 default:
                     // Shouldn't happen.
                     Log.e(TAG, "received an unkown message : " + msg.what);
@@ -208,11 +249,16 @@ public class ScanManager {
                 return;
             }
             // Begin scan operations.
+            if (isSoftwareBatchClient(client)) {
+                client.resultCoalescer = new ScanResultCoalescer(mSoftwareBatchMaxResults);
+            }
             if (isBatchClient(client)) {
                 mBatchClients.add(client);
                 mScanNative.startBatchScan(client);
             } else {
                 mRegularScanClients.add(client);
+                mService.acceptScanResults(client);
+                updateRegularScanIndex();
                 mScanNative.startRegularScan(client);
                 if (!mScanNative.isOpportunisticScanClient(client)) {
                     mScanNative.configureRegularScanParams();
@@ -239,10 +285,25 @@ public class ScanManager {
 
         void handleFlushBatchResults(ScanClient client) {
             Utils.enforceAdminPermission(mService);
-            if (!mBatchClients.contains(client)) {
+            if (mBatchClients.contains(client)) {
+                mScanNative.flushBatchResults(client.clientIf);
                 return;
             }
-            mScanNative.flushBatchResults(client.clientIf);
+            // Software batch clients are regular scan clients, their results are
+            // buffered by the service instead of the controller.
+            ScanClient regularClient = getRegularScanClient(client);
+            if (regularClient != null && regularClient.resultCoalescer != null) {
+                removeMessages(MSG_FLUSH_COALESCED_RESULTS, regularClient);
+                mService.deliverCoalescedScanResults(regularClient);
+            }
+        }
+
+        // The flush request only carries the client id, find the registered client.
+        private ScanClient getRegularScanClient(ScanClient client) {
+            for (ScanClient regularClient : mRegularScanClients) {
+                if (regularClient.equals(client)) return regularClient;
+            }
+            return null;
         }
 
         private boolean isBatchClient(ScanClient client) {
@@ -251,7 +312,7 @@ public class ScanManager {
             }
             ScanSettings settings = client.settings;
             return settings.getCallbackType() == ScanSettings.CALLBACK_TYPE_ALL_MATCHES &&
-                    settings.getReportDelayMillis() != 0;
+                    settings.getReportDelayMillis() != 0 && !isSoftwareBatchClient(client);
         }
 
         private boolean isScanSupported(ScanClient client) {
@@ -259,7 +320,7 @@ public class ScanManager {
                 return true;
             }
             ScanSettings settings = client.settings;
-            if (isFilteringSupported()) {
+            if (isFilteringSupported() || isSoftwareBatchClient(client)) {
                 return true;
             }
             return settings.getCallbackType() == ScanSettings.CALLBACK_TYPE_ALL_MATCHES &&
@@ -267,6 +328,19 @@ public class ScanManager {
         }
     }
 
+    // Check if a batch scan client should be served by coalescing regular scan results
+    // in software. Controller batching is not worth it for short report delays.
+    private boolean isSoftwareBatchClient(ScanClient client) {
+        if (client == null || client.settings == null) {
+            return false;
+        }
+        ScanSettings settings = client.settings;
+        return settings.getCallbackType() == ScanSettings.CALLBACK_TYPE_ALL_MATCHES
+                && settings.getScanResultType() == ScanSettings.SCAN_RESULT_TYPE_FULL
+                && settings.getReportDelayMillis() > 0
+                && settings.getReportDelayMillis() <= mSoftwareBatchMaxReportDelayMillis;
+    }
+
     /**
      * Parameters for batch scans.
      */
@@ -316,16 +390,6 @@ public class ScanManager {
 
         private static final int DISCARD_OLDEST_WHEN_BUFFER_FULL = 0;
 
-        /**
-         * Scan params corresponding to regular scan setting
-         */
-        private static final int SCAN_MODE_LOW_POWER_WINDOW_MS = 500;
-        private static final int SCAN_MODE_LOW_POWER_INTERVAL_MS = 5000;
-        private static final int SCAN_MODE_BALANCED_WINDOW_MS = 2000;
-        private static final int SCAN_MODE_BALANCED_INTERVAL_MS = 5000;
-        private static final int SCAN_MODE_LOW_LATENCY_WINDOW_MS = 5000;
-        private static final int SCAN_MODE_LOW_LATENCY_INTERVAL_MS = 5000;
-
         /**
          * Onfound/onlost for scan settings
          */
@@ -347,10 +411,9 @@ public class ScanManager {
         // The logic is AND for each filter field.
         private static final int LIST_LOGIC_TYPE = 0x1111111;
         private static final int FILTER_LOGIC_TYPE = 1;
-        // Filter indices that are available to user. It's sad we need to maintain filter index.
-        private final Deque<Integer> mFilterIndexStack;
-        // Map of clientIf and Filter indices used by client.
-        private final Map<Integer, Deque<Integer>> mClientFilterIndexMap;
+        // Filter indices that are available to user, shared between equivalent filters.
+        private final ScanFilterSlotAllocator mFilterSlotAllocator =
+                new ScanFilterSlotAllocator();
         // Keep track of the clients that uses ALL_PASS filters.
         private final Set<Integer> mAllPassRegularClients = new HashSet<>();
         private final Set<Integer> mAllPassBatchClients = new HashSet<>();
@@ -359,9 +422,6 @@ public class ScanManager {
         private PendingIntent mBatchScanIntervalIntent;
 
         ScanNative() {
-            mFilterIndexStack = new ArrayDeque<Integer>();
-            mClientFilterIndexMap = new HashMap<Integer, Deque<Integer>>();
-
             mAlarmManager = (AlarmManager) mService.getSystemService(Context.ALARM_SERVICE);
             Intent batchIntent = new Intent(ACTION_REFRESH_BATCHED_SCAN, null);
             batchIntent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
@@ -387,71 +447,52 @@ public class ScanManager {
             mBatchAlarmReceiverRegistered = true;
         }
 
-        private void resetCountDownLatch() {
-            mLatch = new CountDownLatch(1);
+        // Must be called before issuing the native command it tracks.
+        private void submitCommand(String name, int opcode, int clientIf) {
+            mCommandQueue.submit(name, opcode, clientIf);
         }
 
-        // Returns true if mLatch reaches 0, false if timeout or interrupted.
-        private boolean waitForCallback() {
-            try {
-                return mLatch.await(OPERATION_TIME_OUT_MILLIS, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-                return false;
-            }
+        // Returns true if all outstanding commands succeeded, false on failure or timeout.
+        private boolean waitForCommands() {
+            return mCommandQueue.awaitAll(OPERATION_TIME_OUT_MILLIS);
         }
 
         void configureRegularScanParams() {
             logd("configureRegularScanParams() - queue=" + mRegularScanClients.size());
-            int curScanSetting = Integer.MIN_VALUE;
-            ScanClient client = getAggressiveClient(mRegularScanClients);
-            if (client != null) {
-                curScanSetting = client.settings.getScanMode();
-            }
-
-            logd("configureRegularScanParams() - ScanSetting Scan mode=" + curScanSetting +
-                    " mLastConfiguredScanSetting=" + mLastConfiguredScanSetting);
-
-            if (curScanSetting != Integer.MIN_VALUE &&
-                    curScanSetting != ScanSettings.SCAN_MODE_OPPORTUNISTIC) {
-                if (curScanSetting != mLastConfiguredScanSetting) {
-                    int scanWindow = getScanWindowMillis(client.settings);
-                    int scanInterval = getScanIntervalMillis(client.settings);
-                    // convert scanWindow and scanInterval from ms to LE scan units(0.625ms)
-                    scanWindow = Utils.millsToUnit(scanWindow);
-                    scanInterval = Utils.millsToUnit(scanInterval);
-                    gattClientScanNative(false);
-                    logd("configureRegularScanParams - scanInterval = " + scanInterval +
-                        "configureRegularScanParams - scanWindow = " + scanWindow);
-                    gattSetScanParametersNative(client.clientIf, scanInterval, scanWindow);
-                    gattClientScanNative(true);
-                    mLastConfiguredScanSetting = curScanSetting;
-                }
-            } else {
-                mLastConfiguredScanSetting = curScanSetting;
+            long now = SystemClock.elapsedRealtime();
+            ScanParamArbiter.Schedule schedule =
+                    mScanParamArbiter.arbitrate(mRegularScanClients, now);
+            // Re-arbitrate when a low latency burst ends.
+            mHandler.removeMessages(MSG_RECONFIGURE_SCAN_PARAMS);
+            long nextChangeMillis = mScanParamArbiter.getNextChangeMillis();
+            if (nextChangeMillis >= 0) {
+                mHandler.sendEmptyMessageDelayed(MSG_RECONFIGURE_SCAN_PARAMS,
+                        nextChangeMillis - now);
+            }
+
+            if (schedule == null) {
+                mScanParamArbiter.setCurrent(null);
                 logd("configureRegularScanParams() - queue emtpy, scan stopped");
+                return;
             }
-        }
-
-        ScanClient getAggressiveClient(Set<ScanClient> cList) {
-            ScanClient result = null;
-            int curScanSetting = Integer.MIN_VALUE;
-            for (ScanClient client : cList) {
-                // ScanClient scan settings are assumed to be monotonically increasing in value for
-                // more power hungry(higher duty cycle) operation.
-                if (client.settings.getScanMode() > curScanSetting) {
-                    result = client;
-                    curScanSetting = client.settings.getScanMode();
-                }
+            logd("configureRegularScanParams() - schedule " + schedule);
+            if (schedule.hasSameParams(mScanParamArbiter.getCurrent())) {
+                return;
             }
-            return result;
+            // convert scanWindow and scanInterval from ms to LE scan units(0.625ms)
+            int scanWindow = Utils.millsToUnit(schedule.windowMillis);
+            int scanInterval = Utils.millsToUnit(schedule.intervalMillis);
+            gattClientScanNative(false);
+            logd("configureRegularScanParams - scanInterval = " + scanInterval +
+                "configureRegularScanParams - scanWindow = " + scanWindow);
+            gattSetScanParametersNative(schedule.clientIf, scanInterval, scanWindow);
+            gattClientScanNative(true);
+            mScanParamArbiter.setCurrent(schedule);
         }
 
         void startRegularScan(ScanClient client) {
-            if (isFilteringSupported() && mFilterIndexStack.isEmpty()
-                    && mClientFilterIndexMap.isEmpty()) {
-                initFilterIndexStack();
-            }
             if (isFilteringSupported()) {
+                initFilterIndexStack();
                 configureScanFilters(client);
             }
             // Start scan native only for the first client.
@@ -471,7 +512,7 @@ public class ScanManager {
         }
 
         void startBatchScan(ScanClient client) {
-            if (mFilterIndexStack.isEmpty() && isFilteringSupported()) {
+            if (isFilteringSupported()) {
                 initFilterIndexStack();
             }
             configureScanFilters(client);
@@ -491,9 +532,10 @@ public class ScanManager {
             // Stop batch if batch scan params changed and previous params is not null.
             if (mBatchScanParms != null && (!mBatchScanParms.equals(batchScanParams))) {
                 logd("stopping BLe Batch");
-                resetCountDownLatch();
+                submitCommand("stop batch scan", ControllerCommandQueue.OP_BATCH_SCAN_START_STOP,
+                        clientIf);
                 gattClientStopBatchScanNative(clientIf);
-                waitForCallback();
+                waitForCommands();
                 // Clear pending results as it's illegal to config storage if there are still
                 // pending results.
                 flushBatchResults(clientIf);
@@ -504,19 +546,20 @@ public class ScanManager {
                 logd("Starting BLE batch scan");
                 int resultType = getResultType(batchScanParams);
                 int fullScanPercent = getFullScanStoragePercent(resultType);
-                resetCountDownLatch();
                 logd("configuring batch scan storage, appIf " + client.clientIf);
+                submitCommand("configure batch scan storage",
+                        ControllerCommandQueue.OP_BATCH_SCAN_STORAGE, client.clientIf);
                 gattClientConfigBatchScanStorageNative(client.clientIf, fullScanPercent,
                         100 - fullScanPercent, notifyThreshold);
-                waitForCallback();
-                resetCountDownLatch();
                 int scanInterval =
                         Utils.millsToUnit(getBatchScanIntervalMillis(batchScanParams.scanMode));
                 int scanWindow =
                         Utils.millsToUnit(getBatchScanWindowMillis(batchScanParams.scanMode));
+                submitCommand("start batch scan", ControllerCommandQueue.OP_BATCH_SCAN_START_STOP,
+                        clientIf);
                 gattClientStartBatchScanNative(clientIf, resultType, scanInterval,
                         scanWindow, 0, DISCARD_OLDEST_WHEN_BUFFER_FULL);
-                waitForCallback();
+                waitForCommands();
             }
             mBatchScanParms = batchScanParams;
             setBatchAlarm();
@@ -618,6 +661,13 @@ public class ScanManager {
                 }
             }
             mRegularScanClients.remove(client);
+            updateRegularScanIndex();
+            mService.dropPendingScanResults(client.clientIf);
+            if (client.resultCoalescer != null) {
+                // Drop results that have not been delivered yet.
+                client.resultCoalescer.drain();
+                mHandler.removeMessages(MSG_FLUSH_COALESCED_RESULTS, client);
+            }
             if (numRegularScanClients() == 0) {
                 logd("stop scan");
                 gattClientScanNative(false);
@@ -644,17 +694,20 @@ public class ScanManager {
         void flushBatchResults(int clientIf) {
             logd("flushPendingBatchResults - clientIf = " + clientIf);
             if (mBatchScanParms.fullScanClientIf != -1) {
-                resetCountDownLatch();
+                submitCommand("read full scan reports",
+                        ControllerCommandQueue.OP_BATCH_SCAN_REPORTS,
+                        mBatchScanParms.fullScanClientIf);
                 gattClientReadScanReportsNative(mBatchScanParms.fullScanClientIf,
                         SCAN_RESULT_TYPE_FULL);
-                waitForCallback();
             }
             if (mBatchScanParms.truncatedScanClientIf != -1) {
-                resetCountDownLatch();
+                submitCommand("read truncated scan reports",
+                        ControllerCommandQueue.OP_BATCH_SCAN_REPORTS,
+                        mBatchScanParms.truncatedScanClientIf);
                 gattClientReadScanReportsNative(mBatchScanParms.truncatedScanClientIf,
                         SCAN_RESULT_TYPE_TRUNCATED);
-                waitForCallback();
             }
+            waitForCommands();
             setBatchAlarm();
         }
 
@@ -685,35 +738,41 @@ public class ScanManager {
             int clientIf = client.clientIf;
             int deliveryMode = getDeliveryMode(client);
             int trackEntries = 0;
-            if (!shouldAddAllPassFilterToController(client, deliveryMode)) {
+            boolean useAllPassFilter = shouldUseAllPassFilter(client, deliveryMode);
+            if (useAllPassFilter && client.filters != null && !client.filters.isEmpty()) {
+                mFilterSlotAllocator.recordAllPassFallback();
+            }
+            if (!shouldAddAllPassFilterToController(client, deliveryMode, useAllPassFilter)) {
                 return;
             }
 
-            resetCountDownLatch();
+            // Filter commands are pipelined and waited for once at the end.
+            submitCommand("enable scan filter", ControllerCommandQueue.OP_SCAN_FILTER_ENABLE,
+                    clientIf);
             gattClientScanFilterEnableNative(clientIf, true);
-            waitForCallback();
 
-            if (shouldUseAllPassFilter(client)) {
+            if (useAllPassFilter) {
                 int filterIndex = (deliveryMode == DELIVERY_MODE_BATCH) ?
                         ALL_PASS_FILTER_INDEX_BATCH_SCAN : ALL_PASS_FILTER_INDEX_REGULAR_SCAN;
-                resetCountDownLatch();
                 // Don't allow Onfound/onlost with all pass
                 configureFilterParamter(clientIf, client, ALL_PASS_FILTER_SELECTION,
                                 filterIndex, 0);
-                waitForCallback();
             } else {
-                Deque<Integer> clientFilterIndices = new ArrayDeque<Integer>();
+                boolean shareable = deliveryMode != DELIVERY_MODE_ON_FOUND_LOST;
                 for (ScanFilter filter : client.filters) {
+                    ScanFilterSlotAllocator.Slot slot = mFilterSlotAllocator.acquire(
+                            clientIf, filter, deliveryMode, shareable);
+                    if (!slot.isNew()) {
+                        // Already in the controller for another client.
+                        continue;
+                    }
                     ScanFilterQueue queue = new ScanFilterQueue();
                     queue.addScanFilter(filter);
                     int featureSelection = queue.getFeatureSelection();
-                    int filterIndex = mFilterIndexStack.pop();
+                    int filterIndex = slot.filterIndex;
                     while (!queue.isEmpty()) {
-                        resetCountDownLatch();
                         addFilterToController(clientIf, queue.pop(), filterIndex);
-                        waitForCallback();
                     }
-                    resetCountDownLatch();
                     if (deliveryMode == DELIVERY_MODE_ON_FOUND_LOST) {
                         trackEntries = getNumOfTrackingAdvertisements(client.settings);
                         if (!manageAllocationOfTrackingAdvertisement(trackEntries, true)) {
@@ -729,18 +788,17 @@ public class ScanManager {
                     }
                     configureFilterParamter(clientIf, client, featureSelection, filterIndex,
                                             trackEntries);
-                    waitForCallback();
-                    clientFilterIndices.add(filterIndex);
                 }
-                mClientFilterIndexMap.put(clientIf, clientFilterIndices);
             }
+            waitForCommands();
         }
 
         // Check whether the filter should be added to controller.
         // Note only on ALL_PASS filter should be added.
-        private boolean shouldAddAllPassFilterToController(ScanClient client, int deliveryMode) {
+        private boolean shouldAddAllPassFilterToController(ScanClient client, int deliveryMode,
+                boolean useAllPassFilter) {
             // Not an ALL_PASS client, need to add filter.
-            if (!shouldUseAllPassFilter(client)) {
+            if (!useAllPassFilter) {
                 return true;
             }
 
@@ -754,20 +812,18 @@ public class ScanManager {
         }
 
         private void removeScanFilters(int clientIf) {
-            Deque<Integer> filterIndices = mClientFilterIndexMap.remove(clientIf);
-            if (filterIndices != null) {
-                mFilterIndexStack.addAll(filterIndices);
-                for (Integer filterIndex : filterIndices) {
-                    resetCountDownLatch();
-                    gattClientScanFilterParamDeleteNative(clientIf, filterIndex);
-                    waitForCallback();
-                }
+            // Only clear filters no other client is sharing.
+            for (Integer filterIndex : mFilterSlotAllocator.release(clientIf)) {
+                submitCommand("delete scan filter", ControllerCommandQueue.OP_SCAN_FILTER_PARAMS,
+                        clientIf);
+                gattClientScanFilterParamDeleteNative(clientIf, filterIndex);
             }
             // Remove if ALL_PASS filters are used.
             removeFilterIfExisits(mAllPassRegularClients, clientIf,
                     ALL_PASS_FILTER_INDEX_REGULAR_SCAN);
             removeFilterIfExisits(mAllPassBatchClients, clientIf,
                     ALL_PASS_FILTER_INDEX_BATCH_SCAN);
+            waitForCommands();
         }
 
         private void removeFilterIfExisits(Set<Integer> clients, int clientIf, int filterIndex) {
@@ -777,9 +833,9 @@ public class ScanManager {
             clients.remove(clientIf);
             // Remove ALL_PASS filter iff no app is using it.
             if (clients.isEmpty()) {
-                resetCountDownLatch();
+                submitCommand("delete ALL_PASS scan filter",
+                        ControllerCommandQueue.OP_SCAN_FILTER_PARAMS, clientIf);
                 gattClientScanFilterParamDeleteNative(clientIf, filterIndex);
-                waitForCallback();
             }
         }
 
@@ -809,19 +865,26 @@ public class ScanManager {
         }
 
         // Check if ALL_PASS filter should be used for the client.
-        private boolean shouldUseAllPassFilter(ScanClient client) {
+        private boolean shouldUseAllPassFilter(ScanClient client, int deliveryMode) {
             if (client == null) {
                 return true;
             }
             if (client.filters == null || client.filters.isEmpty()) {
                 return true;
             }
-            return client.filters.size() > mFilterIndexStack.size();
+            return !mFilterSlotAllocator.canAllocate(client.filters, deliveryMode,
+                    deliveryMode != DELIVERY_MODE_ON_FOUND_LOST);
         }
 
         private void addFilterToController(int clientIf, ScanFilterQueue.Entry entry,
                 int filterIndex) {
             logd("addFilterToController: " + entry.type);
+            if (entry.type == ScanFilterQueue.TYPE_MANUFACTURER_DATA
+                    && entry.data_mask.length != entry.data.length) {
+                return;
+            }
+            submitCommand("add scan filter", ControllerCommandQueue.OP_SCAN_FILTER_CONFIG,
+                    clientIf);
             switch (entry.type) {
                 case ScanFilterQueue.TYPE_DEVICE_ADDRESS:
                     logd("add address " + entry.address);
@@ -854,9 +917,6 @@ public class ScanManager {
                     break;
 
                 case ScanFilterQueue.TYPE_MANUFACTURER_DATA:
-                    int len = entry.data.length;
-                    if (entry.data_mask.length != len)
-                        return;
                     gattClientScanFilterAddNative(clientIf, entry.type, filterIndex, entry.company,
                             entry.company_mask, 0, 0, 0, 0, "", "", (byte) 0,
                             entry.data, entry.data_mask);
@@ -865,15 +925,16 @@ public class ScanManager {
         }
 
         private void initFilterIndexStack() {
+            if (mFilterSlotAllocator.isInitialized()) {
+                return;
+            }
             int maxFiltersSupported =
                     AdapterService.getAdapterService().getNumOfOffloadedScanFilterSupported();
             // Start from index 3 as:
             // index 0 is reserved for ALL_PASS filter in Settings app.
             // index 1 is reserved for ALL_PASS filter for regular scan apps.
             // index 2 is reserved for ALL_PASS filter for batch scan apps.
-            for (int i = 3; i < maxFiltersSupported; ++i) {
-                mFilterIndexStack.add(i);
-            }
+            mFilterSlotAllocator.init(3, maxFiltersSupported);
         }
 
         // Configure filter parameters.
@@ -891,6 +952,8 @@ public class ScanManager {
             FilterParams FiltValue = new FilterParams(clientIf, filterIndex, featureSelection,
                     LIST_LOGIC_TYPE, FILTER_LOGIC_TYPE, rssiThreshold, rssiThreshold, deliveryMode,
                     onFoundTimeout, onLostTimeout, onFoundCount, numOfTrackingEntries);
+            submitCommand("add scan filter params", ControllerCommandQueue.OP_SCAN_FILTER_PARAMS,
+                    clientIf);
             gattClientScanFilterParamAddNative(FiltValue);
         }
 
@@ -907,41 +970,13 @@ public class ScanManager {
                     || (settings.getCallbackType() & ScanSettings.CALLBACK_TYPE_MATCH_LOST) != 0) {
                 return DELIVERY_MODE_ON_FOUND_LOST;
             }
+            if (client.resultCoalescer != null) {
+                return DELIVERY_MODE_IMMEDIATE;
+            }
             return settings.getReportDelayMillis() == 0 ? DELIVERY_MODE_IMMEDIATE
                     : DELIVERY_MODE_BATCH;
         }
 
-        private int getScanWindowMillis(ScanSettings settings) {
-            if (settings == null) {
-                return SCAN_MODE_LOW_POWER_WINDOW_MS;
-            }
-            switch (settings.getScanMode()) {
-                case ScanSettings.SCAN_MODE_LOW_LATENCY:
-                    return SCAN_MODE_LOW_LATENCY_WINDOW_MS;
-                case ScanSettings.SCAN_MODE_BALANCED:
-                    return SCAN_MODE_BALANCED_WINDOW_MS;
-                case ScanSettings.SCAN_MODE_LOW_POWER:
-                    return SCAN_MODE_LOW_POWER_WINDOW_MS;
-                default:
-                    return SCAN_MODE_LOW_POWER_WINDOW_MS;
-            }
-        }
-
-        private int getScanIntervalMillis(ScanSettings settings) {
-            if (settings == null)
-                return SCAN_MODE_LOW_POWER_INTERVAL_MS;
-            switch (settings.getScanMode()) {
-                case ScanSettings.SCAN_MODE_LOW_LATENCY:
-                    return SCAN_MODE_LOW_LATENCY_INTERVAL_MS;
-                case ScanSettings.SCAN_MODE_BALANCED:
-                    return SCAN_MODE_BALANCED_INTERVAL_MS;
-                case ScanSettings.SCAN_MODE_LOW_POWER:
-                    return SCAN_MODE_LOW_POWER_INTERVAL_MS;
-                default:
-                    return SCAN_MODE_LOW_POWER_INTERVAL_MS;
-            }
-        }
-
         private int getOnFoundOnLostTimeoutMillis(ScanSettings settings, boolean onFound) {
             int factor;
             int timeout = ONLOST_ONFOUND_BASE_TIMEOUT_MS;
@@ -1017,6 +1052,11 @@ public class ScanManager {
             }
         }
 
+        void dump(StringBuilder sb) {
+            mScanParamArbiter.dump(sb);
+            mFilterSlotAllocator.dump(sb);
+            mCommandQueue.dump(sb);
+        }
 
         /************************** Regular scan related native methods **************************/
         private native void gattClientScanNative(boolean start);
@@ -1065,6 +1105,22 @@ public class ScanManager {
         private native void gattClientReadScanReportsNative(int client_if, int scan_type);
     }
 
+    /**
+     * Logs debug information.
+     */
+    void dump(StringBuilder sb) {
+        sb.append("  Regular scan clients: " + mRegularScanClients.size() + "\n");
+        for (ScanClient client : mRegularScanIndex.getClients()) {
+            sb.append("    clientIf=" + client.clientIf + ", isServer=" + client.isServer
+                    + ", scanMode=" + client.settings.getScanMode() + "\n");
+            if (client.resultCoalescer != null) {
+                client.resultCoalescer.dump(sb);
+            }
+        }
+        sb.append("  Batch scan clients: " + mBatchClients.size() + "\n");
+        mScanNative.dump(sb);
+    }
+
     private void logd(String s) {
         if (DBG) Log.d(TAG, s);
     }
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanSettings;
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Merges the duty cycle requirements of all regular scan clients into the scan
+ * window and interval programmed into the controller.
+ *
+ * Every client asks for a window and interval through its scan mode. The
+ * merged schedule uses the largest window and the smallest interval requested.
+ * Opportunistic clients never raise the duty cycle. Low latency requests are
+ * treated as bursts: once a client has been scanning in low latency mode for
+ * longer than the configured burst duration it is served at balanced duty
+ * cycle, so a single client can't keep the radio at 100% indefinitely.
+ *
+ * Not thread-safe, only used from the scan manager handler thread.
+ *
+ * @hide
+ */
+/* package */class ScanParamArbiter {
+    // Number of schedules kept for dump().
+    private static final int MAX_HISTORY = 20;
+
+    /**
+     * Scan params corresponding to regular scan setting
+     */
+    private static final int SCAN_MODE_LOW_POWER_WINDOW_MS = 500;
+    private static final int SCAN_MODE_LOW_POWER_INTERVAL_MS = 5000;
+    private static final int SCAN_MODE_BALANCED_WINDOW_MS = 2000;
+    private static final int SCAN_MODE_BALANCED_INTERVAL_MS = 5000;
+    private static final int SCAN_MODE_LOW_LATENCY_WINDOW_MS = 5000;
+    private static final int SCAN_MODE_LOW_LATENCY_INTERVAL_MS = 5000;
+
+    /**
+     * Scan window and interval chosen for the controller.
+     */
+    static class Schedule {
+        final int windowMillis;
+        final int intervalMillis;
+        // Client whose request determined the window.
+        final int clientIf;
+        final int numClients;
+        final int numThrottled;
+        final long timeMillis;
+
+        Schedule(int windowMillis, int intervalMillis, int clientIf, int numClients,
+                int numThrottled, long timeMillis) {
+            this.windowMillis = windowMillis;
+            this.intervalMillis = intervalMillis;
+            this.clientIf = clientIf;
+            this.numClients = numClients;
+            this.numThrottled = numThrottled;
+            this.timeMillis = timeMillis;
+        }
+
+        /**
+         * Returns true if both schedules program the same controller parameters.
+         */
+        boolean hasSameParams(Schedule other) {
+            return other != null && windowMillis == other.windowMillis
+                    && intervalMillis == other.intervalMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "window=" + windowMillis + "ms, interval=" + intervalMillis
+                    + "ms, clientIf=" + clientIf + ", clients=" + numClients
+                    + ", throttled=" + numThrottled;
+        }
+    }
+
+    private final long mLowLatencyBurstMillis;
+    // Time each low latency client started scanning, keyed by clientIf.
+    private final Map<Integer, Long> mLowLatencySince = new HashMap<Integer, Long>();
+    private final ArrayDeque<Schedule> mHistory = new ArrayDeque<Schedule>();
+    private Schedule mCurrent;
+    private long mNextChangeMillis = -1;
+
+    /**
+     * @param lowLatencyBurstMillis how long a client may scan in low latency mode
+     *        before it is throttled, 0 for no limit.
+     */
+    ScanParamArbiter(long lowLatencyBurstMillis) {
+        mLowLatencyBurstMillis = lowLatencyBurstMillis;
+    }
+
+    /**
+     * Computes the schedule for the given clients. Returns null if no client
+     * needs the controller to scan.
+     */
+    Schedule arbitrate(Collection<ScanClient> clients, long nowMillis) {
+        int window = 0;
+        int interval = Integer.MAX_VALUE;
+        int windowClientIf = -1;
+        int numClients = 0;
+        int numThrottled = 0;
+        mNextChangeMillis = -1;
+        Set<Integer> lowLatencyClients = new HashSet<Integer>();
+        for (ScanClient client : clients) {
+            int scanMode = client.settings.getScanMode();
+            if (scanMode == ScanSettings.SCAN_MODE_OPPORTUNISTIC) continue;
+            numClients++;
+            if (scanMode == ScanSettings.SCAN_MODE_LOW_LATENCY && mLowLatencyBurstMillis > 0) {
+                lowLatencyClients.add(client.clientIf);
+                Long since = mLowLatencySince.get(client.clientIf);
+                if (since == null) {
+                    since = nowMillis;
+                    mLowLatencySince.put(client.clientIf, since);
+                }
+                long burstEnd = since + mLowLatencyBurstMillis;
+                if (nowMillis >= burstEnd) {
+                    scanMode = ScanSettings.SCAN_MODE_BALANCED;
+                    numThrottled++;
+                } else if (mNextChangeMillis < 0 || burstEnd < mNextChangeMillis) {
+                    mNextChangeMillis = burstEnd;
+                }
+            }
+            if (getWindowMillis(scanMode) > window) {
+                window = getWindowMillis(scanMode);
+                windowClientIf = client.clientIf;
+            }
+            interval = Math.min(interval, getIntervalMillis(scanMode));
+        }
+        // Forget clients that stopped scanning or left low latency mode.
+        Iterator<Integer> it = mLowLatencySince.keySet().iterator();
+        while (it.hasNext()) {
+            if (!lowLatencyClients.contains(it.next())) it.remove();
+        }
+        if (numClients == 0) return null;
+        return new Schedule(Math.min(window, interval), interval, windowClientIf, numClients,
+                numThrottled, nowMillis);
+    }
+
+    /**
+     * Returns the time at which the last computed schedule expires because a
+     * low latency burst ends, or -1 if it doesn't expire.
+     */
+    long getNextChangeMillis() {
+        return mNextChangeMillis;
+    }
+
+    /**
+     * Returns the schedule currently programmed into the controller.
+     */
+    Schedule getCurrent() {
+        return mCurrent;
+    }
+
+    /**
+     * Records the schedule programmed into the controller, null if scanning stopped.
+     */
+    void setCurrent(Schedule schedule) {
+        mCurrent = schedule;
+        if (schedule == null) return;
+        if (mHistory.size() == MAX_HISTORY) {
+            mHistory.pollFirst();
+        }
+        mHistory.addLast(schedule);
+    }
+
+    private static int getWindowMillis(int scanMode) {
+        switch (scanMode) {
+            case ScanSettings.SCAN_MODE_LOW_LATENCY:
+                return SCAN_MODE_LOW_LATENCY_WINDOW_MS;
+            case ScanSettings.SCAN_MODE_BALANCED:
+                return SCAN_MODE_BALANCED_WINDOW_MS;
+            case ScanSettings.SCAN_MODE_LOW_POWER:
+                return SCAN_MODE_LOW_POWER_WINDOW_MS;
+            default:
+                return SCAN_MODE_LOW_POWER_WINDOW_MS;
+        }
+    }
+
+    private static int getIntervalMillis(int scanMode) {
+        switch (scanMode) {
+            case ScanSettings.SCAN_MODE_LOW_LATENCY:
+                return SCAN_MODE_LOW_LATENCY_INTERVAL_MS;
+            case ScanSettings.SCAN_MODE_BALANCED:
+                return SCAN_MODE_BALANCED_INTERVAL_MS;
+            case ScanSettings.SCAN_MODE_LOW_POWER:
+                return SCAN_MODE_LOW_POWER_INTERVAL_MS;
+            default:
+                return SCAN_MODE_LOW_POWER_INTERVAL_MS;
+        }
+    }
+
+    void dump(StringBuilder sb) {
+        long now = SystemClock.elapsedRealtime();
+        sb.append("  Scan schedule: " + (mCurrent == null ? "stopped" : mCurrent.toString())
+                + "\n");
+        sb.append("  Low latency burst limit: " + mLowLatencyBurstMillis + "ms, next change: "
+                + (mNextChangeMillis < 0 ? "none" : "in " + (mNextChangeMillis - now) + "ms")
+                + "\n");
+        sb.append("  Scan schedule history:\n");
+        for (Schedule schedule : mHistory) {
+            sb.append("    -" + (now - schedule.timeMillis) + "ms: " + schedule + "\n");
+        }
+    }
+}
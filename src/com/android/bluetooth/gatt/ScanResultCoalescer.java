@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded buffer that coalesces scan results of a single client so they can be
+ * delivered as one batch. A newer result for an address already in the buffer
+ * replaces the older one.
+ *
+ * @hide
+ */
+/* package */class ScanResultCoalescer {
+    // Outcomes of add().
+    static final int ADDED = 0;
+    // The buffer was empty, the caller needs to schedule a flush after the report delay.
+    static final int ADDED_FIRST = 1;
+    // The buffer just became full, the caller needs to flush it right away.
+    static final int ADDED_FULL = 2;
+    // The buffer is full and the flush has not run yet, the result was dropped.
+    static final int DROPPED = 3;
+
+    private final ScanResult[] mResults;
+    private final Map<String, Integer> mIndexByAddress = new HashMap<String, Integer>();
+    private int mCount;
+
+    // Statistics for dump().
+    private long mNumAdded;
+    private long mNumDuplicates;
+    private long mNumDropped;
+    private long mNumFlushes;
+
+    ScanResultCoalescer(int capacity) {
+        mResults = new ScanResult[capacity];
+    }
+
+    /**
+     * Adds a result to the buffer and tells the caller whether a flush needs to be
+     * scheduled.
+     */
+    synchronized int add(ScanResult result) {
+        mNumAdded++;
+        String address = result.getDevice().getAddress();
+        Integer index = mIndexByAddress.get(address);
+        if (index != null) {
+            mResults[index] = result;
+            mNumDuplicates++;
+            return ADDED;
+        }
+        if (mCount == mResults.length) {
+            mNumDropped++;
+            return DROPPED;
+        }
+        mIndexByAddress.put(address, mCount);
+        mResults[mCount++] = result;
+        if (mCount == mResults.length) return ADDED_FULL;
+        return mCount == 1 ? ADDED_FIRST : ADDED;
+    }
+
+    /**
+     * Removes and returns all buffered results.
+     */
+    synchronized List<ScanResult> drain() {
+        if (mCount == 0) return Collections.emptyList();
+        List<ScanResult> results = new ArrayList<ScanResult>(mCount);
+        for (int i = 0; i < mCount; i++) {
+            results.add(mResults[i]);
+            mResults[i] = null;
+        }
+        mCount = 0;
+        mIndexByAddress.clear();
+        mNumFlushes++;
+        return results;
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        sb.append("    Coalesced: added=" + mNumAdded + ", duplicates=" + mNumDuplicates
+                + ", dropped=" + mNumDropped + ", flushes=" + mNumFlushes + ", pending=" + mCount + "\n");
+    }
+}
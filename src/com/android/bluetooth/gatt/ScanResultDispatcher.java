@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanResult;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves scan result processing off the JNI callback thread.
+ *
+ * Advertisements reported by the stack are put on a lock-free ingest queue and
+ * parsed and filtered on a dedicated thread. Matching results are then queued
+ * per client, and each client queue is drained by at most one worker at a time.
+ * Workers are not shared between clients, so a slow or blocked app only delays
+ * its own results. Client queues are bounded and drop their oldest entry when
+ * full. A client whose callback has not returned within
+ * {@link #CLIENT_STALL_TIMEOUT_MILLIS} loses its backlog, and its new results are
+ * dropped until the callback returns. Queues exist from {@link #addClient} until
+ * {@link #removeClient}, results for other clients are dropped.
+ *
+ * @hide
+ */
+/* package */class ScanResultDispatcher {
+    private static final boolean DBG = GattServiceConfig.DBG;
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "ScanResultDispatcher";
+
+    // Maximum number of advertisements waiting to be parsed and filtered.
+    private static final int MAX_INGEST_QUEUE_DEPTH = 1024;
+    // Maximum number of undelivered results per client.
+    private static final int MAX_CLIENT_QUEUE_DEPTH = 256;
+    // Maximum number of results delivered by one drain task before yielding.
+    private static final int MAX_DELIVERIES_PER_DRAIN = 32;
+    // Idle delivery threads exit after DELIVERY_THREAD_TIMEOUT_SECONDS.
+    private static final long DELIVERY_THREAD_TIMEOUT_SECONDS = 10;
+    // A client callback running longer than this is considered stalled.
+    private static final long CLIENT_STALL_TIMEOUT_MILLIS = 2000;
+
+    /**
+     * Advertisement as reported by the stack. The parsed {@link ScanResult} is
+     * shared by all clients that receive it.
+     */
+    static class Advertisement {
+        final String address;
+        final int rssi;
+        final byte[] advData;
+        ScanResult result;
+
+        Advertisement(String address, int rssi, byte[] advData) {
+            this.address = address;
+            this.rssi = rssi;
+            this.advData = advData;
+        }
+    }
+
+    /**
+     * Bounded delivery queue of a single scan client.
+     */
+    private class ClientQueue implements Runnable {
+        final ScanClient client;
+        private final ArrayDeque<Advertisement> mQueue = new ArrayDeque<Advertisement>();
+        private boolean mScheduled;
+        private boolean mRemoved;
+        // Start of the callback in progress, 0 if none.
+        private long mDeliveryStartMillis;
+        private boolean mStalled;
+        private long mNumDelivered;
+        private long mNumDropped;
+        private long mNumStalled;
+        private int mMaxDepth;
+
+        ClientQueue(ScanClient client) {
+            this.client = client;
+        }
+
+        void offer(Advertisement advertisement) {
+            boolean schedule;
+            synchronized (this) {
+                if (mRemoved) return;
+                if (isStalled()) {
+                    mNumDropped += mQueue.size() + 1;
+                    mQueue.clear();
+                    return;
+                }
+                if (mQueue.size() == MAX_CLIENT_QUEUE_DEPTH) {
+                    mQueue.pollFirst();
+                    mNumDropped++;
+                }
+                mQueue.addLast(advertisement);
+                mMaxDepth = Math.max(mMaxDepth, mQueue.size());
+                schedule = !mScheduled;
+                mScheduled = true;
+            }
+            if (schedule) schedule(this);
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < MAX_DELIVERIES_PER_DRAIN; i++) {
+                Advertisement advertisement;
+                synchronized (this) {
+                    advertisement = mQueue.pollFirst();
+                    if (advertisement == null) {
+                        mScheduled = false;
+                        return;
+                    }
+                    mDeliveryStartMillis = SystemClock.uptimeMillis();
+                }
+                boolean delivered = mService.deliverScanResult(client, advertisement);
+                synchronized (this) {
+                    mDeliveryStartMillis = 0;
+                    mStalled = false;
+                    if (delivered) mNumDelivered++;
+                }
+                if (!delivered) {
+                    removeClient(client.clientIf);
+                    return;
+                }
+            }
+            // Give other clients a chance before continuing.
+            schedule(this);
+        }
+
+        // Must be called with the lock held.
+        private boolean isStalled() {
+            if (mDeliveryStartMillis == 0
+                    || SystemClock.uptimeMillis() - mDeliveryStartMillis
+                            < CLIENT_STALL_TIMEOUT_MILLIS) {
+                return false;
+            }
+            if (!mStalled) {
+                Log.w(TAG, "Scan client " + client.clientIf + " stalled, dropping results");
+                mStalled = true;
+                mNumStalled++;
+            }
+            return true;
+        }
+
+        // Drops the queued results, later offers are ignored.
+        synchronized void remove() {
+            mQueue.clear();
+            mScheduled = false;
+            mRemoved = true;
+        }
+
+        synchronized void dump(StringBuilder sb) {
+            sb.append("    clientIf=" + client.clientIf + ", depth=" + mQueue.size()
+                    + ", maxDepth=" + mMaxDepth + ", delivered=" + mNumDelivered
+                    + ", dropped=" + mNumDropped + ", stalls=" + mNumStalled + "\n");
+        }
+    }
+
+    private final GattService mService;
+    private final ConcurrentLinkedQueue<Advertisement> mIngestQueue =
+            new ConcurrentLinkedQueue<Advertisement>();
+    private final Map<Integer, ClientQueue> mClientQueues =
+            new ConcurrentHashMap<Integer, ClientQueue>();
+    private final AtomicInteger mIngestQueueDepth = new AtomicInteger();
+    private final AtomicLong mNumIngested = new AtomicLong();
+    private final AtomicLong mNumIngestDropped = new AtomicLong();
+    // Each client queue occupies at most one thread, so the number of threads is
+    // bounded by the number of scanning clients.
+    private final ThreadPoolExecutor mDeliveryExecutor = new ThreadPoolExecutor(
+            0, Integer.MAX_VALUE, DELIVERY_THREAD_TIMEOUT_SECONDS,
+            TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+    private final AtomicLong mNumUnknownClientDropped = new AtomicLong();
+    // Batch reports are parsed one at a time, so they reach the apps in order.
+    private final ExecutorService mBatchExecutor = Executors.newSingleThreadExecutor();
+    private volatile Thread mProcessingThread;
+
+    ScanResultDispatcher(GattService service) {
+        mService = service;
+    }
+
+    void start() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processIngestQueue();
+            }
+        }, "BluetoothScanResultDispatcher");
+        mProcessingThread = thread;
+        thread.start();
+    }
+
+    void cleanup() {
+        Thread thread = mProcessingThread;
+        mProcessingThread = null;
+        if (thread != null) LockSupport.unpark(thread);
+        mDeliveryExecutor.shutdownNow();
+        mBatchExecutor.shutdownNow();
+        mIngestQueue.clear();
+        mIngestQueueDepth.set(0);
+        for (ClientQueue queue : mClientQueues.values()) {
+            queue.remove();
+        }
+        mClientQueues.clear();
+    }
+
+    /**
+     * Queues an advertisement for processing. Called from the JNI callback thread.
+     */
+    void enqueue(String address, int rssi, byte[] advData) {
+        Thread thread = mProcessingThread;
+        if (thread == null) return;
+        if (mIngestQueueDepth.get() >= MAX_INGEST_QUEUE_DEPTH) {
+            mNumIngestDropped.incrementAndGet();
+            return;
+        }
+        mIngestQueueDepth.incrementAndGet();
+        mIngestQueue.offer(new Advertisement(address, rssi, advData));
+        mNumIngested.incrementAndGet();
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Creates the delivery queue of a client that starts scanning.
+     */
+    void addClient(ScanClient client) {
+        ClientQueue queue = mClientQueues.put(client.clientIf, new ClientQueue(client));
+        if (queue != null) queue.remove();
+    }
+
+    /**
+     * Queues an advertisement that matched the given client for delivery. The
+     * advertisement is dropped if the client is not scanning anymore.
+     */
+    void deliver(ScanClient client, Advertisement advertisement) {
+        ClientQueue queue = mClientQueues.get(client.clientIf);
+        if (queue == null) {
+            mNumUnknownClientDropped.incrementAndGet();
+            return;
+        }
+        queue.offer(advertisement);
+    }
+
+    /**
+     * Runs a batch report task after all batch report tasks queued before it.
+     */
+    void executeBatch(Runnable task) {
+        try {
+            mBatchExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Dispatcher cleaned up, dropping task");
+        }
+    }
+
+    /**
+     * Drops all undelivered results of a client.
+     */
+    void removeClient(int clientIf) {
+        ClientQueue queue = mClientQueues.remove(clientIf);
+        if (queue != null) queue.remove();
+    }
+
+    private void schedule(ClientQueue queue) {
+        try {
+            mDeliveryExecutor.execute(queue);
+        } catch (RejectedExecutionException e) {
+            // Dispatcher has been cleaned up, nothing left to deliver to.
+            queue.remove();
+        }
+    }
+
+    private void processIngestQueue() {
+        Thread self = Thread.currentThread();
+        while (mProcessingThread == self) {
+            Advertisement advertisement = mIngestQueue.poll();
+            if (advertisement == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            mIngestQueueDepth.decrementAndGet();
+            try {
+                mService.processScanResult(advertisement);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to process scan result from " + advertisement.address, e);
+            }
+        }
+        if (DBG) Log.d(TAG, "processing thread stopped");
+    }
+
+    /**
+     * Logs debug information.
+     */
+    void dump(StringBuilder sb) {
+        sb.append("  Scan results ingested: " + mNumIngested.get()
+                + ", dropped: " + mNumIngestDropped.get()
+                + ", pending: " + mIngestQueueDepth.get()
+                + ", dropped after stop: " + mNumUnknownClientDropped.get() + "\n");
+        for (ClientQueue queue : mClientQueues.values()) {
+            queue.dump(sb);
+        }
+    }
+}
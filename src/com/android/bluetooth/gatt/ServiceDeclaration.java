@@ -20,6 +20,7 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 class ServiceDeclaration {
     private static final boolean DBG = GattServiceConfig.DBG;
@@ -31,6 +32,11 @@ class ServiceDeclaration {
     public static final byte TYPE_DESCRIPTOR = 3;
     public static final byte TYPE_INCLUDED_SERVICE = 4;
 
+    // Registration progress, see GattService.continueServiceDeclaration().
+    static final int STATE_DECLARING = 0;
+    static final int STATE_ADDING_SERVICE = 1;
+    static final int STATE_ADDING_ATTRIBUTES = 2;
+
     class Entry {
         byte type = TYPE_UNDEFINED;
         UUID uuid = null;
@@ -74,6 +80,22 @@ class ServiceDeclaration {
     List<Entry> mEntries = null;
     int mNumHandles = 0;
 
+    int mServerIf = 0;
+    // Set once the app finished declaring the service.
+    volatile boolean mDeclared = false;
+    // Set when the declaration is handed to the stack.
+    final AtomicBoolean mSubmitted = new AtomicBoolean();
+    int mState = STATE_DECLARING;
+    int mServiceHandle = 0;
+    // Attribute additions issued to the stack and not completed yet.
+    int mOutstanding = 0;
+    // First error reported by the stack.
+    int mStatus = 0;
+    // Set if an included service isn't registered; the service isn't started.
+    boolean mIncludeMissing = false;
+    int mNumAttributes = 0;
+    long mStartTimeMillis = 0;
+
     ServiceDeclaration() {
         mEntries = new ArrayList<Entry>();
     }
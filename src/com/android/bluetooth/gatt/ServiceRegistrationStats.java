@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+/**
+ * Timing of GATT server service registrations, for dump().
+ *
+ * @hide
+ */
+/* package */class ServiceRegistrationStats {
+    private int mNumServices;
+    private int mNumFailed;
+    private long mNumAttributes;
+    private long mTotalMillis;
+    private long mMaxMillis;
+
+    synchronized void recordService(int status, int numAttributes, long durationMillis) {
+        mNumServices++;
+        if (status != 0) mNumFailed++;
+        mNumAttributes += numAttributes;
+        mTotalMillis += durationMillis;
+        mMaxMillis = Math.max(mMaxMillis, durationMillis);
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        sb.append("  Services registered: " + mNumServices + ", failed=" + mNumFailed
+                + ", attributes=" + mNumAttributes + ", avgMs="
+                + (mNumServices == 0 ? 0 : mTotalMillis / mNumServices)
+                + ", maxMs=" + mMaxMillis + "\n");
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.PhoneLookup;
+import android.telephony.PhoneNumberUtils;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Contact name cache shared by the listings and events of a MAS instance.
+ *
+ * Unlike the SmsMmsContacts used while building a single listing, the cached names are
+ * kept between requests and dropped when the Contacts database changes. Names of all
+ * the phone numbers in a listing page can be resolved up front with a single query,
+ * numbers not found that way are looked up one by one.
+ */
+public class BluetoothMapContactCache extends SmsMmsContacts {
+
+    private static final String TAG = "BluetoothMapContactCache";
+    private static final boolean D = BluetoothMapService.DEBUG;
+    private static final boolean V = Log.isLoggable(BluetoothMapService.LOG_TAG, Log.VERBOSE);
+
+    /* Each number takes two selection arguments, stay well below the SQLite limit of 999 */
+    private static final int MAX_NUMBERS_PER_QUERY = 200;
+
+    private static final String[] PHONE_PROJECTION = { Phone.CONTACT_ID, Phone.DISPLAY_NAME,
+            Phone.NUMBER, Phone.NORMALIZED_NUMBER };
+    private static final int COL_PHONE_CONTACT_ID = 0;
+    private static final int COL_PHONE_DISPLAY_NAME = 1;
+    private static final int COL_PHONE_NUMBER = 2;
+    private static final int COL_PHONE_NORMALIZED_NUMBER = 3;
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private boolean mRegistered = false;
+
+    /* Called on a binder thread, clearCache() is synchronized */
+    private final ContentObserver mContactsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            if (V) Log.v(TAG, "Contacts changed - clearing cache");
+            clearCache();
+        }
+    };
+
+    public BluetoothMapContactCache(Context context) {
+        mContext = context;
+        mResolver = context.getContentResolver();
+    }
+
+    /**
+     * Start tracking changes to the Contacts database. Must be called before the cache is
+     * used, as cached names are only valid while the observer is registered.
+     */
+    public synchronized void register() {
+        if (mRegistered) return;
+        clearCache();
+        mResolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true,
+                mContactsObserver);
+        mRegistered = true;
+    }
+
+    public synchronized void unregister() {
+        if (!mRegistered) return;
+        mResolver.unregisterContentObserver(mContactsObserver);
+        mRegistered = false;
+        clearCache();
+    }
+
+    /**
+     * Lookup a contacts name in the Android Contacts database.
+     * @param phone the phone number of the contact
+     * @return the name of the contact or null, if no contact was found.
+     */
+    public String getContactName(String phone) {
+        if (TextUtils.isEmpty(phone)) {
+            return null;
+        }
+        MapContact contact = getContactNameFromPhone(phone, mResolver);
+        return (contact != null) ? contact.getName() : null;
+    }
+
+    /**
+     * Resolve the names of all the phone numbers not cached yet with as few queries as
+     * possible. Numbers without a match are left for {@link #getContactName(String)}
+     * to look up, as the batch query only matches on complete numbers.
+     * @param phones the phone numbers, may contain duplicates and empty numbers.
+     */
+    public void resolveContactNames(Collection<String> phones) {
+        String countryIso = getCountryIso();
+        Set<String> seen = new HashSet<String>();
+        List<String> pending = new ArrayList<String>();
+        for (String phone : phones) {
+            if (TextUtils.isEmpty(phone) || !seen.add(phone) || isContactCached(phone)) {
+                continue;
+            }
+            pending.add(phone);
+            if (pending.size() == MAX_NUMBERS_PER_QUERY) {
+                resolveContactNames(pending, countryIso);
+                pending.clear();
+            }
+        }
+        if (!pending.isEmpty()) {
+            resolveContactNames(pending, countryIso);
+        }
+    }
+
+    private void resolveContactNames(List<String> phones, String countryIso) {
+        /* Map both the number as stored and its E164 form to the requested numbers */
+        Map<String, List<String>> numbers = new HashMap<String, List<String>>();
+        for (String phone : phones) {
+            addNumber(numbers, phone, phone);
+            String e164 = PhoneNumberUtils.formatNumberToE164(phone, countryIso);
+            if (e164 != null) {
+                addNumber(numbers, e164, phone);
+            }
+        }
+        String[] args = numbers.keySet().toArray(new String[numbers.size()]);
+        StringBuilder in = new StringBuilder();
+        for (int i = 0; i < args.length; i++) {
+            in.append(i == 0 ? "?" : ",?");
+        }
+        String selection = Contacts.IN_VISIBLE_GROUP + "=1 AND (" + Phone.NUMBER + " IN (" + in
+                + ") OR " + Phone.NORMALIZED_NUMBER + " IN (" + in + "))";
+        String[] selectionArgs = new String[args.length * 2];
+        System.arraycopy(args, 0, selectionArgs, 0, args.length);
+        System.arraycopy(args, 0, selectionArgs, args.length, args.length);
+
+        int found = 0;
+        Cursor c = mResolver.query(Phone.CONTENT_URI, PHONE_PROJECTION, selection,
+                selectionArgs, Phone.DISPLAY_NAME + " ASC");
+        try {
+            if (c == null) {
+                Log.e(TAG, "query failed");
+                return;
+            }
+            while (c.moveToNext()) {
+                MapContact contact = MapContact.create(c.getLong(COL_PHONE_CONTACT_ID),
+                        c.getString(COL_PHONE_DISPLAY_NAME));
+                found += putContact(numbers.remove(c.getString(COL_PHONE_NUMBER)), contact);
+                found += putContact(numbers.remove(c.getString(COL_PHONE_NORMALIZED_NUMBER)),
+                        contact);
+            }
+        } finally {
+            if (c != null) c.close();
+        }
+        if (D) Log.d(TAG, "resolveContactNames: " + found + " of " + phones.size()
+                + " numbers resolved");
+    }
+
+    private static void addNumber(Map<String, List<String>> numbers, String key, String phone) {
+        List<String> list = numbers.get(key);
+        if (list == null) {
+            list = new ArrayList<String>(1);
+            numbers.put(key, list);
+        }
+        list.add(phone);
+    }
+
+    /**
+     * Cache the contact for the phone numbers not resolved by an earlier row.
+     * @return the number of phone numbers added
+     */
+    private int putContact(List<String> phones, MapContact contact) {
+        if (phones == null) return 0;
+        int added = 0;
+        for (String phone : phones) {
+            if (!isContactCached(phone)) {
+                putContact(phone, contact);
+                added++;
+            }
+        }
+        return added;
+    }
+
+    private String getCountryIso() {
+        TelephonyManager tm =
+                (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
+        String countryIso = (tm != null) ? tm.getNetworkCountryIso() : null;
+        if (TextUtils.isEmpty(countryIso)) {
+            countryIso = Locale.getDefault().getCountry();
+        }
+        return countryIso.toUpperCase(Locale.US);
+    }
+
+    @Override
+    protected Uri getLookupUri(String phone) {
+        return Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI,
+                Uri.encode(phone));
+    }
+}
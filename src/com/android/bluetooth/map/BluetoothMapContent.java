@@ -44,6 +44,7 @@ import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
 import com.android.bluetooth.map.BluetoothMapbMessageMime.MimePart;
 import com.android.bluetooth.mapapi.BluetoothMapContract;
 import com.android.bluetooth.mapapi.BluetoothMapContract.ConversationColumns;
+import com.android.internal.annotations.VisibleForTesting;
 import com.google.android.mms.pdu.CharacterSets;
 import com.google.android.mms.pdu.PduHeaders;
 
@@ -261,6 +262,8 @@ public class BluetoothMapContent {
         int mPhoneType = 0;
         String mPhoneNum = null;
         String mPhoneAlphaTag = null;
+        /* Type of the cursor the shared mMessageCol indices were read from */
+        int mMessageColumnsType = -1;
         /*column indices used to optimize queries */
         public int mMessageColId                = -1;
         public int mMessageColDate              = -1;
@@ -356,6 +359,7 @@ public class BluetoothMapContent {
 
         public void setEmailMessageColumns(Cursor c) {
             setMessageColumns(c);
+            mMessageColumnsType = TYPE_EMAIL;
             mMessageColCcAddress        = c.getColumnIndex(
                     BluetoothMapContract.MessageColumns.CC_LIST);
             mMessageColBccAddress       = c.getColumnIndex(
@@ -366,6 +370,7 @@ public class BluetoothMapContent {
 
         public void setImMessageColumns(Cursor c) {
             setMessageColumns(c);
+            mMessageColumnsType = TYPE_IM;
             mMessageColThreadName       = c.getColumnIndex(
                     BluetoothMapContract.MessageColumns.THREAD_NAME);
             mMessageColAttachmentMime   = c.getColumnIndex(
@@ -970,7 +975,7 @@ public class BluetoothMapContent {
                 if (msgType != 1) {
                     String phone = c.getString(fi.mSmsColAddress);
                     if (phone != null && !phone.isEmpty())
-                        name = getContactNameFromPhone(phone, mResolver);
+                        name = getContactName(mMasInstance, phone, mResolver);
                 } else {
                     name = fi.mPhoneAlphaTag;
                 }
@@ -983,7 +988,7 @@ public class BluetoothMapContent {
                     phone = e.getRecipientAddressing();
                 }
                 if (phone != null && !phone.isEmpty())
-                    name = getContactNameFromPhone(phone, mResolver);
+                    name = getContactName(mMasInstance, phone, mResolver);
             } else if (fi.mMsgType == FilterInfo.TYPE_EMAIL) {
                 /* Might be another way to handle address and names */
                 name = getRecipientNameEmail(e,c,fi);
@@ -1088,7 +1093,7 @@ public class BluetoothMapContent {
                 if (msgType == 1) {
                     String phone = c.getString(fi.mSmsColAddress);
                     if (phone != null && !phone.isEmpty())
-                        name = getContactNameFromPhone(phone, mResolver);
+                        name = getContactName(mMasInstance, phone, mResolver);
                 } else {
                     name = fi.mPhoneAlphaTag;
                 }
@@ -1101,7 +1106,7 @@ public class BluetoothMapContent {
                     phone = e.getSenderAddressing();
                 }
                 if (phone != null && !phone.isEmpty() )
-                    name = getContactNameFromPhone(phone, mResolver);
+                    name = getContactName(mMasInstance, phone, mResolver);
             } else if (fi.mMsgType == FilterInfo.TYPE_EMAIL/*  ||
                        fi.mMsgType == FilterInfo.TYPE_IM*/) {
                 String nameEmail = c.getString(fi.mMessageColFromAddress);
@@ -1153,26 +1158,33 @@ public class BluetoothMapContent {
     private void setDateTime(BluetoothMapMessageListingElement e, Cursor c,
             FilterInfo fi, BluetoothMapAppParams ap) {
         if ((ap.getParameterMask() & MASK_DATETIME) != 0) {
-            long date = 0;
-            if (fi.mMsgType == FilterInfo.TYPE_SMS) {
-                date = c.getLong(fi.mSmsColDate);
-            } else if (fi.mMsgType == FilterInfo.TYPE_MMS) {
-                /* Use Mms.DATE for all messages. Although contract class states */
-                /* Mms.DATE_SENT are for outgoing messages. But that is not working. */
-                date = c.getLong(fi.mMmsColDate) * 1000L;
-
-                /* int msgBox = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX)); */
-                /* if (msgBox == Mms.MESSAGE_BOX_INBOX) { */
-                /*     date = c.getLong(c.getColumnIndex(Mms.DATE)) * 1000L; */
-                /* } else { */
-                /*     date = c.getLong(c.getColumnIndex(Mms.DATE_SENT)) * 1000L; */
-                /* } */
-            } else if (fi.mMsgType == FilterInfo.TYPE_EMAIL ||
-                       fi.mMsgType == FilterInfo.TYPE_IM) {
-                date = c.getLong(fi.mMessageColDate);
-            }
-            e.setDateTime(date);
+            e.setDateTime(getMessageDate(c, fi));
+        }
+    }
+
+    /**
+     * Get the date of the message at the current cursor position in milliseconds.
+     */
+    private long getMessageDate(Cursor c, FilterInfo fi) {
+        long date = 0;
+        if (fi.mMsgType == FilterInfo.TYPE_SMS) {
+            date = c.getLong(fi.mSmsColDate);
+        } else if (fi.mMsgType == FilterInfo.TYPE_MMS) {
+            /* Use Mms.DATE for all messages. Although contract class states */
+            /* Mms.DATE_SENT are for outgoing messages. But that is not working. */
+            date = c.getLong(fi.mMmsColDate) * 1000L;
+
+            /* int msgBox = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX)); */
+            /* if (msgBox == Mms.MESSAGE_BOX_INBOX) { */
+            /*     date = c.getLong(c.getColumnIndex(Mms.DATE)) * 1000L; */
+            /* } else { */
+            /*     date = c.getLong(c.getColumnIndex(Mms.DATE_SENT)) * 1000L; */
+            /* } */
+        } else if (fi.mMsgType == FilterInfo.TYPE_EMAIL ||
+                   fi.mMsgType == FilterInfo.TYPE_IM) {
+            date = c.getLong(fi.mMessageColDate);
         }
+        return date;
     }
 
 
@@ -1289,8 +1301,22 @@ public class BluetoothMapContent {
         return e;
     }
 
+    /**
+     * Lookup a contacts name, using the contact cache of the MAS instance if it has one.
+     * @param mas the MAS instance - or null to query the Contacts database directly.
+     * @return the name of the contact or null, if no contact was found.
+     */
+    /* package */ static String getContactName(BluetoothMapMasInstance mas, String phone,
+            ContentResolver resolver) {
+        BluetoothMapContactCache cache = (mas != null) ? mas.getContactCache() : null;
+        if (cache != null) {
+            return cache.getContactName(phone);
+        }
+        return getContactNameFromPhone(phone, resolver);
+    }
+
     /* TODO: Change to use SmsMmsContacts.getContactNameFromPhone() with proper use of
-     *       caching. */
+     *       caching. Use getContactName() where a MAS instance is available. */
     public static String getContactNameFromPhone(String phone, ContentResolver resolver) {
         String name = null;
         //Handle possible exception for empty phone address
@@ -1422,7 +1448,7 @@ public class BluetoothMapContent {
                 if (V) Log.v(TAG, "matchRecipientMms: match recipient phone = " + phone);
                 res = true;
             } else {
-                String name = getContactNameFromPhone(phone, mResolver);
+                String name = getContactName(mMasInstance, phone, mResolver);
                 if (name != null && name.length() > 0 && name.matches(recip)) {
                     if (V) Log.v(TAG, "matchRecipientMms: match recipient name = " + name);
                     res = true;
@@ -1458,7 +1484,7 @@ public class BluetoothMapContent {
                     if (V) Log.v(TAG, "matchRecipientSms: match recipient phone = " + phone);
                     res = true;
                 } else {
-                    String name = getContactNameFromPhone(phone, mResolver);
+                    String name = getContactName(mMasInstance, phone, mResolver);
                     if (name != null && name.length() > 0 && name.matches(recip)) {
                         if (V) Log.v(TAG, "matchRecipientSms: match recipient name = " + name);
                         res = true;
@@ -1502,7 +1528,7 @@ public class BluetoothMapContent {
                 if (V) Log.v(TAG, "matchOriginatorMms: match originator phone = " + phone);
                 res = true;
             } else {
-                String name = getContactNameFromPhone(phone, mResolver);
+                String name = getContactName(mMasInstance, phone, mResolver);
                 if (name != null && name.length() > 0 && name.matches(orig)) {
                     if (V) Log.v(TAG, "matchOriginatorMms: match originator name = " + name);
                     res = true;
@@ -1526,7 +1552,7 @@ public class BluetoothMapContent {
                     if (V) Log.v(TAG, "matchOriginatorSms: match originator phone = " + phone);
                     res = true;
                 } else {
-                    String name = getContactNameFromPhone(phone, mResolver);
+                    String name = getContactName(mMasInstance, phone, mResolver);
                     if (name != null && name.length() > 0 && name.matches(orig)) {
                         if (V) Log.v(TAG, "matchOriginatorSms: match originator name = " + name);
                         res = true;
@@ -2095,17 +2121,9 @@ public class BluetoothMapContent {
                     smsCursor = mResolver.query(Sms.CONTENT_URI,
                             SMS_PROJECTION, where, null, Sms.DATE + " DESC" + limit);
                     if (smsCursor != null) {
-                        BluetoothMapMessageListingElement e = null;
                         // store column index so we dont have to look them up anymore (optimization)
                         if(D) Log.d(TAG, "Found " + smsCursor.getCount() + " sms messages.");
                         fi.setSmsColumns(smsCursor);
-                        while (smsCursor.moveToNext()) {
-                            if (matchAddresses(smsCursor, fi, ap)) {
-                                if(V) BluetoothMapUtils.printCursor(smsCursor);
-                                e = element(smsCursor, fi, ap);
-                                bmList.add(e);
-                            }
-                        }
                     }
                 }
             }
@@ -2128,17 +2146,9 @@ public class BluetoothMapContent {
                     mmsCursor = mResolver.query(Mms.CONTENT_URI,
                             MMS_PROJECTION, where, null, Mms.DATE + " DESC" + limit);
                     if (mmsCursor != null) {
-                        BluetoothMapMessageListingElement e = null;
                         // store column index so we dont have to look them up anymore (optimization)
                         fi.setMmsColumns(mmsCursor);
                         if(D) Log.d(TAG, "Found " + mmsCursor.getCount() + " mms messages.");
-                        while (mmsCursor.moveToNext()) {
-                            if (matchAddresses(mmsCursor, fi, ap)) {
-                                if(V) BluetoothMapUtils.printCursor(mmsCursor);
-                                e = element(mmsCursor, fi, ap);
-                                bmList.add(e);
-                            }
-                        }
                     }
                 }
             }
@@ -2164,17 +2174,9 @@ public class BluetoothMapContent {
                             BluetoothMapContract.BT_MESSAGE_PROJECTION, where, null,
                             BluetoothMapContract.MessageColumns.DATE + " DESC" + limit);
                     if (emailCursor != null) {
-                        BluetoothMapMessageListingElement e = null;
                         // store column index so we dont have to look them up anymore (optimization)
                         fi.setEmailMessageColumns(emailCursor);
-                        int cnt = 0;
                         if(D) Log.d(TAG, "Found " + emailCursor.getCount() + " email messages.");
-                        while (emailCursor.moveToNext()) {
-                            if(V) BluetoothMapUtils.printCursor(emailCursor);
-                            e = element(emailCursor, fi, ap);
-                            bmList.add(e);
-                        }
-                    //   emailCursor.close();
                     }
                 }
             }
@@ -2199,23 +2201,19 @@ public class BluetoothMapContent {
                         BluetoothMapContract.BT_INSTANT_MESSAGE_PROJECTION,
                         where, null, BluetoothMapContract.MessageColumns.DATE + " DESC" + limit);
                 if (imCursor != null) {
-                    BluetoothMapMessageListingElement e = null;
                     // store column index so we dont have to look them up anymore (optimization)
                     fi.setImMessageColumns(imCursor);
                     if (D) Log.d(TAG, "Found " + imCursor.getCount() + " im messages.");
-                    while (imCursor.moveToNext()) {
-                        if (V) BluetoothMapUtils.printCursor(imCursor);
-                        e = element(imCursor, fi, ap);
-                        bmList.add(e);
-                    }
                 }
             }
 
-            /* Enable this if post sorting and segmenting needed */
-            bmList.sort();
-            bmList.segment(ap.getMaxListCount(), offsetNum);
+            /* Each cursor is already ordered by date, so merge them and only create
+             * elements for the requested window. */
+            mergeMessageListing(bmList, new Cursor[] {smsCursor, mmsCursor, emailCursor, imCursor},
+                    fi, ap, offsetNum, ap.getMaxListCount());
             List<BluetoothMapMessageListingElement> list = bmList.getList();
             int listSize = list.size();
+            resolveSmsContactNames(list, smsCursor, fi, ap);
             Cursor tmpCursor = null;
             for(int x=0;x<listSize;x++){
                 BluetoothMapMessageListingElement ele = list.get(x);
@@ -2232,10 +2230,10 @@ public class BluetoothMapContent {
                     fi.mMsgType = FilterInfo.TYPE_MMS;
                 } else if(emailCursor != null && ((TYPE.EMAIL).equals(tmpType))) {
                     tmpCursor = emailCursor;
-                    fi.mMsgType = FilterInfo.TYPE_EMAIL;
+                    setListingType(fi, FilterInfo.TYPE_EMAIL, emailCursor);
                 } else if(imCursor != null && ((TYPE.IM).equals(tmpType))) {
                     tmpCursor = imCursor;
-                    fi.mMsgType = FilterInfo.TYPE_IM;
+                    setListingType(fi, FilterInfo.TYPE_IM, imCursor);
                 }
                 if(tmpCursor != null){
                     tmpCursor.moveToPosition(ele.getCursorIndex());
@@ -2272,6 +2270,149 @@ public class BluetoothMapContent {
         return bmList;
     }
 
+    /**
+     * Look up the names of the SMS senders and recipients of a listing page in one go,
+     * instead of one query per message when the elements are filled in.
+     */
+    private void resolveSmsContactNames(List<BluetoothMapMessageListingElement> list,
+            Cursor smsCursor, FilterInfo fi, BluetoothMapAppParams ap) {
+        BluetoothMapContactCache cache =
+                (mMasInstance != null) ? mMasInstance.getContactCache() : null;
+        if (cache == null || smsCursor == null
+                || (ap.getParameterMask() & (MASK_SENDER_NAME | MASK_RECIPIENT_NAME)) == 0) {
+            return;
+        }
+        List<String> phones = new ArrayList<String>();
+        for (BluetoothMapMessageListingElement ele : list) {
+            TYPE type = ele.getType();
+            if ((TYPE.SMS_GSM).equals(type) || (TYPE.SMS_CDMA).equals(type)) {
+                smsCursor.moveToPosition(ele.getCursorIndex());
+                phones.add(smsCursor.getString(fi.mSmsColAddress));
+            }
+        }
+        if (!phones.isEmpty()) {
+            cache.resolveContactNames(phones);
+        }
+    }
+
+    /**
+     * Message rows of each type, in date order, as seen by {@link #mergeListing}.
+     */
+    @VisibleForTesting
+    public interface ListingRows {
+        /**
+         * Move to the next row of a type to be listed. Rows not matching the
+         * filters are stepped over.
+         * @return false if there are no more rows of the type
+         */
+        boolean next(int type);
+
+        /** Get the date of the current row of a type. */
+        long getDate(int type);
+
+        /** Add the current row of a type to the listing. */
+        void add(int type);
+    }
+
+    /**
+     * Merge the date ordered message cursors into the listing, newest first.
+     * Only the rows inside the window given by offset and count become listing
+     * elements; the rows before it are just stepped over.
+     * @param cursors The SMS, MMS, email and IM cursors, indexed by FilterInfo type.
+     *                A null entry is skipped.
+     */
+    private void mergeMessageListing(final BluetoothMapMessageListing bmList,
+            final Cursor[] cursors, final FilterInfo fi, final BluetoothMapAppParams ap,
+            int offset, int count) {
+        int added = mergeListing(new ListingRows() {
+            @Override
+            public boolean next(int type) {
+                return nextListingRow(cursors[type], type, fi, ap);
+            }
+
+            @Override
+            public long getDate(int type) {
+                setListingType(fi, type, cursors[type]);
+                return getMessageDate(cursors[type], fi);
+            }
+
+            @Override
+            public void add(int type) {
+                Cursor c = cursors[type];
+                setListingType(fi, type, c);
+                if (V) BluetoothMapUtils.printCursor(c);
+                bmList.add(element(c, fi, ap));
+            }
+        }, cursors.length, offset, count);
+        if (D) Log.d(TAG, "mergeMessageListing: added " + added);
+    }
+
+    /**
+     * Merge the rows of numTypes message types, newest first, stepping over
+     * the first offset rows and adding at most count rows (all if count <= 0).
+     * Ties go to the lowest type, as with a stable sort of the appended types.
+     * @return the number of rows added
+     */
+    @VisibleForTesting
+    public static int mergeListing(ListingRows rows, int numTypes, int offset, int count) {
+        long[] dates = new long[numTypes];
+        boolean[] valid = new boolean[numTypes];
+        for (int type = 0; type < numTypes; type++) {
+            valid[type] = rows.next(type);
+            if (valid[type]) dates[type] = rows.getDate(type);
+        }
+        int skipped = 0;
+        int added = 0;
+        while (count <= 0 || added < count) {
+            int next = -1;
+            for (int type = 0; type < numTypes; type++) {
+                if (valid[type] && (next < 0 || dates[type] > dates[next])) {
+                    next = type;
+                }
+            }
+            if (next < 0) break;
+            if (skipped < offset) {
+                skipped++;
+            } else {
+                rows.add(next);
+                added++;
+            }
+            valid[next] = rows.next(next);
+            if (valid[next]) dates[next] = rows.getDate(next);
+        }
+        return added;
+    }
+
+    /**
+     * Move the cursor to the next row to be listed. SMS and MMS rows not matching
+     * the address filters are skipped.
+     * @return false if there are no more rows
+     */
+    private boolean nextListingRow(Cursor c, int type, FilterInfo fi, BluetoothMapAppParams ap) {
+        if (c == null) return false;
+        setListingType(fi, type, c);
+        while (c.moveToNext()) {
+            if (type == FilterInfo.TYPE_EMAIL || type == FilterInfo.TYPE_IM
+                    || matchAddresses(c, fi, ap)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Select the message type the FilterInfo column indices are used for. Email and
+     * IM share the message column indices, so these are reloaded when switching.
+     */
+    private void setListingType(FilterInfo fi, int type, Cursor c) {
+        fi.mMsgType = type;
+        if (type == FilterInfo.TYPE_EMAIL && fi.mMessageColumnsType != type) {
+            fi.setEmailMessageColumns(c);
+        } else if (type == FilterInfo.TYPE_IM && fi.mMessageColumnsType != type) {
+            fi.setImMessageColumns(c);
+        }
+    }
+
     /**
      * Get the size of the message listing
      * @param folder Must contain a valid folder string != null
@@ -32,11 +32,13 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelFileDescriptor;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.Telephony;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.MmsSms;
@@ -72,6 +74,9 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -124,7 +129,39 @@ public class BluetoothMapContentObserver {
     private BluetoothMapMasInstance mMasInstance = null;
     private int mMasId;
     private boolean mEnableSmsMms = false;
-    private boolean mObserverRegistered = false;
+    private volatile boolean mObserverRegistered = false;
+
+    /* Highest SMS/MMS ids compared so far, newer messages have higher ids */
+    private volatile long mSmsMaxId = 0;
+    private volatile long mMmsMaxId = 0;
+
+    /* Content changes are handled one at a time on a background priority worker thread */
+    private HandlerThread mWorkerThread = null;
+    private volatile Handler mWorkerHandler = null;
+    /* Handler of the thread creating the observer, unregisterObserver() may wait for the
+     * worker thread while holding the MAS instance lock. */
+    private final Handler mHandler = new Handler();
+    private BluetoothMapObserverStats mStats = null;
+
+    /* Coalescing of change notifications */
+    private static final int MSG_PROCESS_CHANGES = 2;
+    // Quiet time after the last notification for a URI, before it is handled
+    private static final long DEBOUNCE_MS = 100;
+    // Longest time notifications for a URI are held back during a burst
+    private static final long MAX_COALESCE_MS = 1000;
+    private final Map<Uri, PendingChange> mPendingChanges =
+            new LinkedHashMap<Uri, PendingChange>();
+    private long mProcessTime = 0;
+
+    /* Full compare of the SMS/MMS tables to find changes to existing messages */
+    private static final int MSG_RECONCILE = 1;
+    // Delay of the pass if a notification is not explained by new messages
+    private static final long RECONCILE_DELAY_MS = 1000;
+    // Delay of the pass if it is, as new messages can hide other changes. Longer than
+    // RECONCILE_DELAY_MS to bound the full compares during a burst of new messages, but
+    // short enough that read status and folder changes are still reported promptly.
+    private static final long RECONCILE_INTERVAL_MS = 3000;
+    private long mReconcileTime = 0;
     private BluetoothMapAccountItem mAccount;
     private String mAuthority = null;
 
@@ -265,6 +302,7 @@ public class BluetoothMapContentObserver {
         mMasId = mMasInstance.getMasId();
 
         mMapSupportedFeatures = mMasInstance.getRemoteFeatureMask();
+        mStats = mMasInstance.getObserverStats();
         if (D) Log.d(TAG, "BluetoothMapContentObserver: Supported features " +
                 Integer.toHexString(mMapSupportedFeatures) ) ;
 
@@ -468,7 +506,8 @@ public class BluetoothMapContentObserver {
         return smsType;
     }
 
-    private final ContentObserver mObserver = new ContentObserver(new Handler()) {
+    /* Called on a binder thread - the changes are handled on the worker thread */
+    private final ContentObserver mObserver = new ContentObserver(null) {
         @Override
         public void onChange(boolean selfChange) {
             onChange(selfChange, null);
@@ -483,12 +522,98 @@ public class BluetoothMapContentObserver {
             if (V) Log.d(TAG, "onChange on thread: " + Thread.currentThread().getId()
                     + " Uri: " + uri.toString() + " selfchange: " + selfChange);
 
-            if(uri.toString().contains(BluetoothMapContract.TABLE_CONVOCONTACT))
+            addPendingChange(uri);
+        }
+    };
+
+    /**
+     * Change notifications received for a URI and not handled yet. Notifications are
+     * coalesced until none has been received for DEBOUNCE_MS, but at most for
+     * MAX_COALESCE_MS.
+     */
+    private static class PendingChange {
+        final Uri uri;
+        final long firstTime;
+        long lastTime;
+        int numNotifications = 0;
+
+        PendingChange(Uri uri, long now) {
+            this.uri = uri;
+            this.firstTime = now;
+            this.lastTime = now;
+        }
+
+        long getDueTime() {
+            return Math.min(lastTime + DEBOUNCE_MS, firstTime + MAX_COALESCE_MS);
+        }
+    }
+
+    private void addPendingChange(Uri uri) {
+        long now = SystemClock.uptimeMillis();
+        synchronized (mPendingChanges) {
+            Handler handler = mWorkerHandler;
+            if (handler == null) {
+                return;
+            }
+            PendingChange change = mPendingChanges.get(uri);
+            if (change == null) {
+                change = new PendingChange(uri, now);
+                mPendingChanges.put(uri, change);
+            }
+            change.lastTime = now;
+            change.numNotifications++;
+            if (mStats != null) mStats.recordNotification(mPendingChanges.size());
+
+            long due = change.getDueTime();
+            if (!handler.hasMessages(MSG_PROCESS_CHANGES) || due < mProcessTime) {
+                handler.removeMessages(MSG_PROCESS_CHANGES);
+                mProcessTime = due;
+                handler.sendEmptyMessageAtTime(MSG_PROCESS_CHANGES, due);
+            }
+        }
+    }
+
+    /**
+     * Handle the pending changes that are due, on the worker thread.
+     */
+    private void processPendingChanges() {
+        List<PendingChange> changes = new ArrayList<PendingChange>();
+        long now = SystemClock.uptimeMillis();
+        synchronized (mPendingChanges) {
+            long next = Long.MAX_VALUE;
+            Iterator<PendingChange> it = mPendingChanges.values().iterator();
+            while (it.hasNext()) {
+                PendingChange change = it.next();
+                long due = change.getDueTime();
+                if (due <= now) {
+                    changes.add(change);
+                    it.remove();
+                } else {
+                    next = Math.min(next, due);
+                }
+            }
+            if (next != Long.MAX_VALUE && mWorkerHandler != null) {
+                mProcessTime = next;
+                mWorkerHandler.sendEmptyMessageAtTime(MSG_PROCESS_CHANGES, next);
+            }
+        }
+        for (PendingChange change : changes) {
+            if (!mObserverRegistered) {
+                return;
+            }
+            Uri uri = change.uri;
+            if (V) Log.v(TAG, "processPendingChanges: " + uri + " notifications: "
+                    + change.numNotifications);
+            if (uri.toString().contains(BluetoothMapContract.TABLE_CONVOCONTACT)) {
                 handleContactListChanges(uri);
-            else
+            } else {
                 handleMsgListChanges(uri);
+            }
+            if (mStats != null) {
+                mStats.recordBatch(SystemClock.uptimeMillis() - change.firstTime);
+            }
         }
-    };
+    }
 
     private static final HashMap<Integer, String> FOLDER_SMS_MAP;
     static {
@@ -985,6 +1110,11 @@ public class BluetoothMapContentObserver {
         // loads of events - hence init before register.
         initMsgList();
 
+        mWorkerThread = new HandlerThread("BluetoothMapContentObserver",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mWorkerThread.start();
+        mWorkerHandler = new Handler(mWorkerThread.getLooper(), mWorkerCallback);
+
         /* Use MmsSms Uri since the Sms Uri is not notified on deletes */
         if(mEnableSmsMms){
             //this is sms/mms
@@ -1027,6 +1157,26 @@ public class BluetoothMapContentObserver {
         if (V) Log.d(TAG, "unregisterObserver");
         mResolver.unregisterContentObserver(mObserver);
         mObserverRegistered = false;
+        if(mWorkerThread != null) {
+            synchronized (mPendingChanges) {
+                mPendingChanges.clear();
+                mWorkerHandler.removeCallbacksAndMessages(null);
+                mWorkerHandler = null;
+            }
+            HandlerThread worker = mWorkerThread;
+            mWorkerThread = null;
+            worker.quitSafely();
+            /* Wait for a change being handled, so no event is sent and no list is updated
+             * once unregistered - and the provider client is not released under it. */
+            if (worker != Thread.currentThread()) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "unregisterObserver: interrupted waiting for worker thread");
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
         if(mProviderClient != null){
             mProviderClient.release();
             mProviderClient = null;
@@ -1050,8 +1200,8 @@ public class BluetoothMapContentObserver {
         mTransmitEvents = false;
         try {
             if(mEnableSmsMms) {
-                handleMsgListChangesSms();
-                handleMsgListChangesMms();
+                handleMsgListChangesSms(null);
+                handleMsgListChangesMms(null);
             }
             if(mAccount != null) {
                 try {
@@ -1186,6 +1336,7 @@ public class BluetoothMapContentObserver {
         if(mEnableSmsMms) {
 
             HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
+            long maxId = 0;
 
             Cursor c = mResolver.query(Sms.CONTENT_URI,
                     SMS_PROJECTION_SHORT, null, null, null);
@@ -1199,6 +1350,7 @@ public class BluetoothMapContentObserver {
 
                         Msg msg = new Msg(id, type, threadId, read);
                         msgListSms.put(id, msg);
+                        maxId = Math.max(maxId, id);
                     } while (c.moveToNext());
                 }
             } finally {
@@ -1208,9 +1360,11 @@ public class BluetoothMapContentObserver {
             synchronized(getMsgListSms()) {
                 getMsgListSms().clear();
                 setMsgListSms(msgListSms, true); // Set initial folder version counter
+                mSmsMaxId = maxId;
             }
 
             HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
+            maxId = 0;
 
             c = mResolver.query(Mms.CONTENT_URI, MMS_PROJECTION_SHORT, null, null, null);
             try {
@@ -1223,6 +1377,7 @@ public class BluetoothMapContentObserver {
 
                         Msg msg = new Msg(id, type, threadId, read);
                         msgListMms.put(id, msg);
+                        maxId = Math.max(maxId, id);
                     } while (c.moveToNext());
                 }
             } finally {
@@ -1232,6 +1387,7 @@ public class BluetoothMapContentObserver {
             synchronized(getMsgListMms()) {
                 getMsgListMms().clear();
                 setMsgListMms(msgListMms, true); // Set initial folder version counter
+                mMmsMaxId = maxId;
             }
         }
 
@@ -1309,30 +1465,49 @@ public class BluetoothMapContentObserver {
         }
     }
 
-    private void handleMsgListChangesSms() {
-        if (V) Log.d(TAG, "handleMsgListChangesSms");
+    /**
+     * Apply the changes of the SMS rows matching a selection to the message list.
+     * @param selection the rows to compare - or null to compare the entire table, in which
+     *        case messages missing from the table are reported deleted.
+     * @return the number of new messages found.
+     */
+    private int handleMsgListChangesSms(String selection) {
+        if (V) Log.d(TAG, "handleMsgListChangesSms: " + selection);
 
-        HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
+        Set<Long> seenIds = new HashSet<Long>();
         boolean listChanged = false;
+        int newMessages = 0;
+        long maxId = 0;
 
         Cursor c;
         synchronized(getMsgListSms()) {
+            Map<Long, Msg> msgListSms = getMsgListSms();
             if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
                 c = mResolver.query(Sms.CONTENT_URI,
-                        SMS_PROJECTION_SHORT, null, null, null);
+                        SMS_PROJECTION_SHORT, selection, null, null);
             } else {
                 c = mResolver.query(Sms.CONTENT_URI,
-                        SMS_PROJECTION_SHORT_EXT, null, null, null);
+                        SMS_PROJECTION_SHORT_EXT, selection, null, null);
             }
             try {
                 if (c != null && c.moveToFirst()) {
+                    // store column index so we dont have to look them up for each row
+                    int colId = c.getColumnIndex(Sms._ID);
+                    int colType = c.getColumnIndex(Sms.TYPE);
+                    int colThreadId = c.getColumnIndex(Sms.THREAD_ID);
+                    int colRead = c.getColumnIndex(Sms.READ);
+                    int colDate = c.getColumnIndex(Sms.DATE);
+                    int colBody = c.getColumnIndex(Sms.BODY);
+                    int colAddress = c.getColumnIndex(Sms.ADDRESS);
                     do {
-                        long id = c.getLong(c.getColumnIndex(Sms._ID));
-                        int type = c.getInt(c.getColumnIndex(Sms.TYPE));
-                        int threadId = c.getInt(c.getColumnIndex(Sms.THREAD_ID));
-                        int read = c.getInt(c.getColumnIndex(Sms.READ));
+                        long id = c.getLong(colId);
+                        int type = c.getInt(colType);
+                        int threadId = c.getInt(colThreadId);
+                        int read = c.getInt(colRead);
 
-                        Msg msg = getMsgListSms().remove(id);
+                        seenIds.add(id);
+                        maxId = Math.max(maxId, id);
+                        Msg msg = msgListSms.get(id);
 
                         /* We must filter out any actions made by the MCE, hence do not send e.g.
                          * a message deleted and/or MessageShift for messages deleted by the MCE. */
@@ -1342,20 +1517,21 @@ public class BluetoothMapContentObserver {
                             msg = new Msg(id, type, threadId, read);
                             msgListSms.put(id, msg);
                             listChanged = true;
+                            newMessages++;
                             Event evt;
                             if (mTransmitEvents == true && // extract contact details only if needed
                                     mMapEventReportVersion >
                             BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
                                 String date = BluetoothMapUtils.getDateTimeString(
-                                        c.getLong(c.getColumnIndex(Sms.DATE)));
-                                String subject = c.getString(c.getColumnIndex(Sms.BODY));
+                                        c.getLong(colDate));
+                                String subject = c.getString(colBody);
                                 String name = "";
                                 String phone = "";
                                 if (type == 1) { //inbox
-                                    phone = c.getString(c.getColumnIndex(Sms.ADDRESS));
+                                    phone = c.getString(colAddress);
                                     if (phone != null && !phone.isEmpty()) {
-                                        name = BluetoothMapContent.getContactNameFromPhone(phone,
-                                                mResolver);
+                                        name = BluetoothMapContent.getContactName(
+                                                mMasInstance, phone, mResolver);
                                         if(name == null || name.isEmpty()){
                                             name = phone;
                                         }
@@ -1439,7 +1615,6 @@ public class BluetoothMapContentObserver {
                                     sendEvent(evt);
                                 }
                             }
-                            msgListSms.put(id, msg);
                         }
                     } while (c.moveToNext());
                 }
@@ -1447,7 +1622,12 @@ public class BluetoothMapContentObserver {
                 if (c != null) c.close();
             }
 
-            for (Msg msg : getMsgListSms().values()) {
+            if (selection == null) {
+                mSmsMaxId = maxId; // Ids of deleted messages may be reused
+            } else {
+                mSmsMaxId = Math.max(mSmsMaxId, maxId);
+            }
+            for (Msg msg : removeDeletedMsgs(msgListSms, seenIds, selection)) {
                 // "old_folder" used only for MessageShift event
                 Event evt = new Event(EVENT_TYPE_DELETE, msg.id,
                         getSmsFolderName(msg.type), null, mSmsType);
@@ -1457,35 +1637,56 @@ public class BluetoothMapContentObserver {
 
             setMsgListSms(msgListSms, listChanged);
         }
+        return newMessages;
     }
 
-    private void handleMsgListChangesMms() {
-        if (V) Log.d(TAG, "handleMsgListChangesMms");
+    /**
+     * Apply the changes of the MMS rows matching a selection to the message list.
+     * @param selection the rows to compare - or null to compare the entire table, in which
+     *        case messages missing from the table are reported deleted.
+     * @return the number of new messages found.
+     */
+    private int handleMsgListChangesMms(String selection) {
+        if (V) Log.d(TAG, "handleMsgListChangesMms: " + selection);
 
-        HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
+        Set<Long> seenIds = new HashSet<Long>();
         boolean listChanged = false;
+        int newMessages = 0;
+        long maxId = 0;
+        long minPendingId = Long.MAX_VALUE;
         Cursor c;
         synchronized(getMsgListMms()) {
+            Map<Long, Msg> msgListMms = getMsgListMms();
             if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
                 c = mResolver.query(Mms.CONTENT_URI,
-                        MMS_PROJECTION_SHORT, null, null, null);
+                        MMS_PROJECTION_SHORT, selection, null, null);
             } else {
                 c = mResolver.query(Mms.CONTENT_URI,
-                        MMS_PROJECTION_SHORT_EXT, null, null, null);
+                        MMS_PROJECTION_SHORT_EXT, selection, null, null);
             }
 
             try{
                 if (c != null && c.moveToFirst()) {
+                    // store column index so we dont have to look them up for each row
+                    int colId = c.getColumnIndex(Mms._ID);
+                    int colType = c.getColumnIndex(Mms.MESSAGE_BOX);
+                    int colMsgType = c.getColumnIndex(Mms.MESSAGE_TYPE);
+                    int colThreadId = c.getColumnIndex(Mms.THREAD_ID);
+                    int colRead = c.getColumnIndex(Mms.READ);
+                    int colDate = c.getColumnIndex(Mms.DATE);
+                    int colSubject = c.getColumnIndex(Mms.SUBJECT);
+                    int colPriority = c.getColumnIndex(Mms.PRIORITY);
                     do {
-                        long id = c.getLong(c.getColumnIndex(Mms._ID));
-                        int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
-                        int mtype = c.getInt(c.getColumnIndex(Mms.MESSAGE_TYPE));
-                        int threadId = c.getInt(c.getColumnIndex(Mms.THREAD_ID));
+                        long id = c.getLong(colId);
+                        int type = c.getInt(colType);
+                        int mtype = c.getInt(colMsgType);
+                        int threadId = c.getInt(colThreadId);
                         // TODO: Go through code to see if we have an issue with mismatch in types
                         //       for threadId. Seems to be a long in DB??
-                        int read = c.getInt(c.getColumnIndex(Mms.READ));
+                        int read = c.getInt(colRead);
 
-                        Msg msg = getMsgListMms().remove(id);
+                        seenIds.add(id);
+                        Msg msg = msgListMms.get(id);
 
                         /* We must filter out any actions made by the MCE, hence do not send
                          * e.g. a message deleted and/or MessageShift for messages deleted by the
@@ -1497,22 +1698,25 @@ public class BluetoothMapContentObserver {
                             if (getMmsFolderName(type).equalsIgnoreCase(
                                     BluetoothMapContract.FOLDER_NAME_INBOX) &&
                                     mtype != MESSAGE_TYPE_RETRIEVE_CONF) {
+                                // Keep the high-water mark below it, to see it again
+                                minPendingId = Math.min(minPendingId, id);
                                 continue;
                             }
                             msg = new Msg(id, type, threadId, read);
                             msgListMms.put(id, msg);
+                            newMessages++;
                             Event evt;
                             if (mTransmitEvents == true && // extract contact details only if needed
                                     mMapEventReportVersion !=
                                     BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
                                 String date = BluetoothMapUtils.getDateTimeString(
-                                        c.getLong(c.getColumnIndex(Mms.DATE)));
-                                String subject = c.getString(c.getColumnIndex(Mms.SUBJECT));
+                                        c.getLong(colDate));
+                                String subject = c.getString(colSubject);
                                 if (subject == null || subject.length() == 0) {
                                     /* Get subject from mms text body parts - if any exists */
                                     subject = BluetoothMapContent.getTextPartsMms(mResolver, id);
                                 }
-                                int tmpPri = c.getInt(c.getColumnIndex(Mms.PRIORITY));
+                                int tmpPri = c.getInt(colPriority);
                                 Log.d(TAG, "TEMP handleMsgListChangesMms, " +
                                         "newMessage 'read' state: " + read +
                                         "priority: " + tmpPri);
@@ -1594,15 +1798,20 @@ public class BluetoothMapContentObserver {
                                     sendEvent(evt);
                                 }
                             }
-                            msgListMms.put(id, msg);
                         }
+                        maxId = Math.max(maxId, id);
                     } while (c.moveToNext());
 
                 }
             } finally {
                 if (c != null) c.close();
             }
-            for (Msg msg : getMsgListMms().values()) {
+            if (selection == null) {
+                mMmsMaxId = Math.min(maxId, minPendingId - 1); // Ids may be reused
+            } else {
+                mMmsMaxId = Math.max(mMmsMaxId, Math.min(maxId, minPendingId - 1));
+            }
+            for (Msg msg : removeDeletedMsgs(msgListMms, seenIds, selection)) {
                 // "old_folder" used only for MessageShift event
                 Event evt = new Event(EVENT_TYPE_DELETE, msg.id,
                         getMmsFolderName(msg.type), null, TYPE.MMS);
@@ -1611,8 +1820,86 @@ public class BluetoothMapContentObserver {
             }
             setMsgListMms(msgListMms, listChanged);
         }
+        return newMessages;
+    }
+
+    /**
+     * Remove the messages no longer in the database from a message list.
+     * @param seenIds the ids of the rows returned for the selection
+     * @param selection the selection used - null if the entire table was read, else
+     *        nothing is removed
+     * @return the removed messages
+     */
+    private static List<Msg> removeDeletedMsgs(Map<Long, Msg> msgList, Set<Long> seenIds,
+            String selection) {
+        List<Msg> deleted = new ArrayList<Msg>();
+        if (selection == null) {
+            Iterator<Msg> it = msgList.values().iterator();
+            while (it.hasNext()) {
+                Msg msg = it.next();
+                if (!seenIds.contains(msg.id)) {
+                    deleted.add(msg);
+                    it.remove();
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Handle a change notification for the SMS/MMS tables.
+     * The MmsSms URI observed does not tell which message changed, so only messages
+     * added since the last pass are read right away. Changes to existing messages are
+     * found by a reconciliation pass over the entire tables, run on the worker thread -
+     * soon if no new messages explain the notification, else within
+     * RECONCILE_INTERVAL_MS.
+     */
+    private void handleMsgListChangesSmsMms(Uri uri) {
+        int newMessages = handleMsgListChangesSms(Sms._ID + ">" + mSmsMaxId);
+        newMessages += handleMsgListChangesMms(Mms._ID + ">" + mMmsMaxId);
+        if (V) Log.v(TAG, "handleMsgListChangesSmsMms: " + newMessages + " new messages");
+        scheduleReconciliation(newMessages > 0 ? RECONCILE_INTERVAL_MS : RECONCILE_DELAY_MS);
+    }
+
+    private void scheduleReconciliation(long delayMs) {
+        Handler handler = mWorkerHandler;
+        if (handler == null) {
+            return;
+        }
+        long when = SystemClock.uptimeMillis() + delayMs;
+        if (handler.hasMessages(MSG_RECONCILE) && mReconcileTime <= when) {
+            return; // An earlier pass will pick up the changes
+        }
+        handler.removeMessages(MSG_RECONCILE);
+        mReconcileTime = when;
+        handler.sendEmptyMessageAtTime(MSG_RECONCILE, when);
     }
 
+    private final Handler.Callback mWorkerCallback = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_PROCESS_CHANGES:
+                    processPendingChanges();
+                    return true;
+                case MSG_RECONCILE:
+                    if (!mObserverRegistered) {
+                        return true;
+                    }
+                    if (V) Log.v(TAG, "Reconciling SMS/MMS message lists");
+                    long start = SystemClock.uptimeMillis();
+                    handleMsgListChangesSms(null);
+                    handleMsgListChangesMms(null);
+                    if (mStats != null) {
+                        mStats.recordReconciliation(SystemClock.uptimeMillis() - start);
+                    }
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    };
+
     private void handleMsgListChangesMsg(Uri uri)  throws RemoteException{
         if (V) Log.v(TAG, "handleMsgListChangesMsg uri: " + uri.toString());
 
@@ -1804,7 +2091,7 @@ public class BluetoothMapContentObserver {
                         + mAccount.getType().toString());
                 handleMsgListChangesMsg(uri);
             } catch(RemoteException e) {
-                mMasInstance.restartObexServerSession();
+                restartObexServerSession();
                 Log.w(TAG, "Problems contacting the ContentProvider in mas Instance "
                         + mMasId + " restaring ObexServerSession");
             }
@@ -1812,11 +2099,24 @@ public class BluetoothMapContentObserver {
         }
         // TODO: check to see if there could be problem with IM and SMS in one instance
         if (mEnableSmsMms) {
-            handleMsgListChangesSms();
-            handleMsgListChangesMms();
+            handleMsgListChangesSmsMms(uri);
         }
     }
 
+    /**
+     * Restart the OBEX session of the MAS instance from the thread that created the
+     * observer, never from the worker thread - the restart takes the MAS instance lock,
+     * which may be held by a thread waiting for the worker in unregisterObserver().
+     */
+    private void restartObexServerSession() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mMasInstance.restartObexServerSession();
+            }
+        });
+    }
+
     private void handleContactListChanges(Uri uri) {
         if (uri.getAuthority().equals(mAuthority)) {
             try {
@@ -2025,7 +2325,7 @@ public class BluetoothMapContentObserver {
                     if (c != null) c.close();
                 }
             } catch (RemoteException e) {
-                mMasInstance.restartObexServerSession();
+                restartObexServerSession();
                 Log.w(TAG,
                         "Problems contacting the ContentProvider in mas Instance "
                                 + mMasId + " restaring ObexServerSession");
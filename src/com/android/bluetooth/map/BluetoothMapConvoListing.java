@@ -14,9 +14,10 @@
 */
 package com.android.bluetooth.map;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.text.ParseException;
 import java.util.ArrayList;
@@ -92,10 +93,27 @@ public class BluetoothMapConvoListing {
      *             if UTF-8 encoding is unsupported on the platform.
      */
     public byte[] encode() throws UnsupportedEncodingException {
-        StringWriter sw = new StringWriter();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            encode(out);
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode the list of BluetoothMapConvoListingElement(s) as UTF-8 formatted XML
+     * directly into a stream, one element at a time.
+     *
+     * @param out the stream to write to, e.g. the OBEX body stream.
+     *        The stream is flushed, but not closed.
+     * @throws IOException if writing to the stream fails.
+     */
+    public void encode(OutputStream out) throws IOException {
         XmlSerializer xmlConvoElement = new FastXmlSerializer();
         try {
-            xmlConvoElement.setOutput(sw);
+            xmlConvoElement.setOutput(out, "UTF-8");
             xmlConvoElement.startDocument("UTF-8", true);
             xmlConvoElement.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
                     true);
@@ -107,14 +125,12 @@ public class BluetoothMapConvoListing {
             }
             xmlConvoElement.endTag(null, XML_TAG);
             xmlConvoElement.endDocument();
+            xmlConvoElement.flush();
         } catch (IllegalArgumentException e) {
             Log.w(TAG, e);
         } catch (IllegalStateException e) {
             Log.w(TAG, e);
-        } catch (IOException e) {
-            Log.w(TAG, e);
         }
-        return sw.toString().getBytes("UTF-8");
     }
 
     public void sort() {
@@ -93,6 +93,10 @@ public class BluetoothMapMasInstance implements IObexConnectionHandler {
 
     private Map<String, BluetoothMapConvoContactElement> mContactList;
 
+    private BluetoothMapContactCache mContactCache = null;
+    /* Kept across connections, as the content observer is recreated for each */
+    private final BluetoothMapObserverStats mObserverStats = new BluetoothMapObserverStats();
+
     private HashMap<Long,BluetoothMapConvoListingElement> mSmsMmsConvoList =
             new HashMap<Long, BluetoothMapConvoListingElement>();
 
@@ -127,6 +131,9 @@ public class BluetoothMapMasInstance implements IObexConnectionHandler {
         }
         mMasInstanceId = masId;
         mEnableSmsMms = enableSmsMms;
+        if(enableSmsMms) {
+            mContactCache = new BluetoothMapContactCache(context);
+        }
         init();
     }
 
@@ -212,6 +219,18 @@ public class BluetoothMapMasInstance implements IObexConnectionHandler {
         mContactList = contactList;
     }
 
+    /**
+     * The contact names cache used for SMS/MMS listings and events.
+     * @return the cache - or null for instances without SMS/MMS content.
+     */
+    /* package */ BluetoothMapContactCache getContactCache() {
+        return mContactCache;
+    }
+
+    /* package */ BluetoothMapObserverStats getObserverStats() {
+        return mObserverStats;
+    }
+
     HashMap<Long,BluetoothMapConvoListingElement> getSmsMmsConvoList() {
         return mSmsMmsConvoList;
     }
@@ -263,6 +282,9 @@ public class BluetoothMapMasInstance implements IObexConnectionHandler {
             mObserver.deinit();
             mObserver = null;
         }
+        if (mContactCache != null) {
+            mContactCache.register();
+        }
 
         closeConnectionSocket();
 
@@ -407,6 +429,9 @@ public class BluetoothMapMasInstance implements IObexConnectionHandler {
             mObserver.deinit();
             mObserver = null;
         }
+        if (mContactCache != null) {
+            mContactCache.unregister();
+        }
         if (mSdpHandle >= 0) {
             SdpManager.getDefaultManager().removeSdpRecord(mSdpHandle);
             if(V) Log.d(TAG, "Removing SDP record for MAS instance: " + mMasInstanceId +
@@ -14,8 +14,9 @@
 */
 package com.android.bluetooth.map;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -90,7 +91,27 @@ public class BluetoothMapMessageListing {
      */
     // TODO: Remove includeThreadId when MAP-IM is adopted
     public byte[] encode(boolean includeThreadId, String version) throws UnsupportedEncodingException {
-        StringWriter sw = new StringWriter();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            encode(out, includeThreadId, version);
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode the list of BluetoothMapMessageListingElement(s) as UTF-8 formatted XML
+     * directly into a stream, one element at a time.
+     *
+     * @param out the stream to write to, e.g. the OBEX body stream.
+     *        The stream is flushed, but not closed.
+     * @param version the version as a string, see {@link #encode(boolean, String)}.
+     * @throws IOException if writing to the stream fails.
+     */
+    // TODO: Remove includeThreadId when MAP-IM is adopted
+    public void encode(OutputStream out, boolean includeThreadId, String version)
+            throws IOException {
         XmlSerializer xmlMsgElement = null;
         boolean isBenzCarkit = BluetoothMapService.getRemoteDevice().getAddress().toLowerCase()
                 .startsWith(BENZ_CARKIT);
@@ -101,7 +122,7 @@ public class BluetoothMapMessageListing {
             xmlMsgElement = new FastXmlSerializer();
         }
         try {
-            xmlMsgElement.setOutput(sw);
+            xmlMsgElement.setOutput(out, "UTF-8");
             if(isBenzCarkit) {
                 xmlMsgElement.text("\n");
             } else {
@@ -118,14 +139,12 @@ public class BluetoothMapMessageListing {
             }
             xmlMsgElement.endTag(null, "MAP-msg-listing");
             xmlMsgElement.endDocument();
+            xmlMsgElement.flush();
         } catch (IllegalArgumentException e) {
             Log.w(TAG, e);
         } catch (IllegalStateException e) {
             Log.w(TAG, e);
-        } catch (IOException e) {
-            Log.w(TAG, e);
         }
-        return sw.toString().getBytes("UTF-8");
     }
 
     public void sort() {
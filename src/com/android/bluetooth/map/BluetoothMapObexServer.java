@@ -961,6 +961,80 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
         }
     }
 
+    /**
+     * Buffers the bytes written to it and passes them on to the OBEX body stream
+     * in chunks of one packet, so a listing can be encoded straight into the body
+     * without holding all of it in memory. Writing fails once {@link #isAborted}
+     * returns true.
+     */
+    /* package */ static class PacketOutputStream extends OutputStream {
+        private final OutputStream mOut;
+        private final byte[] mBuffer;
+        private int mCount = 0;
+        private long mBytesWritten = 0;
+
+        PacketOutputStream(OutputStream out, int packetSize) {
+            mOut = out;
+            mBuffer = new byte[packetSize];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mCount == mBuffer.length) {
+                writeBuffer();
+            }
+            mBuffer[mCount++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, mBuffer.length - mCount);
+                System.arraycopy(b, off, mBuffer, mCount, n);
+                mCount += n;
+                off += n;
+                len -= n;
+                if (mCount == mBuffer.length) {
+                    writeBuffer();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writeBuffer();
+        }
+
+        long getBytesWritten() {
+            return mBytesWritten;
+        }
+
+        /** Whether the operation the stream writes to was aborted by the peer. */
+        boolean isAborted() {
+            return false;
+        }
+
+        private void writeBuffer() throws IOException {
+            if (isAborted()) {
+                throw new IOException("Operation aborted");
+            }
+            if (mCount > 0) {
+                mOut.write(mBuffer, 0, mCount);
+                mBytesWritten += mCount;
+                mCount = 0;
+            }
+        }
+    }
+
+    private PacketOutputStream newPacketOutputStream(OutputStream out, int packetSize) {
+        return new PacketOutputStream(out, packetSize) {
+            @Override
+            boolean isAborted() {
+                return mIsAborted;
+            }
+        };
+    }
+
     /**
      * Generate and send the message listing response based on an application
      * parameter header. This function call will block until complete or aborted
@@ -978,12 +1052,12 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                                       BluetoothMapAppParams appParams,
                                       String folderName){
         OutputStream outStream = null;
-        byte[] outBytes = null;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0, listSize;
+        int maxChunkSize, listSize;
         boolean hasUnread = false;
         HeaderSet replyHeaders = new HeaderSet();
         BluetoothMapAppParams outAppParams = new BluetoothMapAppParams();
-        BluetoothMapMessageListing outList;
+        BluetoothMapMessageListing outList = null;
+        String version = null;
         if(appParams == null){
             appParams = new BluetoothMapAppParams();
             appParams.setMaxListCount(1024);
@@ -1031,9 +1105,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             // Check to see if we only need to send the size - hence no need to encode.
             if(appParams.getMaxListCount() != 0) {
                 outList = mOutContent.msgListing(folderToList, appParams);
-                // Generate the byte stream
                 outAppParams.setMessageListingSize(outList.getCount());
-                String version;
                 if(0 < (mRemoteFeatureMask &
                         BluetoothMapUtils.MAP_FEATURE_MESSAGE_LISTING_FORMAT_V11_BIT)) {
                     version = BluetoothMapUtils.MAP_V11_STR;
@@ -1041,8 +1113,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                     version = BluetoothMapUtils.MAP_V10_STR;
                 }
                 /* This will only set the version, the bit must also be checked before adding any
-                 * 1.1 bits to the listing. */
-                outBytes = outList.encode(mThreadIdSupport, version);
+                 * 1.1 bits to the listing. The listing is encoded once the headers are sent. */
                 hasUnread = outList.hasUnread();
             } else {
                 listSize = mOutContent.msgListingSize(folderToList, appParams);
@@ -1089,21 +1160,24 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
         }
 
         maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-        if(outBytes != null) {
+        if(outList != null) {
+            boolean complete = false;
             try {
-                while (bytesWritten < outBytes.length && mIsAborted == false) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
+                // Encode straight into the body, one OBEX packet at a time
+                PacketOutputStream packetStream = newPacketOutputStream(outStream, maxChunkSize);
+                outList.encode(packetStream, mThreadIdSupport, version);
+                packetStream.flush();
+                complete = true;
+                if(D) Log.d(TAG, "sendMessageListingRsp: bytesWritten = "
+                        + packetStream.getBytesWritten());
             } catch (IOException e) {
                 if(D) Log.w(TAG,e);
                 // We were probably aborted or disconnected
             } finally {
                 if(outStream != null) { try { outStream.close(); } catch (IOException e) {} }
             }
-            if(bytesWritten != outBytes.length && !mIsAborted) {
-                Log.w(TAG,"sendMessageListingRsp: bytesWritten != outBytes.length" +
+            if(!complete && !mIsAborted) {
+                Log.w(TAG,"sendMessageListingRsp: listing not fully written" +
                         " - sending OBEX_HTTP_BAD_REQUEST");
                 return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
             }
@@ -1169,12 +1243,12 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                                     BluetoothMapAppParams appParams,
                                     String folderName){
         OutputStream outStream = null;
-        byte[] outBytes = null;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0;
+        int maxChunkSize;
         //boolean hasUnread = false;
         HeaderSet replyHeaders = new HeaderSet();
         BluetoothMapAppParams outAppParams = new BluetoothMapAppParams();
         BluetoothMapConvoListing outList;
+        BluetoothMapConvoListing bodyList = null;
         if(appParams == null){
             appParams = new BluetoothMapAppParams();
             appParams.setMaxListCount(1024);
@@ -1198,10 +1272,9 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             if(appParams.getMaxListCount() != 0) {
                 outList = mOutContent.convoListing(appParams, false);
                 outAppParams.setConvoListingSize(outList.getCount());
-                // Generate the byte stream
-                outBytes = outList.encode(); // Include thread ID for clients that supports it.
+                // The listing is encoded once the headers are sent
+                bodyList = outList;
       //          hasUnread = outList.hasUnread();
-                if(D) Log.d(TAG, "outBytes size:"+ outBytes.length);
             } else {
                 outList = mOutContent.convoListing(appParams, true);
                 outAppParams.setConvoListingSize(outList.getCount());
@@ -1248,21 +1321,24 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
         }
 
         maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-        if(outBytes != null) {
+        if(bodyList != null) {
+            boolean complete = false;
             try {
-                while (bytesWritten < outBytes.length && mIsAborted == false) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
+                // Encode straight into the body, one OBEX packet at a time
+                PacketOutputStream packetStream = newPacketOutputStream(outStream, maxChunkSize);
+                bodyList.encode(packetStream);
+                packetStream.flush();
+                complete = true;
+                if(D) Log.d(TAG, "sendConvoListingRsp: bytesWritten = "
+                        + packetStream.getBytesWritten());
             } catch (IOException e) {
                 if(D) Log.w(TAG,e);
                 // We were probably aborted or disconnected
             } finally {
                 if(outStream != null) { try { outStream.close(); } catch (IOException e) {} }
             }
-            if(bytesWritten != outBytes.length && !mIsAborted) {
-                Log.w(TAG,"sendConvoListingRsp: bytesWritten != outBytes.length" +
+            if(!complete && !mIsAborted) {
+                Log.w(TAG,"sendConvoListingRsp: listing not fully written" +
                         " - sending OBEX_HTTP_BAD_REQUEST");
                 return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
             }
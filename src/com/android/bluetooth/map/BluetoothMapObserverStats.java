@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+/**
+ * Latency of the content change processing of a MAS instance, for dump().
+ *
+ * @hide
+ */
+/* package */class BluetoothMapObserverStats {
+    // Upper bounds of the latency buckets, the last bucket is unbounded.
+    private static final long[] BUCKET_LIMITS_MS = { 50, 100, 250, 500, 1000, 2000, 5000 };
+
+    private long mNumNotifications;
+    private long mNumBatches;
+    private int mMaxPendingUris;
+
+    /* Latency from the first notification of a batch until it has been handled,
+     * including the MNS events sent for it. */
+    private final long[] mLatencyCounts = new long[BUCKET_LIMITS_MS.length + 1];
+    private long mTotalLatencyMillis;
+    private long mMaxLatencyMillis;
+
+    private long mNumReconciliations;
+    private long mTotalReconcileMillis;
+    private long mMaxReconcileMillis;
+
+    synchronized void recordNotification(int numPendingUris) {
+        mNumNotifications++;
+        mMaxPendingUris = Math.max(mMaxPendingUris, numPendingUris);
+    }
+
+    synchronized void recordBatch(long latencyMillis) {
+        mNumBatches++;
+        int bucket = 0;
+        while (bucket < BUCKET_LIMITS_MS.length && latencyMillis >= BUCKET_LIMITS_MS[bucket]) {
+            bucket++;
+        }
+        mLatencyCounts[bucket]++;
+        mTotalLatencyMillis += latencyMillis;
+        mMaxLatencyMillis = Math.max(mMaxLatencyMillis, latencyMillis);
+    }
+
+    synchronized void recordReconciliation(long durationMillis) {
+        mNumReconciliations++;
+        mTotalReconcileMillis += durationMillis;
+        mMaxReconcileMillis = Math.max(mMaxReconcileMillis, durationMillis);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("notifications=" + mNumNotifications + ", batches=" + mNumBatches
+                + ", maxPendingUris=" + mMaxPendingUris);
+        sb.append(", latencyAvgMs=" + (mNumBatches == 0 ? 0 : mTotalLatencyMillis / mNumBatches)
+                + ", latencyMaxMs=" + mMaxLatencyMillis + ", latencyMs=[");
+        for (int bucket = 0; bucket < mLatencyCounts.length; bucket++) {
+            if (bucket > 0) sb.append(' ');
+            sb.append(bucket < BUCKET_LIMITS_MS.length ? "<" + BUCKET_LIMITS_MS[bucket]
+                    : ">=" + BUCKET_LIMITS_MS[bucket - 1]);
+            sb.append(':').append(mLatencyCounts[bucket]);
+        }
+        sb.append("], reconciliations=" + mNumReconciliations + ", reconcileAvgMs="
+                + (mNumReconciliations == 0 ? 0 : mTotalReconcileMillis / mNumReconciliations)
+                + ", reconcileMaxMs=" + mMaxReconcileMillis);
+        return sb.toString();
+    }
+}
@@ -1256,7 +1256,11 @@ public class BluetoothMapService extends ProfileService {
         println(sb, "mBluetoothMnsObexClient: " + mBluetoothMnsObexClient);
         println(sb, "mMasInstanceMap:");
         for (BluetoothMapAccountItem key : mMasInstanceMap.keySet()) {
-            println(sb, "  " + key + " : " + mMasInstanceMap.get(key));
+            BluetoothMapMasInstance masInst = mMasInstanceMap.get(key);
+            println(sb, "  " + key + " : " + masInst);
+            if (masInst != null) {
+                println(sb, "    observer: " + masInst.getObserverStats());
+            }
         }
         println(sb, "mEnabledAccounts:");
         for (BluetoothMapAccountItem account : mEnabledAccounts) {
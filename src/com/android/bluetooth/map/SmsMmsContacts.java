@@ -17,6 +17,8 @@ package com.android.bluetooth.map;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 import android.annotation.TargetApi;
@@ -39,8 +41,17 @@ public class SmsMmsContacts {
 
     private static final String TAG = "SmsMmsContacts";
 
+    /* Upper bound of cached contact names, the least recently used name is dropped first. */
+    private static final int MAX_CACHED_NAMES = 512;
+
     private HashMap<Long,String> mPhoneNumbers = null;
-    private final HashMap<String,MapContact> mNames = new HashMap<String, MapContact>(10);
+    private final LinkedHashMap<String,MapContact> mNames =
+            new LinkedHashMap<String, MapContact>(10, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, MapContact> eldest) {
+                    return size() > MAX_CACHED_NAMES;
+                }
+            };
 
     private static final Uri ADDRESS_URI =
             MmsSms.CONTENT_URI.buildUpon().appendPath("canonical-addresses").build();
@@ -66,7 +77,7 @@ public class SmsMmsContacts {
      * @param id the id of the contact, as listed in the Threads table
      * @return the phone number of the contact - or null if id does not exist.
      */
-    public String getPhoneNumber(ContentResolver resolver, long id) {
+    public synchronized String getPhoneNumber(ContentResolver resolver, long id) {
         String number;
         if(mPhoneNumbers != null && (number = mPhoneNumbers.get(id)) != null) {
             return number;
@@ -94,7 +105,7 @@ public class SmsMmsContacts {
     /**
      * Clears the local cache. Call after a listing is complete, to avoid using invalid data.
      */
-    public void clearCache() {
+    public synchronized void clearCache() {
         if(mPhoneNumbers != null) mPhoneNumbers.clear();
         if(mNames != null) mNames.clear();
     }
@@ -143,7 +154,7 @@ public class SmsMmsContacts {
      * @param resolver the ContentResolver to use.
      * @return the name of the contact or null, if no contact was found.
      */
-    public MapContact getContactNameFromPhone(String phone, ContentResolver resolver,
+    public synchronized MapContact getContactNameFromPhone(String phone, ContentResolver resolver,
             String contactNameFilter) {
         MapContact contact = mNames.get(phone);
 
@@ -166,7 +177,7 @@ public class SmsMmsContacts {
 
         // TODO: Should we change to extract both formatted name, and display name?
 
-        Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,Uri.encode(phone));
+        Uri uri = getLookupUri(phone);
         String selection = CONTACT_SEL_VISIBLE;
         String[] selectionArgs = null;
         if(contactNameFilter != null) {
@@ -174,7 +185,8 @@ public class SmsMmsContacts {
             selectionArgs = new String[]{"%" + contactNameFilter.replace("*", "%") + "%"};
         }
 
-        Cursor c = resolver.query(uri, CONTACT_PROJECTION, selection, selectionArgs, null);
+        Cursor c = resolver.query(uri, CONTACT_PROJECTION, selection, selectionArgs,
+                Contacts.DISPLAY_NAME + " ASC");
         try {
             if (c != null && c.getCount() >= 1) {
                 c.moveToFirst();
@@ -192,4 +204,25 @@ public class SmsMmsContacts {
         }
         return contact;
     }
+
+    /**
+     * Get the URI used to look up the contact of a single phone number.
+     */
+    protected Uri getLookupUri(String phone) {
+        return Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(phone));
+    }
+
+    /**
+     * Check if the result of a contact lookup for a phone number is cached.
+     */
+    protected synchronized boolean isContactCached(String phone) {
+        return mNames.containsKey(phone);
+    }
+
+    /**
+     * Add the result of a contact lookup to the cache.
+     */
+    protected synchronized void putContact(String phone, MapContact contact) {
+        mNames.put(phone, contact);
+    }
 }
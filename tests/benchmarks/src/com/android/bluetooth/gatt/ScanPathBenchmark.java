@@ -0,0 +1,395 @@
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Debug;
+import android.os.ParcelUuid;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmarks for the LE scan result hot path.
+ *
+ * A synthetic advertisement stream is replayed through the parsing, filter
+ * indexing and filter matching code used by {@link GattService}, through batch
+ * report parsing, and through the whole path from the JNI scan result callback
+ * to the delivery of the result by the {@link ScanResultDispatcher}. Each
+ * benchmark checks the result of the measured operations and logs throughput,
+ * p50/p99 latency and allocations per operation under the
+ * {@code ScanPathBenchmark} tag. The benchmarks are built into their own package
+ * and are not part of the regular tests, e.g.
+ *
+ * adb shell am instrument -w
+ *         com.android.bluetooth.benchmarks/android.test.InstrumentationTestRunner
+ */
+public class ScanPathBenchmark extends AndroidTestCase {
+    private static final String TAG = "ScanPathBenchmark";
+
+    private static final int STREAM_SIZE = 512;
+    private static final int WARMUP_ITERATIONS = 2000;
+    private static final int MEASURED_ITERATIONS = 20000;
+    // Service UUIDs advertised by the synthetic devices and used by the filters.
+    private static final int NUM_SERVICES = 64;
+    private static final int[] CLIENT_COUNTS = { 1, 8, 32 };
+    // Records per batch report, see buildBatchReport().
+    private static final int BATCH_REPORT_SIZE = 32;
+    private static final int MAC_ADDRESS_LENGTH = 6;
+
+    /**
+     * Operation under test, called with the iteration number. Returns a count that
+     * is summed up over all measured iterations, so the work can't be optimized
+     * away and the result can be checked.
+     */
+    private interface Operation {
+        int run(int iteration);
+    }
+
+    /**
+     * Service without a stack. Scan results are matched against a fixed filter
+     * index and delivered results are counted instead of being sent to an app.
+     */
+    private static class BenchmarkService extends GattService {
+        final AtomicInteger numDelivered = new AtomicInteger();
+        private final ScanFilterIndex mIndex;
+        private final ScanClient mCountedClient;
+
+        BenchmarkService(List<ScanClient> clients, ScanClient countedClient) {
+            mAdapter = BluetoothAdapter.getDefaultAdapter();
+            mIndex = ScanFilterIndex.build(clients);
+            mCountedClient = countedClient;
+        }
+
+        @Override
+        ScanFilterIndex getRegularScanIndex() {
+            return mIndex;
+        }
+
+        @Override
+        boolean deliverScanResult(ScanClient client,
+                ScanResultDispatcher.Advertisement advertisement) {
+            if (client == mCountedClient) numDelivered.incrementAndGet();
+            return true;
+        }
+    }
+
+    private byte[][] mStream;
+    private String[] mAddresses;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Random random = new Random(42);
+        mStream = new byte[STREAM_SIZE][];
+        mAddresses = new String[STREAM_SIZE];
+        for (int i = 0; i < STREAM_SIZE; i++) {
+            mStream[i] = buildAdvertisement(random);
+            mAddresses[i] = String.format("00:11:22:33:%02X:%02X", i >> 8, i & 0xFF);
+        }
+    }
+
+    @LargeTest
+    public void testAdvertisingDataParser() {
+        final AdvertisingDataParser parser = new AdvertisingDataParser();
+        long uuids = measure("AdvertisingDataParser.reset", false, new Operation() {
+            @Override
+            public int run(int iteration) {
+                parser.reset(mStream[iteration % STREAM_SIZE]);
+                return parser.getServiceUuidCount();
+            }
+        });
+        // Every synthetic advertisement lists at least one service UUID.
+        assertTrue(uuids >= MEASURED_ITERATIONS);
+    }
+
+    @LargeTest
+    public void testScanRecordParse() {
+        // Baseline for the framework parser used to build scan results.
+        long uuids = measure("ScanRecord.parseFromBytes", false, new Operation() {
+            @Override
+            public int run(int iteration) {
+                return ScanRecord.parseFromBytes(mStream[iteration % STREAM_SIZE])
+                        .getServiceUuids().size();
+            }
+        });
+        assertTrue(uuids >= MEASURED_ITERATIONS);
+    }
+
+    @LargeTest
+    public void testFilterDispatch() {
+        // Both paths start from the raw advertisement, parse it and report the number
+        // of clients with a matching filter, as GattService did before and after
+        // scan filter indexing.
+        for (int numClients : CLIENT_COUNTS) {
+            final List<ScanClient> clientList = buildClients(numClients, 2);
+            final ScanFilterIndex index = ScanFilterIndex.build(clientList);
+            final AdvertisingDataParser parser = new AdvertisingDataParser();
+            final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+            long indexed = measure("dispatch clients=" + numClients, false, new Operation() {
+                @Override
+                public int run(int iteration) {
+                    int i = iteration % STREAM_SIZE;
+                    parser.reset(mStream[i]);
+                    boolean[] candidates = index.getCandidates(mAddresses[i], parser);
+                    ScanClient[] clients = index.getClients();
+                    ScanResult result = null;
+                    int matches = 0;
+                    for (int c = 0; c < clients.length; c++) {
+                        if (!candidates[c]) continue;
+                        if (result == null) {
+                            result = new ScanResult(adapter.getRemoteDevice(mAddresses[i]),
+                                    parser.getScanRecord(), -60, 0);
+                        }
+                        if (matchesAny(clients[c], result)) matches++;
+                    }
+                    return matches;
+                }
+            });
+            long linear = measure("linear match clients=" + numClients, false, new Operation() {
+                @Override
+                public int run(int iteration) {
+                    int i = iteration % STREAM_SIZE;
+                    ScanResult result = new ScanResult(adapter.getRemoteDevice(mAddresses[i]),
+                            ScanRecord.parseFromBytes(mStream[i]), -60, 0);
+                    int matches = 0;
+                    for (ScanClient client : clientList) {
+                        if (matchesAny(client, result)) matches++;
+                    }
+                    return matches;
+                }
+            });
+            assertTrue(linear > 0);
+            assertEquals(linear, indexed);
+        }
+    }
+
+    @LargeTest
+    public void testParseFullResults() {
+        final byte[] report = buildBatchReport();
+        for (int numClients : CLIENT_COUNTS) {
+            final List<ScanClient> clients = buildClients(numClients, 2);
+            final BenchmarkService service = new BenchmarkService(clients, null);
+            long expected = 0;
+            for (int i = 0; i < BATCH_REPORT_SIZE; i++) {
+                ScanResult result = new ScanResult(
+                        BluetoothAdapter.getDefaultAdapter().getRemoteDevice(mAddresses[i]),
+                        ScanRecord.parseFromBytes(mStream[i]), -60, 0);
+                for (ScanClient client : clients) {
+                    if (matchesAny(client, result)) expected++;
+                }
+            }
+            long parsed = measure("parseFullResults records=" + BATCH_REPORT_SIZE
+                    + " clients=" + numClients, false, new Operation() {
+                @Override
+                public int run(int iteration) {
+                    List<Set<ScanResult>> results = new ArrayList<Set<ScanResult>>();
+                    for (int c = 0; c < clients.size(); c++) {
+                        results.add(new LinkedHashSet<ScanResult>());
+                    }
+                    service.parseFullResults(BATCH_REPORT_SIZE, report, clients, results);
+                    int matches = 0;
+                    for (Set<ScanResult> clientResults : results) {
+                        matches += clientResults.size();
+                    }
+                    return matches;
+                }
+            });
+            assertTrue(expected > 0);
+            assertEquals(expected * MEASURED_ITERATIONS, parsed);
+        }
+    }
+
+    @LargeTest
+    public void testScanResultPipeline() {
+        // One client without filters gets every advertisement, the others only
+        // add filter matching and delivery work.
+        for (int numClients : CLIENT_COUNTS) {
+            ScanClient countedClient = new ScanClient(0, false,
+                    new ScanSettings.Builder().build(), null);
+            List<ScanClient> clients = buildClients(numClients - 1, 2);
+            clients.add(countedClient);
+            final BenchmarkService service = new BenchmarkService(clients, countedClient);
+            ScanResultDispatcher dispatcher = new ScanResultDispatcher(service);
+            for (ScanClient client : clients) {
+                client.hasScanResultPermission = true;
+                dispatcher.addClient(client);
+            }
+            service.mScanResultDispatcher = dispatcher;
+            dispatcher.start();
+            try {
+                measure("onScanResult to delivery clients=" + numClients, true,
+                        new Operation() {
+                    @Override
+                    public int run(int iteration) {
+                        int i = iteration % STREAM_SIZE;
+                        int delivered = service.numDelivered.get() + 1;
+                        service.onScanResult(mAddresses[i], -60, mStream[i]);
+                        while (service.numDelivered.get() < delivered) {
+                            Thread.yield();
+                        }
+                        return 1;
+                    }
+                });
+            } finally {
+                dispatcher.cleanup();
+            }
+            assertEquals(WARMUP_ITERATIONS + MEASURED_ITERATIONS, service.numDelivered.get());
+        }
+    }
+
+    @LargeTest
+    public void testFilterIndexRebuild() {
+        for (int numClients : CLIENT_COUNTS) {
+            final List<ScanClient> clients = buildClients(numClients, 2);
+            long indexed = measure("ScanFilterIndex.build clients=" + numClients, false,
+                    new Operation() {
+                @Override
+                public int run(int iteration) {
+                    return ScanFilterIndex.build(clients).getClients().length;
+                }
+            });
+            assertEquals((long) numClients * MEASURED_ITERATIONS, indexed);
+        }
+    }
+
+    @LargeTest
+    public void testFilterSlotBookkeeping() {
+        final List<ScanClient> clients = buildClients(32, 2);
+        final ScanFilterSlotAllocator allocator = new ScanFilterSlotAllocator();
+        allocator.init(3, 3 + NUM_SERVICES);
+        long released = measure("filter slot acquire/release", false, new Operation() {
+            @Override
+            public int run(int iteration) {
+                ScanClient client = clients.get(iteration % clients.size());
+                for (ScanFilter filter : client.filters) {
+                    allocator.acquire(client.clientIf, filter, 0, true);
+                }
+                return allocator.release(client.clientIf).size();
+            }
+        });
+        // Clients don't share filters, so each release frees all of its slots.
+        assertEquals(2L * MEASURED_ITERATIONS, released);
+    }
+
+    // Returns the sum of the counts returned by the measured iterations. Allocations
+    // are counted on the calling thread, or in the whole process if the operation
+    // hands work to other threads.
+    private long measure(String name, boolean globalAllocs, Operation operation) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            operation.run(i);
+        }
+        long[] latencies = new long[MEASURED_ITERATIONS];
+        long total = 0;
+        Debug.resetThreadAllocCount();
+        Debug.resetGlobalAllocCount();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long opStart = System.nanoTime();
+            total += operation.run(i);
+            latencies[i] = System.nanoTime() - opStart;
+        }
+        long elapsed = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        long allocs = globalAllocs ? Debug.getGlobalAllocCount() : Debug.getThreadAllocCount();
+
+        Arrays.sort(latencies);
+        Log.i(TAG, name + ": " + (MEASURED_ITERATIONS * 1000000000L / Math.max(elapsed, 1))
+                + " ops/s, p50=" + latencies[MEASURED_ITERATIONS / 2] + "ns, p99="
+                + latencies[MEASURED_ITERATIONS * 99 / 100] + "ns, allocs/op="
+                + String.format("%.1f", (double) allocs / MEASURED_ITERATIONS)
+                + (globalAllocs ? " (process)" : ""));
+        return total;
+    }
+
+    private static boolean matchesAny(ScanClient client, ScanResult result) {
+        for (ScanFilter filter : client.filters) {
+            if (filter.matches(result)) return true;
+        }
+        return false;
+    }
+
+    // Flags, a few 16-bit service UUIDs, manufacturer data and a local name.
+    private static byte[] buildAdvertisement(Random random) {
+        int numUuids = 1 + random.nextInt(3);
+        byte[] data = new byte[3 + 2 + numUuids * 2 + 6 + 6];
+        int pos = 0;
+        data[pos++] = 2;
+        data[pos++] = 0x01;
+        data[pos++] = 0x06;
+        data[pos++] = (byte) (1 + numUuids * 2);
+        data[pos++] = 0x03;
+        for (int i = 0; i < numUuids; i++) {
+            int uuid = 0x1800 + random.nextInt(NUM_SERVICES);
+            data[pos++] = (byte) uuid;
+            data[pos++] = (byte) (uuid >> 8);
+        }
+        data[pos++] = 5;
+        data[pos++] = (byte) 0xFF;
+        data[pos++] = (byte) 0xE0;
+        data[pos++] = 0x00;
+        data[pos++] = (byte) random.nextInt(256);
+        data[pos++] = (byte) random.nextInt(256);
+        data[pos++] = 5;
+        data[pos++] = 0x09;
+        data[pos++] = 'b';
+        data[pos++] = 'e';
+        data[pos++] = 'n';
+        data[pos++] = 'c';
+        return data;
+    }
+
+    // Full result batch report with the first BATCH_REPORT_SIZE advertisements of the
+    // stream: address, address type, tx power, rssi, timestamp, advertisement and an
+    // empty scan response.
+    private byte[] buildBatchReport() {
+        int length = 0;
+        for (int i = 0; i < BATCH_REPORT_SIZE; i++) {
+            length += MAC_ADDRESS_LENGTH + 6 + mStream[i].length + 1;
+        }
+        byte[] report = new byte[length];
+        int pos = 0;
+        for (int i = 0; i < BATCH_REPORT_SIZE; i++) {
+            String[] address = mAddresses[i].split(":");
+            for (int b = 0; b < MAC_ADDRESS_LENGTH; b++) {
+                report[pos++] = (byte) Integer.parseInt(address[MAC_ADDRESS_LENGTH - 1 - b], 16);
+            }
+            report[pos++] = 0;
+            report[pos++] = 0;
+            report[pos++] = (byte) -60;
+            report[pos++] = (byte) i;
+            report[pos++] = 0;
+            report[pos++] = (byte) mStream[i].length;
+            System.arraycopy(mStream[i], 0, report, pos, mStream[i].length);
+            pos += mStream[i].length;
+            report[pos++] = 0;
+        }
+        return report;
+    }
+
+    private static List<ScanClient> buildClients(int numClients, int filtersPerClient) {
+        List<ScanClient> clients = new ArrayList<ScanClient>(numClients);
+        ScanSettings settings = new ScanSettings.Builder().build();
+        for (int c = 0; c < numClients; c++) {
+            List<ScanFilter> filters = new ArrayList<ScanFilter>(filtersPerClient);
+            for (int f = 0; f < filtersPerClient; f++) {
+                int uuid = 0x1800 + (c * filtersPerClient + f) % NUM_SERVICES;
+                filters.add(new ScanFilter.Builder().setServiceUuid(ParcelUuid.fromString(
+                        String.format("0000%04X-0000-1000-8000-00805F9B34FB", uuid))).build());
+            }
+            clients.add(new ScanClient(c + 1, false, settings, filters));
+        }
+        return clients;
+    }
+}
@@ -0,0 +1,71 @@
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.UUID;
+
+/**
+ * Test cases for {@link AdvertisingDataParser}.
+ */
+public class AdvertisingDataParserTest extends AndroidTestCase {
+
+    private static final UUID HEART_RATE =
+            UUID.fromString("0000180D-0000-1000-8000-00805F9B34FB");
+    private static final UUID BATTERY =
+            UUID.fromString("0000180F-0000-1000-8000-00805F9B34FB");
+    private static final UUID CUSTOM =
+            UUID.fromString("00112233-4455-6677-8899-AABBCCDDEEFF");
+
+    @SmallTest
+    public void testParse16BitUuids() {
+        AdvertisingDataParser parser = new AdvertisingDataParser();
+        parser.reset(new byte[] {
+                0x02, 0x01, 0x06, // flags
+                0x05, 0x03, 0x0D, 0x18, 0x0F, 0x18 // complete 16-bit uuids
+        });
+        assertEquals(2, parser.getServiceUuidCount());
+        assertTrue(parser.containsServiceUuid(HEART_RATE));
+        assertTrue(parser.containsAllServiceUuids(new UUID[] { HEART_RATE, BATTERY }));
+        assertFalse(parser.containsServiceUuid(CUSTOM));
+    }
+
+    @SmallTest
+    public void testParse128BitUuid() {
+        AdvertisingDataParser parser = new AdvertisingDataParser();
+        parser.reset(new byte[] {
+                0x11, 0x07,
+                (byte) 0xFF, (byte) 0xEE, (byte) 0xDD, (byte) 0xCC,
+                (byte) 0xBB, (byte) 0xAA, (byte) 0x99, (byte) 0x88,
+                0x77, 0x66, 0x55, 0x44, 0x33, 0x22, 0x11, 0x00
+        });
+        assertEquals(1, parser.getServiceUuidCount());
+        assertTrue(parser.containsServiceUuid(CUSTOM));
+        assertFalse(parser.containsServiceUuid(HEART_RATE));
+    }
+
+    @SmallTest
+    public void testParseBaseUuidIn128BitForm() {
+        AdvertisingDataParser parser = new AdvertisingDataParser();
+        parser.reset(new byte[] {
+                0x11, 0x07,
+                (byte) 0xFB, 0x34, (byte) 0x9B, 0x5F, (byte) 0x80, 0x00, 0x00, (byte) 0x80,
+                0x00, 0x10, 0x00, 0x00, 0x0D, 0x18, 0x00, 0x00
+        });
+        assertEquals(0, parser.getUuid16Count());
+        assertEquals(1, parser.getUuid128Count());
+        assertEquals(0x180D, parser.getShortUuid128(0));
+        assertTrue(parser.containsServiceUuid(HEART_RATE));
+    }
+
+    @SmallTest
+    public void testResetDiscardsPreviousResults() {
+        AdvertisingDataParser parser = new AdvertisingDataParser();
+        parser.reset(new byte[] { 0x03, 0x02, 0x0D, 0x18 });
+        assertTrue(parser.containsServiceUuid(HEART_RATE));
+        // Truncated structure must not be read past the end of the buffer.
+        parser.reset(new byte[] { 0x05, 0x03, 0x0F });
+        assertEquals(0, parser.getServiceUuidCount());
+        assertFalse(parser.containsServiceUuid(HEART_RATE));
+    }
+}
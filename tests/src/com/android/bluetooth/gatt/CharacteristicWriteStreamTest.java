@@ -0,0 +1,104 @@
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Test cases for {@link CharacteristicWriteStream}.
+ */
+public class CharacteristicWriteStreamTest extends AndroidTestCase {
+
+    private static final UUID SERVICE_UUID =
+            UUID.fromString("0000FE59-0000-1000-8000-00805F9B34FB");
+    private static final UUID CHAR_UUID =
+            UUID.fromString("8EC90002-F315-4F60-9FB8-838830DAEA50");
+
+    private final List<byte[]> mChunks = new ArrayList<byte[]>();
+    private int mStatus = -1;
+
+    private CharacteristicWriteStream createStream(int length, int mtu) {
+        mChunks.clear();
+        mStatus = -1;
+        return new CharacteristicWriteStream(1, "00:11:22:33:44:55", 0, 0, SERVICE_UUID, 0,
+                CHAR_UUID, 0, mtu, new ByteArrayInputStream(new byte[length]), length,
+                new CharacteristicWriteStream.ChunkWriter() {
+                    @Override
+                    public void writeChunk(CharacteristicWriteStream stream, byte[] chunk) {
+                        mChunks.add(chunk);
+                    }
+                },
+                new CharacteristicWriteStream.Listener() {
+                    @Override
+                    public void onProgress(CharacteristicWriteStream stream, long bytesWritten) {
+                    }
+
+                    @Override
+                    public void onComplete(CharacteristicWriteStream stream, int status) {
+                        mStatus = status;
+                    }
+                });
+    }
+
+    @SmallTest
+    public void testSegmentsToMtu() {
+        CharacteristicWriteStream stream = createStream(1000, 247);
+        stream.start();
+        while (!stream.isFinished()) {
+            stream.onWriteCompleted(BluetoothGatt.GATT_SUCCESS);
+        }
+        assertEquals(BluetoothGatt.GATT_SUCCESS, mStatus);
+        assertEquals(5, mChunks.size());
+        assertEquals(244, mChunks.get(0).length);
+        assertEquals(1000 - 4 * 244, mChunks.get(4).length);
+        assertEquals(1000, stream.getBytesWritten());
+    }
+
+    @SmallTest
+    public void testChunkSizeForMtu() {
+        assertEquals(20, CharacteristicWriteStream.getChunkSize(23));
+        assertEquals(244, CharacteristicWriteStream.getChunkSize(247));
+        // Never below the default MTU
+        assertEquals(20, CharacteristicWriteStream.getChunkSize(0));
+    }
+
+    @SmallTest
+    public void testOneWriteOutstanding() {
+        CharacteristicWriteStream stream = createStream(200, 23);
+        stream.start();
+        assertEquals(1, mChunks.size());
+        stream.onWriteCompleted(BluetoothGatt.GATT_SUCCESS);
+        assertEquals(2, mChunks.size());
+        stream.setCongested(false);
+        assertEquals(2, mChunks.size());
+    }
+
+    @SmallTest
+    public void testPausesWhileCongested() {
+        CharacteristicWriteStream stream = createStream(200, 23);
+        stream.start();
+        int sent = mChunks.size();
+        stream.onWriteCompleted(BluetoothGatt.GATT_CONNECTION_CONGESTED);
+        assertEquals(sent, mChunks.size());
+
+        stream.setCongested(false);
+        assertEquals(sent + 1, mChunks.size());
+    }
+
+    @SmallTest
+    public void testFailureStopsStream() {
+        CharacteristicWriteStream stream = createStream(200, 23);
+        stream.start();
+        int sent = mChunks.size();
+        stream.onWriteCompleted(BluetoothGatt.GATT_FAILURE);
+        assertTrue(stream.isFinished());
+        assertEquals(BluetoothGatt.GATT_FAILURE, mStatus);
+        stream.onWriteCompleted(BluetoothGatt.GATT_SUCCESS);
+        assertEquals(sent, mChunks.size());
+    }
+}
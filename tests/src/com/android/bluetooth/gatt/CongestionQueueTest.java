@@ -0,0 +1,49 @@
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Test cases for {@link CongestionQueue}.
+ */
+public class CongestionQueueTest extends AndroidTestCase {
+
+    @SmallTest
+    public void testHoldsCompletionsWhileCongested() {
+        CongestionQueue queue = new CongestionQueue();
+        assertFalse(queue.shouldQueue());
+
+        queue.setCongested(true);
+        assertTrue(queue.shouldQueue());
+        assertNull(queue.offer(new CallbackInfo("first", 0)));
+        assertNull(queue.offer(new CallbackInfo("second", 0)));
+        assertNull(queue.poll());
+
+        queue.setCongested(false);
+        // Still queueing until the held completions are delivered
+        assertTrue(queue.shouldQueue());
+        assertEquals("first", queue.poll().address);
+        assertEquals("second", queue.poll().address);
+        assertNull(queue.poll());
+        assertFalse(queue.shouldQueue());
+    }
+
+    @SmallTest
+    public void testOverflowReturnsOldestCompletion() {
+        CongestionQueue queue = new CongestionQueue();
+        queue.setCongested(true);
+        for (int i = 0; i < CongestionQueue.MAX_QUEUED; i++) {
+            assertNull(queue.offer(new CallbackInfo(Integer.toString(i), 0)));
+        }
+
+        CallbackInfo overflow = queue.offer(new CallbackInfo("last", 0));
+        assertEquals("0", overflow.address);
+
+        queue.setCongested(false);
+        for (int i = 1; i < CongestionQueue.MAX_QUEUED; i++) {
+            assertEquals(Integer.toString(i), queue.poll().address);
+        }
+        assertEquals("last", queue.poll().address);
+        assertNull(queue.poll());
+    }
+}
@@ -0,0 +1,195 @@
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Test cases for {@link ContextMap}.
+ */
+public class ContextMapTest extends AndroidTestCase {
+
+    private static final UUID APP_UUID =
+            UUID.fromString("00000000-0000-0000-0000-000000000001");
+    private static final UUID OTHER_APP_UUID =
+            UUID.fromString("00000000-0000-0000-0000-000000000002");
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final String OTHER_ADDRESS = "00:11:22:33:44:66";
+
+    private static ContextMap<Object> newMap(int... ids) {
+        ContextMap<Object> map = new ContextMap<Object>();
+        for (int id : ids) {
+            UUID uuid = new UUID(0, id);
+            map.add(uuid, new Object());
+            map.setId(map.getByUuid(uuid), id);
+        }
+        return map;
+    }
+
+    @SmallTest
+    public void testAppLookups() {
+        ContextMap<Object> map = new ContextMap<Object>();
+        map.add(APP_UUID, new Object());
+        map.add(OTHER_APP_UUID, new Object());
+        ContextMap<Object>.App app = map.getByUuid(APP_UUID);
+        assertNotNull(app);
+        assertNull(map.getById(1));
+
+        map.setId(app, 1);
+        assertSame(app, map.getById(1));
+        assertEquals(2, map.getApps().size());
+
+        map.remove(APP_UUID);
+        assertNull(map.getByUuid(APP_UUID));
+        assertNull(map.getById(1));
+        assertNotNull(map.getByUuid(OTHER_APP_UUID));
+    }
+
+    @SmallTest
+    public void testConnectionLookups() {
+        ContextMap<Object> map = newMap(1, 2);
+        map.addConnection(1, 10, ADDRESS);
+        map.addConnection(1, 11, ADDRESS);
+        map.addConnection(1, 12, OTHER_ADDRESS);
+        map.addConnection(2, 20, ADDRESS);
+
+        // Every connection is kept, including a second one to the same address
+        List<ContextMap<Object>.Connection> connections = map.getConnectionByApp(1);
+        assertEquals(3, connections.size());
+        assertEquals(10, connections.get(0).connId);
+        assertEquals(11, connections.get(1).connId);
+        assertEquals(12, connections.get(2).connId);
+        assertEquals(1, map.getConnectionByApp(2).size());
+        assertTrue(map.getConnectionByApp(3).isEmpty());
+
+        assertEquals(Integer.valueOf(10), map.connIdByAddress(1, ADDRESS));
+        assertEquals(Integer.valueOf(20), map.connIdByAddress(2, ADDRESS));
+        assertNull(map.connIdByAddress(2, OTHER_ADDRESS));
+        assertSame(map.getById(1), map.getByConnId(11));
+        assertEquals(OTHER_ADDRESS, map.addressByConnId(12));
+        assertEquals(12, map.getConnectionById(12).connId);
+        assertEquals(new HashSet<String>(Arrays.asList(ADDRESS, OTHER_ADDRESS)),
+                map.getConnectedDevices());
+
+        // The next connection to the address takes over
+        map.removeConnection(1, 10);
+        assertEquals(Integer.valueOf(11), map.connIdByAddress(1, ADDRESS));
+        assertEquals(2, map.getConnectionByApp(1).size());
+        assertNull(map.getConnectionById(10));
+        assertNull(map.getByConnId(10));
+    }
+
+    @SmallTest
+    public void testConnectionForUnknownAppIgnored() {
+        ContextMap<Object> map = newMap(1);
+        map.addConnection(2, 20, ADDRESS);
+        assertNull(map.getConnectionById(20));
+        assertTrue(map.getConnectionByApp(2).isEmpty());
+    }
+
+    @SmallTest
+    public void testRemoveAppRemovesConnections() {
+        ContextMap<Object> map = newMap(1, 2);
+        map.addConnection(1, 10, ADDRESS);
+        map.addConnection(2, 20, ADDRESS);
+
+        map.remove(1);
+        assertNull(map.getById(1));
+        assertTrue(map.getConnectionByApp(1).isEmpty());
+        assertNull(map.getConnectionById(10));
+        assertNull(map.connIdByAddress(1, ADDRESS));
+        assertEquals(Integer.valueOf(20), map.connIdByAddress(2, ADDRESS));
+
+        map.clear();
+        assertTrue(map.getApps().isEmpty());
+        assertNull(map.getConnectionById(20));
+    }
+
+    @SmallTest
+    public void testReadersKeepTheirSnapshot() {
+        ContextMap<Object> map = newMap(1);
+        map.addConnection(1, 10, ADDRESS);
+        List<ContextMap<Object>.App> apps = map.getApps();
+        List<ContextMap<Object>.Connection> connections = map.getConnectionByApp(1);
+
+        map.add(OTHER_APP_UUID, new Object());
+        map.addConnection(1, 11, OTHER_ADDRESS);
+        map.removeConnection(1, 10);
+        assertEquals(1, apps.size());
+        assertEquals(1, connections.size());
+        assertEquals(10, connections.get(0).connId);
+
+        try {
+            map.getApps().add(null);
+            fail("App list is modifiable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @SmallTest
+    public void testConcurrentReadsDuringUpdates() throws InterruptedException {
+        final ContextMap<Object> map = newMap(1, 2);
+        // Never removed, so every reader must see it.
+        map.addConnection(1, 1, ADDRESS);
+        final int iterations = 2000;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < iterations; i++) {
+                    int connId = 100 + i;
+                    map.addConnection(1 + i % 2, connId, OTHER_ADDRESS);
+                    map.removeConnection(1 + i % 2, connId - 1);
+                }
+            }
+        });
+        Thread[] readers = new Thread[3];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < iterations; i++) {
+                            assertEquals(Integer.valueOf(1), map.connIdByAddress(1, ADDRESS));
+                            assertSame(map.getById(1), map.getByConnId(1));
+                            for (ContextMap<Object>.Connection connection
+                                    : map.getConnectionByApp(1)) {
+                                assertEquals(1, connection.appId);
+                            }
+                            for (ContextMap<Object>.Connection connection
+                                    : map.getConnectionByApp(2)) {
+                                assertEquals(2, connection.appId);
+                            }
+                            assertTrue(map.getConnectedDevices().contains(ADDRESS));
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+        }
+
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        // Only the stable connection and the last one added are left
+        assertEquals(2, map.getConnectionByApp(1).size() + map.getConnectionByApp(2).size());
+        assertNotNull(map.getConnectionById(100 + iterations - 1));
+    }
+}
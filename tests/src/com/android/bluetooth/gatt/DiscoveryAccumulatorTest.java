@@ -0,0 +1,83 @@
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Test cases for {@link DiscoveryAccumulator}.
+ */
+public class DiscoveryAccumulatorTest extends AndroidTestCase {
+
+    private static final UUID SERVICE_UUID =
+            UUID.fromString("0000180D-0000-1000-8000-00805F9B34FB");
+    private static final UUID CHAR_UUID =
+            UUID.fromString("00002A37-0000-1000-8000-00805F9B34FB");
+
+    private static final GattAttributeCache.Attribute SERVICE =
+            GattAttributeCache.Attribute.service(0, 1, SERVICE_UUID);
+    private static final GattAttributeCache.Attribute CHARACTERISTIC =
+            GattAttributeCache.Attribute.characteristic(0, 1, SERVICE_UUID, 2, CHAR_UUID, 0x10);
+
+    @SmallTest
+    public void testResultsHeldUntilSearchCompletes() {
+        DiscoveryAccumulator accumulator = new DiscoveryAccumulator();
+        accumulator.start(1, null);
+        assertFalse(accumulator.add(1, SERVICE));
+        assertFalse(accumulator.add(1, CHARACTERISTIC));
+
+        DiscoveryAccumulator.Discovery discovery = accumulator.finish(1, true);
+        assertEquals(Arrays.asList(SERVICE, CHARACTERISTIC), discovery.attributes);
+        assertNull(discovery.cached);
+        assertNull(accumulator.finish(1, true));
+    }
+
+    @SmallTest
+    public void testResultsWithoutSearchReportedRightAway() {
+        DiscoveryAccumulator accumulator = new DiscoveryAccumulator();
+        accumulator.start(1, null);
+        assertTrue(accumulator.add(2, SERVICE));
+        assertNull(accumulator.finish(2, true));
+        assertTrue(accumulator.finish(1, true).attributes.isEmpty());
+    }
+
+    @SmallTest
+    public void testSearchesKeptPerConnection() {
+        DiscoveryAccumulator accumulator = new DiscoveryAccumulator();
+        accumulator.start(1, null);
+        accumulator.start(2, null);
+        accumulator.add(1, SERVICE);
+        accumulator.add(2, SERVICE);
+        accumulator.add(2, CHARACTERISTIC);
+
+        assertEquals(Arrays.asList(SERVICE), accumulator.finish(1, true).attributes);
+        assertEquals(Arrays.asList(SERVICE, CHARACTERISTIC),
+                accumulator.finish(2, true).attributes);
+    }
+
+    @SmallTest
+    public void testFailedSearchKeepsPartialResults() {
+        DiscoveryAccumulator accumulator = new DiscoveryAccumulator();
+        List<GattAttributeCache.Attribute> cached = Arrays.asList(SERVICE, CHARACTERISTIC);
+        accumulator.start(1, cached);
+        accumulator.add(1, SERVICE);
+
+        DiscoveryAccumulator.Discovery discovery = accumulator.finish(1, false);
+        assertEquals(Arrays.asList(SERVICE), discovery.attributes);
+        assertSame(cached, discovery.cached);
+    }
+
+    @SmallTest
+    public void testCancelDropsResults() {
+        DiscoveryAccumulator accumulator = new DiscoveryAccumulator();
+        accumulator.start(1, null);
+        accumulator.add(1, SERVICE);
+        accumulator.cancel(1);
+
+        assertTrue(accumulator.add(1, CHARACTERISTIC));
+        assertNull(accumulator.finish(1, true));
+    }
+}
@@ -0,0 +1,132 @@
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Test cases for {@link GattAttributeCache}.
+ */
+public class GattAttributeCacheTest extends AndroidTestCase {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final String OTHER_ADDRESS = "00:11:22:33:44:66";
+    private static final UUID SERVICE_UUID =
+            UUID.fromString("0000180D-0000-1000-8000-00805F9B34FB");
+    private static final UUID CHAR_UUID =
+            UUID.fromString("00002A37-0000-1000-8000-00805F9B34FB");
+    private static final UUID DESCR_UUID =
+            UUID.fromString("00002902-0000-1000-8000-00805F9B34FB");
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "gatt_cache_test");
+        deleteDirectory();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDirectory();
+        super.tearDown();
+    }
+
+    private void deleteDirectory() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private static List<GattAttributeCache.Attribute> database(int charProp) {
+        return Arrays.asList(
+                GattAttributeCache.Attribute.service(0, 1, SERVICE_UUID),
+                GattAttributeCache.Attribute.characteristic(0, 1, SERVICE_UUID, 2, CHAR_UUID,
+                        charProp),
+                GattAttributeCache.Attribute.descriptor(0, 1, SERVICE_UUID, 2, CHAR_UUID, 3,
+                        DESCR_UUID));
+    }
+
+    @SmallTest
+    public void testStoredAcrossInstances() {
+        GattAttributeCache cache = new GattAttributeCache(mDirectory);
+        assertNull(cache.get(ADDRESS));
+
+        cache.put(ADDRESS, database(0x10));
+        assertEquals(database(0x10), cache.get(ADDRESS));
+
+        // A new instance reads the entry back from disk
+        GattAttributeCache reloaded = new GattAttributeCache(mDirectory);
+        assertEquals(database(0x10), reloaded.get(ADDRESS));
+        assertNull(reloaded.get(OTHER_ADDRESS));
+    }
+
+    @SmallTest
+    public void testChangedDatabaseReplacesEntry() {
+        GattAttributeCache cache = new GattAttributeCache(mDirectory);
+        cache.put(ADDRESS, database(0x10));
+        cache.put(ADDRESS, database(0x12));
+        assertEquals(database(0x12), cache.get(ADDRESS));
+        assertEquals(database(0x12), new GattAttributeCache(mDirectory).get(ADDRESS));
+        assertFalse(database(0x10).equals(database(0x12)));
+    }
+
+    @SmallTest
+    public void testInvalidateDropsStoredEntry() {
+        GattAttributeCache cache = new GattAttributeCache(mDirectory);
+        cache.put(ADDRESS, database(0x10));
+        cache.put(OTHER_ADDRESS, database(0x10));
+
+        cache.invalidate(ADDRESS);
+        assertNull(cache.get(ADDRESS));
+        assertNotNull(cache.get(OTHER_ADDRESS));
+
+        // Nothing is left on disk either
+        GattAttributeCache reloaded = new GattAttributeCache(mDirectory);
+        assertNull(reloaded.get(ADDRESS));
+        assertNotNull(reloaded.get(OTHER_ADDRESS));
+
+        // Invalidating a device that isn't cached is harmless
+        cache.invalidate(ADDRESS);
+        assertNull(cache.get(ADDRESS));
+    }
+
+    @SmallTest
+    public void testInvalidateDropsLoadedEntry() {
+        GattAttributeCache cache = new GattAttributeCache(mDirectory);
+        cache.put(ADDRESS, database(0x10));
+        GattAttributeCache other = new GattAttributeCache(mDirectory);
+        assertNotNull(other.get(ADDRESS));
+
+        other.invalidate(ADDRESS);
+        assertNull(other.get(ADDRESS));
+        assertNull(new GattAttributeCache(mDirectory).get(ADDRESS));
+    }
+
+    @SmallTest
+    public void testEntriesAreUnmodifiable() {
+        GattAttributeCache cache = new GattAttributeCache(mDirectory);
+        cache.put(ADDRESS, database(0x10));
+        try {
+            cache.get(ADDRESS).clear();
+            fail("Cached attributes are modifiable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            new GattAttributeCache(mDirectory).get(ADDRESS).clear();
+            fail("Loaded attributes are modifiable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+}
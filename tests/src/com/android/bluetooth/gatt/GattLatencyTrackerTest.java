@@ -0,0 +1,40 @@
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Test cases for {@link GattLatencyTracker}.
+ */
+public class GattLatencyTrackerTest extends AndroidTestCase {
+
+    @SmallTest
+    public void testHistogramBuckets() {
+        GattLatencyTracker.Histogram histogram = new GattLatencyTracker.Histogram();
+        histogram.add(GattLatencyTracker.OP_READ_CHARACTERISTIC, 0);
+        histogram.add(GattLatencyTracker.OP_READ_CHARACTERISTIC, 5);
+        histogram.add(GattLatencyTracker.OP_READ_CHARACTERISTIC, 60000);
+
+        assertEquals(3, histogram.getCount(GattLatencyTracker.OP_READ_CHARACTERISTIC));
+        assertEquals(1, histogram.getCount(GattLatencyTracker.OP_READ_CHARACTERISTIC, 0));
+        assertEquals(1, histogram.getCount(GattLatencyTracker.OP_READ_CHARACTERISTIC, 1));
+        assertEquals(1, histogram.getCount(GattLatencyTracker.OP_READ_CHARACTERISTIC, 10));
+        assertEquals(0, histogram.getCount(GattLatencyTracker.OP_WRITE_CHARACTERISTIC));
+    }
+
+    @SmallTest
+    public void testCompletionWithoutStartIgnored() {
+        GattLatencyTracker tracker = new GattLatencyTracker();
+        tracker.complete(1, GattLatencyTracker.OP_CONFIGURE_MTU, 5, "00:11:22:33:44:55");
+        tracker.start(1, GattLatencyTracker.OP_READ_DESCRIPTOR);
+        tracker.removeConnection(1);
+        tracker.complete(1, GattLatencyTracker.OP_READ_DESCRIPTOR, 5, "00:11:22:33:44:55");
+        tracker.start(2, GattLatencyTracker.OP_READ_DESCRIPTOR);
+        tracker.complete(2, GattLatencyTracker.OP_READ_DESCRIPTOR, 5, "00:11:22:33:44:66");
+
+        StringBuilder sb = new StringBuilder();
+        tracker.dump(sb);
+        assertFalse(sb.toString().contains("00:11:22:33:44:55"));
+        assertTrue(sb.toString().contains("00:11:22:33:44:66"));
+    }
+}
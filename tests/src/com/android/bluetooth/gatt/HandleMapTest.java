@@ -0,0 +1,45 @@
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.UUID;
+
+/**
+ * Test cases for {@link HandleMap}.
+ */
+public class HandleMapTest extends AndroidTestCase {
+
+    private static final UUID SERVICE_UUID =
+            UUID.fromString("0000180D-0000-1000-8000-00805F9B34FB");
+    private static final UUID CHAR_UUID =
+            UUID.fromString("00002A37-0000-1000-8000-00805F9B34FB");
+
+    @SmallTest
+    public void testLookupByHandleAndUuid() {
+        HandleMap map = new HandleMap();
+        map.addService(1, 40, SERVICE_UUID, 0, 0, false);
+        map.addCharacteristic(1, 41, CHAR_UUID, 40);
+        map.addDescriptor(1, 42, CHAR_UUID, 40);
+
+        assertEquals(40, map.getServiceHandle(SERVICE_UUID, 0, 0));
+        assertEquals(41, map.getCharacteristicHandle(40, CHAR_UUID, 0));
+        assertEquals(HandleMap.TYPE_DESCRIPTOR, map.getByHandle(42).type);
+        assertEquals(41, map.getByHandle(42).charHandle);
+        assertEquals(0, map.getServiceHandle(SERVICE_UUID, 0, 1));
+    }
+
+    @SmallTest
+    public void testDeleteServiceUpdatesIndex() {
+        HandleMap map = new HandleMap();
+        map.addService(1, 40, SERVICE_UUID, 0, 0, false);
+        map.addCharacteristic(1, 41, CHAR_UUID, 40);
+        // Same service registered by a second server.
+        map.addService(2, 50, SERVICE_UUID, 0, 0, false);
+
+        map.deleteService(1, 40);
+        assertNull(map.getByHandle(41));
+        assertEquals(0, map.getCharacteristicHandle(40, CHAR_UUID, 0));
+        assertEquals(50, map.getServiceHandle(SERVICE_UUID, 0, 0));
+    }
+}
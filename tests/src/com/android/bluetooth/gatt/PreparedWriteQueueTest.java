@@ -0,0 +1,63 @@
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test cases for {@link PreparedWriteQueue}.
+ */
+public class PreparedWriteQueueTest extends AndroidTestCase {
+
+    @SmallTest
+    public void testCoalescesFragments() {
+        PreparedWriteQueue queue = new PreparedWriteQueue();
+        assertEquals(BluetoothGatt.GATT_SUCCESS, queue.prepare(42, 0, new byte[] { 1, 2 }));
+        assertEquals(BluetoothGatt.GATT_SUCCESS, queue.prepare(43, 4, new byte[] { 9 }));
+        assertEquals(BluetoothGatt.GATT_SUCCESS, queue.prepare(42, 2, new byte[] { 3, 4 }));
+        assertEquals(BluetoothGatt.GATT_SUCCESS, queue.validate());
+
+        List<PreparedWriteQueue.Write> writes = queue.execute();
+        assertEquals(2, writes.size());
+        assertEquals(42, writes.get(0).handle);
+        assertEquals(2, writes.get(0).getNumFragments());
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3, 4 }, writes.get(0).getValue()));
+        assertEquals(4, writes.get(1).offset);
+        assertTrue(queue.isEmpty());
+    }
+
+    @SmallTest
+    public void testRejectsGapInOffsets() {
+        PreparedWriteQueue queue = new PreparedWriteQueue();
+        queue.prepare(42, 0, new byte[] { 1, 2 });
+        queue.prepare(42, 5, new byte[] { 3 });
+        assertEquals(BluetoothGatt.GATT_INVALID_OFFSET, queue.validate());
+    }
+
+    @SmallTest
+    public void testRejectsOverlongValue() {
+        PreparedWriteQueue queue = new PreparedWriteQueue();
+        queue.prepare(42, 0, new byte[PreparedWriteQueue.MAX_ATTRIBUTE_LENGTH]);
+        assertEquals(BluetoothGatt.GATT_SUCCESS, queue.validate());
+        queue.prepare(42, PreparedWriteQueue.MAX_ATTRIBUTE_LENGTH, new byte[] { 1 });
+        assertEquals(BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH, queue.validate());
+    }
+
+    @SmallTest
+    public void testBoundsQueuedBytes() {
+        PreparedWriteQueue queue = new PreparedWriteQueue();
+        byte[] fragment = new byte[PreparedWriteQueue.MAX_ATTRIBUTE_LENGTH];
+        for (int i = 0; i < PreparedWriteQueue.MAX_QUEUE_BYTES / fragment.length; i++) {
+            assertEquals(BluetoothGatt.GATT_SUCCESS, queue.prepare(i, 0, fragment));
+        }
+        assertEquals(PreparedWriteQueue.ATT_PREPARE_QUEUE_FULL,
+                queue.prepare(100, 0, new byte[] { 1 }));
+
+        queue.cancel();
+        assertTrue(queue.isEmpty());
+        assertEquals(BluetoothGatt.GATT_SUCCESS, queue.prepare(100, 0, new byte[] { 1 }));
+    }
+}
@@ -0,0 +1,55 @@
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanFilter;
+import android.os.ParcelUuid;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test cases for {@link ScanFilterSlotAllocator}.
+ */
+public class ScanFilterSlotAllocatorTest extends AndroidTestCase {
+
+    private static final int DELIVERY_MODE_IMMEDIATE = 0;
+
+    private static final ScanFilter HEART_RATE_FILTER = new ScanFilter.Builder()
+            .setServiceUuid(ParcelUuid.fromString("0000180D-0000-1000-8000-00805F9B34FB"))
+            .build();
+    private static final ScanFilter BATTERY_FILTER = new ScanFilter.Builder()
+            .setServiceUuid(ParcelUuid.fromString("0000180F-0000-1000-8000-00805F9B34FB"))
+            .build();
+
+    @SmallTest
+    public void testEquivalentFiltersShareSlot() {
+        ScanFilterSlotAllocator allocator = new ScanFilterSlotAllocator();
+        allocator.init(3, 4);
+        ScanFilterSlotAllocator.Slot first =
+                allocator.acquire(1, HEART_RATE_FILTER, DELIVERY_MODE_IMMEDIATE, true);
+        assertTrue(first.isNew());
+        List<ScanFilter> filters = Arrays.asList(HEART_RATE_FILTER);
+        assertTrue(allocator.canAllocate(filters, DELIVERY_MODE_IMMEDIATE, true));
+        assertFalse(allocator.canAllocate(filters, DELIVERY_MODE_IMMEDIATE, false));
+
+        ScanFilterSlotAllocator.Slot second =
+                allocator.acquire(2, HEART_RATE_FILTER, DELIVERY_MODE_IMMEDIATE, true);
+        assertFalse(second.isNew());
+        assertEquals(first.filterIndex, second.filterIndex);
+
+        // Slot stays in use until the last client releases it.
+        assertTrue(allocator.release(1).isEmpty());
+        assertEquals(Arrays.asList(first.filterIndex), allocator.release(2));
+    }
+
+    @SmallTest
+    public void testCanAllocateCountsDistinctFilters() {
+        ScanFilterSlotAllocator allocator = new ScanFilterSlotAllocator();
+        allocator.init(3, 4);
+        assertTrue(allocator.canAllocate(Arrays.asList(HEART_RATE_FILTER, HEART_RATE_FILTER),
+                DELIVERY_MODE_IMMEDIATE, true));
+        assertFalse(allocator.canAllocate(Arrays.asList(HEART_RATE_FILTER, BATTERY_FILTER),
+                DELIVERY_MODE_IMMEDIATE, true));
+    }
+}
@@ -0,0 +1,152 @@
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanSettings;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test cases for {@link ScanParamArbiter}.
+ */
+public class ScanParamArbiterTest extends AndroidTestCase {
+
+    private static final long BURST_MILLIS = 1000;
+
+    private static ScanClient client(int clientIf, int scanMode) {
+        ScanSettings settings = new ScanSettings.Builder().setScanMode(scanMode).build();
+        return new ScanClient(clientIf, false, settings, null);
+    }
+
+    @SmallTest
+    public void testNoScanningClients() {
+        ScanParamArbiter arbiter = new ScanParamArbiter(BURST_MILLIS);
+        assertNull(arbiter.arbitrate(new ArrayList<ScanClient>(), 0));
+        assertNull(arbiter.arbitrate(
+                Arrays.asList(client(1, ScanSettings.SCAN_MODE_OPPORTUNISTIC)), 0));
+    }
+
+    @SmallTest
+    public void testMixedModesUseLargestWindow() {
+        ScanParamArbiter arbiter = new ScanParamArbiter(0);
+        List<ScanClient> clients = new ArrayList<ScanClient>();
+        clients.add(client(1, ScanSettings.SCAN_MODE_LOW_POWER));
+        ScanParamArbiter.Schedule schedule = arbiter.arbitrate(clients, 0);
+        assertEquals(500, schedule.windowMillis);
+        assertEquals(5000, schedule.intervalMillis);
+        assertEquals(1, schedule.clientIf);
+
+        clients.add(client(2, ScanSettings.SCAN_MODE_BALANCED));
+        schedule = arbiter.arbitrate(clients, 0);
+        assertEquals(2000, schedule.windowMillis);
+        assertEquals(5000, schedule.intervalMillis);
+        assertEquals(2, schedule.clientIf);
+        assertEquals(2, schedule.numClients);
+
+        clients.add(client(3, ScanSettings.SCAN_MODE_LOW_LATENCY));
+        schedule = arbiter.arbitrate(clients, 0);
+        assertEquals(5000, schedule.windowMillis);
+        assertEquals(3, schedule.clientIf);
+        assertEquals(3, schedule.numClients);
+        assertEquals(0, schedule.numThrottled);
+        assertEquals(-1, arbiter.getNextChangeMillis());
+    }
+
+    @SmallTest
+    public void testOpportunisticClientsDoNotRaiseDutyCycle() {
+        ScanParamArbiter arbiter = new ScanParamArbiter(BURST_MILLIS);
+        ScanParamArbiter.Schedule schedule = arbiter.arbitrate(Arrays.asList(
+                client(1, ScanSettings.SCAN_MODE_LOW_POWER),
+                client(2, ScanSettings.SCAN_MODE_OPPORTUNISTIC)), 0);
+        assertEquals(500, schedule.windowMillis);
+        assertEquals(1, schedule.clientIf);
+        assertEquals(1, schedule.numClients);
+    }
+
+    @SmallTest
+    public void testLowLatencyDemotedAtBurstLimit() {
+        ScanParamArbiter arbiter = new ScanParamArbiter(BURST_MILLIS);
+        List<ScanClient> clients = Arrays.asList(client(1, ScanSettings.SCAN_MODE_LOW_LATENCY));
+
+        ScanParamArbiter.Schedule schedule = arbiter.arbitrate(clients, 100);
+        assertEquals(5000, schedule.windowMillis);
+        assertEquals(1100, arbiter.getNextChangeMillis());
+
+        schedule = arbiter.arbitrate(clients, 1099);
+        assertEquals(5000, schedule.windowMillis);
+        assertEquals(0, schedule.numThrottled);
+        assertEquals(1100, arbiter.getNextChangeMillis());
+
+        schedule = arbiter.arbitrate(clients, 1100);
+        assertEquals(2000, schedule.windowMillis);
+        assertEquals(1, schedule.numThrottled);
+        assertEquals(-1, arbiter.getNextChangeMillis());
+
+        // Stays demoted after the burst limit
+        schedule = arbiter.arbitrate(clients, 60000);
+        assertEquals(2000, schedule.windowMillis);
+        assertEquals(1, schedule.numThrottled);
+    }
+
+    @SmallTest
+    public void testDemotionOnlyAffectsLongRunningClient() {
+        ScanParamArbiter arbiter = new ScanParamArbiter(BURST_MILLIS);
+        List<ScanClient> clients = new ArrayList<ScanClient>();
+        clients.add(client(1, ScanSettings.SCAN_MODE_LOW_LATENCY));
+        arbiter.arbitrate(clients, 0);
+
+        clients.add(client(2, ScanSettings.SCAN_MODE_LOW_LATENCY));
+        arbiter.arbitrate(clients, 500);
+        assertEquals(1000, arbiter.getNextChangeMillis());
+
+        ScanParamArbiter.Schedule schedule = arbiter.arbitrate(clients, 1000);
+        assertEquals(5000, schedule.windowMillis);
+        assertEquals(2, schedule.clientIf);
+        assertEquals(1, schedule.numThrottled);
+        assertEquals(1500, arbiter.getNextChangeMillis());
+
+        schedule = arbiter.arbitrate(clients, 1500);
+        assertEquals(2000, schedule.windowMillis);
+        assertEquals(2, schedule.numThrottled);
+    }
+
+    @SmallTest
+    public void testBurstRestartsAfterClientStops() {
+        ScanParamArbiter arbiter = new ScanParamArbiter(BURST_MILLIS);
+        List<ScanClient> clients = Arrays.asList(client(1, ScanSettings.SCAN_MODE_LOW_LATENCY));
+        arbiter.arbitrate(clients, 0);
+        assertEquals(2000, arbiter.arbitrate(clients, 1000).windowMillis);
+
+        assertNull(arbiter.arbitrate(new ArrayList<ScanClient>(), 2000));
+
+        ScanParamArbiter.Schedule schedule = arbiter.arbitrate(clients, 3000);
+        assertEquals(5000, schedule.windowMillis);
+        assertEquals(4000, arbiter.getNextChangeMillis());
+    }
+
+    @SmallTest
+    public void testNoBurstLimit() {
+        ScanParamArbiter arbiter = new ScanParamArbiter(0);
+        List<ScanClient> clients = Arrays.asList(client(1, ScanSettings.SCAN_MODE_LOW_LATENCY));
+        arbiter.arbitrate(clients, 0);
+        ScanParamArbiter.Schedule schedule = arbiter.arbitrate(clients, 3600000);
+        assertEquals(5000, schedule.windowMillis);
+        assertEquals(0, schedule.numThrottled);
+        assertEquals(-1, arbiter.getNextChangeMillis());
+    }
+
+    @SmallTest
+    public void testHistoryKeepsCurrentSchedule() {
+        ScanParamArbiter arbiter = new ScanParamArbiter(BURST_MILLIS);
+        ScanParamArbiter.Schedule schedule = arbiter.arbitrate(
+                Arrays.asList(client(1, ScanSettings.SCAN_MODE_BALANCED)), 0);
+        arbiter.setCurrent(schedule);
+        assertSame(schedule, arbiter.getCurrent());
+        assertTrue(schedule.hasSameParams(arbiter.arbitrate(
+                Arrays.asList(client(2, ScanSettings.SCAN_MODE_BALANCED)), 0)));
+        arbiter.setCurrent(null);
+        assertNull(arbiter.getCurrent());
+    }
+}
@@ -0,0 +1,140 @@
+package com.android.bluetooth.map;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.bluetooth.tests.mock.BluetoothMockContext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test cases for {@link BluetoothMapContactCache}.
+ */
+public class BluetoothMapContactCacheTest extends AndroidTestCase {
+
+    /**
+     * Contacts provider answering both the batch phone query and the lookup of
+     * a single number, and counting the queries of each kind.
+     */
+    private static class ContactsProvider extends MockContentProvider {
+        private final List<String[]> mRows = new ArrayList<String[]>();
+        int numBatchQueries = 0;
+        int maxBatchArgs = 0;
+        int numLookups = 0;
+
+        void addPhone(long id, String name, String number, String normalizedNumber) {
+            mRows.add(new String[] {Long.toString(id), name, number, normalizedNumber});
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            if (uri.toString().startsWith(Phone.CONTENT_URI.toString())) {
+                numBatchQueries++;
+                maxBatchArgs = Math.max(maxBatchArgs, selectionArgs.length);
+                List<String> args = Arrays.asList(selectionArgs);
+                MatrixCursor c = new MatrixCursor(projection);
+                for (String[] row : mRows) {
+                    if (args.contains(row[2]) || args.contains(row[3])) {
+                        c.addRow(row);
+                    }
+                }
+                return c;
+            }
+            numLookups++;
+            String phone = uri.getLastPathSegment();
+            MatrixCursor c = new MatrixCursor(new String[] {Contacts._ID, Contacts.DISPLAY_NAME});
+            for (String[] row : mRows) {
+                if (phone.equals(row[2])) {
+                    c.addRow(new Object[] {row[0], row[1]});
+                }
+            }
+            return c;
+        }
+    }
+
+    private ContactsProvider mProvider;
+    private BluetoothMapContactCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new ContactsProvider();
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ContactsContract.AUTHORITY, mProvider);
+        mCache = new BluetoothMapContactCache(new BluetoothMockContext(resolver, getContext()));
+    }
+
+    @SmallTest
+    public void testResolveInOneQuery() {
+        mProvider.addPhone(1, "Alice", "5551001", "+15551001");
+        mProvider.addPhone(2, "Bob", "5551002", "+15551002");
+
+        mCache.resolveContactNames(Arrays.asList("5551001", "5551002", "5551001", "", null));
+        assertEquals(1, mProvider.numBatchQueries);
+
+        assertEquals("Alice", mCache.getContactName("5551001"));
+        assertEquals("Bob", mCache.getContactName("5551002"));
+        assertEquals(0, mProvider.numLookups);
+    }
+
+    @SmallTest
+    public void testResolveByNormalizedNumber() {
+        mProvider.addPhone(1, "Alice", "(555) 100-1", "+15551001");
+
+        mCache.resolveContactNames(Arrays.asList("+15551001"));
+        assertEquals("Alice", mCache.getContactName("+15551001"));
+        assertEquals(0, mProvider.numLookups);
+    }
+
+    @SmallTest
+    public void testCachedNumbersNotQueriedAgain() {
+        mProvider.addPhone(1, "Alice", "5551001", "+15551001");
+
+        mCache.resolveContactNames(Arrays.asList("5551001"));
+        mCache.resolveContactNames(Arrays.asList("5551001"));
+        assertEquals(1, mProvider.numBatchQueries);
+
+        mCache.clearCache();
+        mCache.resolveContactNames(Arrays.asList("5551001"));
+        assertEquals(2, mProvider.numBatchQueries);
+    }
+
+    @SmallTest
+    public void testUnresolvedNumbersLookedUpOnce() {
+        mProvider.addPhone(1, "Alice", "5551001", "+15551001");
+
+        mCache.resolveContactNames(Arrays.asList("5551001", "5559999"));
+        assertNull(mCache.getContactName("5559999"));
+        assertEquals(1, mProvider.numLookups);
+
+        // Numbers without a contact are cached as well
+        assertNull(mCache.getContactName("5559999"));
+        assertEquals(1, mProvider.numLookups);
+        assertNull(mCache.getContactName(""));
+        assertEquals(1, mProvider.numLookups);
+    }
+
+    @SmallTest
+    public void testLargePageSplitIntoQueries() {
+        List<String> phones = new ArrayList<String>();
+        for (int i = 0; i < 450; i++) {
+            phones.add(Integer.toString(5550000 + i));
+        }
+
+        mCache.resolveContactNames(phones);
+        assertEquals(3, mProvider.numBatchQueries);
+        // Each number is passed as is and maybe in E164 form, twice for the two columns
+        assertTrue(mProvider.maxBatchArgs <= 200 * 4);
+    }
+}
@@ -0,0 +1,134 @@
+package com.android.bluetooth.map;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test cases for {@link BluetoothMapObexServer.PacketOutputStream}.
+ */
+public class PacketOutputStreamTest extends AndroidTestCase {
+
+    /** Body stream recording the size of every write it gets. */
+    private static class RecordingStream extends ByteArrayOutputStream {
+        final List<Integer> chunks = new ArrayList<Integer>();
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            chunks.add(len);
+            super.write(b, off, len);
+        }
+    }
+
+    private static class AbortableStream extends BluetoothMapObexServer.PacketOutputStream {
+        boolean aborted;
+
+        AbortableStream(RecordingStream out, int packetSize) {
+            super(out, packetSize);
+        }
+
+        @Override
+        boolean isAborted() {
+            return aborted;
+        }
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    @SmallTest
+    public void testSplitsIntoPackets() throws IOException {
+        RecordingStream out = new RecordingStream();
+        BluetoothMapObexServer.PacketOutputStream stream =
+                new BluetoothMapObexServer.PacketOutputStream(out, 4);
+        byte[] data = bytes(10);
+
+        stream.write(data, 0, data.length);
+        assertEquals(Arrays.asList(4, 4), out.chunks);
+        assertEquals(8, stream.getBytesWritten());
+
+        stream.flush();
+        assertEquals(Arrays.asList(4, 4, 2), out.chunks);
+        assertEquals(10, stream.getBytesWritten());
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+    }
+
+    @SmallTest
+    public void testSingleByteWrites() throws IOException {
+        RecordingStream out = new RecordingStream();
+        BluetoothMapObexServer.PacketOutputStream stream =
+                new BluetoothMapObexServer.PacketOutputStream(out, 3);
+        byte[] data = bytes(7);
+
+        for (byte b : data) {
+            stream.write(b);
+        }
+        // A full packet is only passed on once the next byte arrives
+        assertEquals(Arrays.asList(3, 3), out.chunks);
+
+        stream.flush();
+        assertEquals(Arrays.asList(3, 3, 1), out.chunks);
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+    }
+
+    @SmallTest
+    public void testWritesSubrange() throws IOException {
+        RecordingStream out = new RecordingStream();
+        BluetoothMapObexServer.PacketOutputStream stream =
+                new BluetoothMapObexServer.PacketOutputStream(out, 4);
+        byte[] data = bytes(10);
+
+        stream.write(data, 3, 5);
+        stream.flush();
+        assertEquals(Arrays.asList(4, 1), out.chunks);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 3, 8), out.toByteArray()));
+    }
+
+    @SmallTest
+    public void testFlushWithoutDataWritesNothing() throws IOException {
+        RecordingStream out = new RecordingStream();
+        BluetoothMapObexServer.PacketOutputStream stream =
+                new BluetoothMapObexServer.PacketOutputStream(out, 4);
+
+        stream.flush();
+        stream.write(bytes(4), 0, 4);
+        stream.flush();
+        assertEquals(Arrays.asList(4), out.chunks);
+        assertEquals(4, stream.getBytesWritten());
+    }
+
+    @SmallTest
+    public void testAbortFailsWrites() throws IOException {
+        RecordingStream out = new RecordingStream();
+        AbortableStream stream = new AbortableStream(out, 4);
+
+        stream.write(bytes(4), 0, 4);
+        assertEquals(Arrays.asList(4), out.chunks);
+
+        stream.aborted = true;
+        try {
+            stream.write(bytes(4), 0, 4);
+            fail("Write after abort did not fail");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            stream.flush();
+            fail("Flush after abort did not fail");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(Arrays.asList(4), out.chunks);
+        assertEquals(4, stream.getBytesWritten());
+    }
+}
@@ -8,6 +8,7 @@ import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.LinkedHashMap;
 
@@ -639,6 +640,97 @@ public class BluetoothMapContentTest extends AndroidTestCase {
         assertEquals("msg/inbox/keep", fe.getFolderById(301).getFullPath());
     }
 
+    /*
+     * Message listing merge test cases
+     */
+
+    /**
+     * Message rows of the listing types, given as dates in descending order.
+     * A negative date marks a row that does not match the address filters.
+     * Added rows are recorded as "type:index".
+     */
+    private static class TestListingRows implements BluetoothMapContent.ListingRows {
+        private final long[][] mDates;
+        private final int[] mPositions;
+        final ArrayList<String> mAdded = new ArrayList<String>();
+
+        TestListingRows(long[]... dates) {
+            mDates = dates;
+            mPositions = new int[dates.length];
+            Arrays.fill(mPositions, -1);
+        }
+
+        @Override
+        public boolean next(int type) {
+            do {
+                mPositions[type]++;
+            } while (mPositions[type] < mDates[type].length
+                    && mDates[type][mPositions[type]] < 0);
+            return mPositions[type] < mDates[type].length;
+        }
+
+        @Override
+        public long getDate(int type) {
+            return mDates[type][mPositions[type]];
+        }
+
+        @Override
+        public void add(int type) {
+            mAdded.add(type + ":" + mPositions[type]);
+        }
+    }
+
+    public void testMergeListingMultipleTypes() {
+        TestListingRows rows = new TestListingRows(
+                new long[] {900, 500, 100},
+                new long[] {800, 200},
+                new long[] {},
+                new long[] {700, 600});
+        assertEquals(7, BluetoothMapContent.mergeListing(rows, 4, 0, 0));
+        assertEquals(Arrays.asList("0:0", "1:0", "3:0", "3:1", "0:1", "1:1", "0:2"),
+                rows.mAdded);
+    }
+
+    public void testMergeListingOffset() {
+        TestListingRows rows = new TestListingRows(
+                new long[] {900, 500, 100},
+                new long[] {800, 200},
+                new long[] {700, 600});
+        assertEquals(3, BluetoothMapContent.mergeListing(rows, 3, 2, 3));
+        assertEquals(Arrays.asList("2:0", "2:1", "0:1"), rows.mAdded);
+
+        rows = new TestListingRows(new long[] {900, 500}, new long[] {800});
+        assertEquals(0, BluetoothMapContent.mergeListing(rows, 2, 3, 10));
+        assertTrue(rows.mAdded.isEmpty());
+    }
+
+    public void testMergeListingEqualDates() {
+        TestListingRows rows = new TestListingRows(
+                new long[] {500, 300},
+                new long[] {500, 300},
+                new long[] {500});
+        assertEquals(5, BluetoothMapContent.mergeListing(rows, 3, 0, 0));
+        // Ties go to the lowest type
+        assertEquals(Arrays.asList("0:0", "1:0", "2:0", "0:1", "1:1"), rows.mAdded);
+
+        rows = new TestListingRows(new long[] {500}, new long[] {500}, new long[] {500});
+        assertEquals(2, BluetoothMapContent.mergeListing(rows, 3, 1, 0));
+        assertEquals(Arrays.asList("1:0", "2:0"), rows.mAdded);
+    }
+
+    public void testMergeListingOffsetWithAddressFilter() {
+        // Rows not matching the filters must not count towards the offset
+        TestListingRows rows = new TestListingRows(
+                new long[] {-1, 900, -1, -1, 500, 100},
+                new long[] {-1, 800, 200});
+        assertEquals(2, BluetoothMapContent.mergeListing(rows, 2, 2, 2));
+        assertEquals(Arrays.asList("0:4", "1:2"), rows.mAdded);
+
+        rows = new TestListingRows(new long[] {-1, -1}, new long[] {-1, 700});
+        assertEquals(0, BluetoothMapContent.mergeListing(rows, 2, 1, 0));
+        assertTrue(rows.mAdded.isEmpty());
+    }
+
     /*
      * SMS test cases
      */